@@ -0,0 +1,87 @@
+/*
+ * @(#) BTLatchTable.java
+ *
+ */
+
+package btree;
+
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+/**
+ * BTLatchTable hands out one read/write latch per page id. A latch protects
+ * the bytes of a pinned page; it says nothing about whether the page is in
+ * the buffer pool, which is still the job of pin counts.
+ * <p>
+ * Latches are always taken top-down (parent before child) and left to right
+ * along the leaf chain, so holders never wait on each other in a cycle.
+ * <p>
+ * A page's latch is only in the table while some thread holds it or waits
+ * for it, so the table stays as small as the number of pages latched at
+ * once, however many pages the file has had. Latches are not shared
+ * between pages: two pages under one latch would break the order above.
+ */
+class BTLatchTable {
+
+	/*
+	 * A latch and the number of threads holding or waiting for it, counted
+	 * inside the map's compute calls.
+	 */
+	private static class Latch {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		int users;
+	}
+
+	private final ConcurrentHashMap<Integer, Latch> latches = new ConcurrentHashMap<Integer, Latch>();
+
+	private final BiFunction<Integer, Latch, Latch> acquire = new BiFunction<Integer, Latch, Latch>() {
+		public Latch apply(Integer pid, Latch latch) {
+			if (latch == null)
+				latch = new Latch();
+			latch.users++;
+			return latch;
+		}
+	};
+
+	private final BiFunction<Integer, Latch, Latch> release = new BiFunction<Integer, Latch, Latch>() {
+		public Latch apply(Integer pid, Latch latch) {
+			return (--latch.users == 0) ? null : latch;
+		}
+	};
+
+	/**
+	 * Latch a page.
+	 *
+	 * @param pid
+	 *            the page number. Input parameter.
+	 * @param exclusive
+	 *            true to latch for writing, false for reading. Input
+	 *            parameter.
+	 */
+	void lock(int pid, boolean exclusive) {
+		Latch latch = latches.compute(Integer.valueOf(pid), acquire);
+		if (exclusive)
+			latch.lock.writeLock().lock();
+		else
+			latch.lock.readLock().lock();
+	}
+
+	/**
+	 * Release a latch taken with lock(pid, exclusive).
+	 *
+	 * @param pid
+	 *            the page number. Input parameter.
+	 * @param exclusive
+	 *            the mode the latch was taken in. Input parameter.
+	 */
+	void unlock(int pid, boolean exclusive) {
+		Integer key = Integer.valueOf(pid);
+		Latch latch = latches.get(key);
+		if (exclusive)
+			latch.lock.writeLock().unlock();
+		else
+			latch.lock.readLock().unlock();
+		latches.computeIfPresent(key, release);
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * @(#) BTLinkScan.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTLinkScan is the scan new_scan returns for a BTreeFile in concurrent
+ * mode. It copies one leaf at a time under a shared latch and walks the
+ * leaf chain through next links, so it holds no pin or latch between calls
+ * and never blocks writers for longer than one page copy.
+ * <p>
+ * Splits only ever move entries to a new page right after the one split,
+ * so an entry present for the whole scan is always ahead of the scan or
+ * already returned. When a split has moved entries the scan already
+ * returned onto the next leaf, it skips entries with a smaller key than the
+ * last one returned, and entries with an equal key whose rid it returned.
+ */
+class BTLinkScan extends BTFileScan {
+
+	private BTreeFile file;
+	private KeyClass lo_key;
+
+	private ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+	private int next;
+	private int curPage = INVALID_PAGE;
+	private boolean done;
+
+	private KeyDataEntry last;
+	private HashSet<Long> lastRun = new HashSet<Long>();
+
+	BTLinkScan(BTreeFile file, KeyClass lo_key, KeyClass hi_key, int keyType,
+			int maxKeysize) {
+		this.file = file;
+		this.lo_key = lo_key;
+		this.bfile = file;
+		this.endkey = hi_key;
+		this.keyType = keyType;
+		this.maxKeysize = maxKeysize;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			while (!done) {
+				while (next < entries.size()) {
+					KeyDataEntry entry = entries.get(next++);
+					RID rid = ((LeafData) entry.data).getData();
+					if (last != null) {
+						int cmp = BT.keyCompare(entry.key, last.key);
+						if (cmp < 0 || (cmp == 0 && lastRun.contains(ridKey(rid))))
+							continue;
+						if (cmp > 0)
+							lastRun.clear();
+					} else if (lo_key != null
+							&& BT.keyCompare(entry.key, lo_key) < 0) {
+						continue;
+					}
+					if (endkey != null && BT.keyCompare(entry.key, endkey) > 0) {
+						done = true;
+						break;
+					}
+					last = entry;
+					lastRun.add(ridKey(rid));
+					return entry;
+				}
+				if (done)
+					break;
+
+				entries.clear();
+				next = 0;
+				curPage = file.copyLeaf(curPage, lo_key, entries);
+				if (curPage == INVALID_PAGE)
+					done = true;
+			}
+			entries.clear();
+			return null;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	private static Long ridKey(RID rid) {
+		return Long.valueOf(((long) rid.pageNo.pid << 32)
+				| (rid.slotNo & 0xffffffffL));
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (last == null)
+			throw new ScanDeleteException(null, "no current entry");
+		try {
+			file.Delete(last.key, ((LeafData) last.data).getData());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		}
+	}
+
+	/**
+	 * destructor. Nothing is pinned between calls, so there is nothing to
+	 * unpin.
+	 */
+	public void DestroyBTreeFileScan() {
+		entries.clear();
+		done = true;
+	}
+}
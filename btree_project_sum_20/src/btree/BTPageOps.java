@@ -0,0 +1,452 @@
+/*
+ * @(#) BTPageOps.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTPageOps works directly on the slot directory and record bytes of a
+ * BTSortedPage. A sorted page keeps its slots in key order and compact
+ * (no empty slots), so a range of slots is a range of keys; the methods here
+ * use that to binary search a page, comparing keys in place, and to move
+ * many records with one pass over the page instead of one
+ * insertRecord/deleteSortedRecord per record.
+ */
+class BTPageOps implements GlobalConst {
+
+	private BTPageOps() {
+	}
+
+	/**
+	 * Binary search for the first slot whose key is greater than or equal to
+	 * <code>key</code>. Keys are compared in place, nothing is decoded.
+	 *
+	 * @param data
+	 *            the bytes of a leaf or index page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot number, or the slot count if every key is smaller
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 */
+	static int lowerBound(byte[] data, KeyClass key)
+			throws KeyNotMatchException {
+		int lo = 0;
+		int hi = slotCount(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compareKey(data, mid, key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Binary search for the first slot whose key is greater than
+	 * <code>key</code>. Keys are compared in place, nothing is decoded.
+	 *
+	 * @param data
+	 *            the bytes of a leaf or index page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot number, or the slot count if no key is greater
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 */
+	static int upperBound(byte[] data, KeyClass key)
+			throws KeyNotMatchException {
+		int lo = 0;
+		int hi = slotCount(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compareKey(data, mid, key) <= 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * The child to follow in an index page for the position returned by
+	 * lowerBound or upperBound: the left link for position 0, otherwise the
+	 * page id of the entry just before it.
+	 *
+	 * @param data
+	 *            the bytes of an index page. Input parameter.
+	 * @param pos
+	 *            a position in [0, slot count]. Input parameter.
+	 * @return the child page number
+	 */
+	static int childPid(byte[] data, int pos) {
+		if (pos == 0)
+			return getInt(data, HFPage.PREV_PAGE);
+		int slot = pos - 1;
+		return getInt(data, slotOffset(data, slot) + slotLength(data, slot) - 4);
+	}
+
+	/**
+	 * Move the index entry pointing to <code>newChild</code> right after the
+	 * one pointing to <code>splitChild</code>, the page it was split from.
+	 * A key with duplicates on several leaves can appear more than once in
+	 * an index page, and insertKey places a new key among equal ones without
+	 * knowing which child split; this keeps the children of equal keys in
+	 * leaf chain order. Only slots with equal keys are passed over, so the
+	 * page stays sorted.
+	 *
+	 * @param data
+	 *            the bytes of an index page holding both entries (or
+	 *            splitChild as its left link). Input parameter.
+	 * @param newChild
+	 *            the child of the entry just inserted. Input parameter.
+	 * @param splitChild
+	 *            the child that split. Input parameter.
+	 */
+	static void placeAfterChild(byte[] data, int newChild, int splitChild) {
+		int slotCnt = slotCount(data);
+		int from = -1;
+		int after = getInt(data, HFPage.PREV_PAGE) == splitChild ? -1 : -2;
+		for (int slot = 0; slot < slotCnt; slot++) {
+			int child = childPid(data, slot + 1);
+			if (child == newChild)
+				from = slot;
+			else if (child == splitChild)
+				after = slot;
+		}
+		if (from < 0 || after == -2)
+			return;
+		int to = (after < from) ? after + 1 : after;
+		if (to == from)
+			return;
+		int len = slotLength(data, from);
+		int offset = slotOffset(data, from);
+		int step = (to < from) ? -1 : 1;
+		for (int slot = from; slot != to; slot += step)
+			setSlot(data, slot, slotLength(data, slot + step),
+					slotOffset(data, slot + step));
+		setSlot(data, to, len, offset);
+	}
+
+	/**
+	 * True if <code>pid</code> is the left link or the child of an entry of
+	 * an index page.
+	 */
+	static boolean hasChild(byte[] data, int pid) {
+		int slotCnt = slotCount(data);
+		for (int pos = 0; pos <= slotCnt; pos++)
+			if (childPid(data, pos) == pid)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Compare the key stored in a slot with <code>key</code> without
+	 * building a KeyDataEntry. Gives the same sign as
+	 * <code>BT.keyCompare(storedKey, key)</code>, which is the order the
+	 * library keeps the slots in.
+	 *
+	 * @param data
+	 *            the bytes of a leaf or index page. Input parameter.
+	 * @param slot
+	 *            the slot to compare. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return negative, zero or positive as the stored key is less than,
+	 *         equal to or greater than key
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 */
+	static int compareKey(byte[] data, int slot, KeyClass key)
+			throws KeyNotMatchException {
+		int pos = slotOffset(data, slot);
+		if (key instanceof IntegerKey)
+			return getInt(data, pos) - ((IntegerKey) key).getKey().intValue();
+		if (key instanceof StringKey)
+			return compareUTF(data, pos, ((StringKey) key).getKey());
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	/**
+	 * Decode the string key stored in a slot.
+	 *
+	 * @param data
+	 *            the bytes of a leaf or index page with string keys. Input
+	 *            parameter.
+	 * @param slot
+	 *            the slot to read. Input parameter.
+	 * @return the key
+	 * @exception IOException
+	 *                the slot does not hold a string key
+	 */
+	static String stringKey(byte[] data, int slot) throws IOException {
+		int pos = slotOffset(data, slot);
+		return new DataInputStream(new ByteArrayInputStream(data, pos,
+				data.length - pos)).readUTF();
+	}
+
+	/**
+	 * Decode the key stored in a slot.
+	 *
+	 * @param data
+	 *            the bytes of a leaf or index page. Input parameter.
+	 * @param slot
+	 *            the slot to read. Input parameter.
+	 * @param keyType
+	 *            AttrType.attrInteger or AttrType.attrString. Input
+	 *            parameter.
+	 * @return the key
+	 * @exception IOException
+	 *                the slot does not hold a string key
+	 */
+	static KeyClass keyAt(byte[] data, int slot, int keyType) throws IOException {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(getInt(data, slotOffset(data, slot)));
+		return new StringKey(stringKey(data, slot));
+	}
+
+	/**
+	 * The shortest prefix of <code>right</code> that is still greater than
+	 * <code>left</code>: one character past their common prefix. Any key
+	 * between the two sorts on the same side of it as before, so it can
+	 * stand in for <code>right</code> as the separator of two leaves.
+	 * Returns <code>right</code> itself when the keys are equal.
+	 *
+	 * @param left
+	 *            the last key of the left leaf. Input parameter.
+	 * @param right
+	 *            the first key of the right leaf, not less than left. Input
+	 *            parameter.
+	 * @return the separator
+	 */
+	static String shortSeparator(String left, String right) {
+		int n = Math.min(left.length(), right.length());
+		int common = 0;
+		while (common < n && left.charAt(common) == right.charAt(common))
+			common++;
+		if (common >= right.length())
+			return right;
+		return right.substring(0, common + 1);
+	}
+
+	/**
+	 * The rid of the leaf entry in a slot.
+	 */
+	static RID ridAt(byte[] data, int slot) {
+		int end = slotOffset(data, slot) + slotLength(data, slot);
+		return new RID(new PageId(getInt(data, end - 4)), getInt(data, end - 8));
+	}
+
+	/**
+	 * True if the leaf entry in a slot carries <code>rid</code>.
+	 */
+	static boolean ridEquals(byte[] data, int slot, RID rid) {
+		int end = slotOffset(data, slot) + slotLength(data, slot);
+		return getInt(data, end - 4) == rid.pageNo.pid
+				&& getInt(data, end - 8) == rid.slotNo;
+	}
+
+	/*
+	 * String.compareTo against a key written by DataOutputStream.writeUTF:
+	 * a two byte length followed by modified UTF-8.
+	 */
+	private static int compareUTF(byte[] data, int pos, String key) {
+		int end = pos + 2 + ((data[pos] & 0xff) << 8 | (data[pos + 1] & 0xff));
+		int klen = key.length();
+		int i = 0;
+		pos += 2;
+		while (pos < end && i < klen) {
+			int c = data[pos] & 0xff;
+			int ch;
+			if (c < 0x80) {
+				ch = c;
+				pos += 1;
+			} else if ((c & 0xe0) == 0xc0) {
+				ch = ((c & 0x1f) << 6) | (data[pos + 1] & 0x3f);
+				pos += 2;
+			} else {
+				ch = ((c & 0x0f) << 12) | ((data[pos + 1] & 0x3f) << 6)
+						| (data[pos + 2] & 0x3f);
+				pos += 3;
+			}
+			int kc = key.charAt(i++);
+			if (ch != kc)
+				return ch - kc;
+		}
+		if (pos < end)
+			return 1;
+		return (i < klen) ? -1 : 0;
+	}
+
+	/**
+	 * Move the upper half of the records on a full page, by bytes, to an
+	 * empty page, then compact the full page once. Slot order is kept on
+	 * both pages, so every key left on <code>page</code> is less than or
+	 * equal to every key moved to <code>newPage</code>.
+	 *
+	 * @param page
+	 *            the full page. Input and output parameter.
+	 * @param newPage
+	 *            a freshly initialized page. Input and output parameter.
+	 * @return the number of records moved
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int splitUpperHalf(BTSortedPage page, BTSortedPage newPage)
+			throws IOException {
+		byte[] data = page.getpage();
+		int slotCnt = slotCount(data);
+		if (slotCnt < 2)
+			return 0;
+
+		int total = 0;
+		for (int i = 0; i < slotCnt; i++)
+			total += slotLength(data, i) + HFPage.SIZE_OF_SLOT;
+
+		// First slot of the upper half: move from the top until half the
+		// bytes are gone, but keep at least one record on each page
+		int split = slotCnt;
+		int moved = 0;
+		while (split > 1 && moved < total / 2) {
+			split--;
+			moved += slotLength(data, split) + HFPage.SIZE_OF_SLOT;
+		}
+
+		copySlots(data, split, slotCnt, newPage.getpage());
+		compact(data, split);
+		return slotCnt - split;
+	}
+
+	/**
+	 * Remove the records in slots [from, to) of a page and compact it once,
+	 * instead of one deleteSortedRecord per record. The slots after the
+	 * range move down, so the page stays sorted.
+	 *
+	 * @param data
+	 *            the bytes of a leaf or index page. Input and output
+	 *            parameter.
+	 * @param from
+	 *            the first slot to remove. Input parameter.
+	 * @param to
+	 *            the slot after the last one to remove. Input parameter.
+	 */
+	static void removeSlots(byte[] data, int from, int to) {
+		int slotCnt = slotCount(data);
+		if (from >= to)
+			return;
+		System.arraycopy(data, slotPos(to), data, slotPos(from), (slotCnt - to)
+				* HFPage.SIZE_OF_SLOT);
+		compact(data, slotCnt - (to - from));
+	}
+
+	/*
+	 * Lay out the records of slots [from, to) of `data' from the end of the
+	 * empty page `dest' and set up its slot directory.
+	 */
+	private static void copySlots(byte[] data, int from, int to, byte[] dest) {
+		int usedPtr = dest.length;
+		for (int i = from; i < to; i++) {
+			int len = slotLength(data, i);
+			usedPtr -= len;
+			System.arraycopy(data, slotOffset(data, i), dest, usedPtr, len);
+			setSlot(dest, i - from, len, usedPtr);
+		}
+		setHeader(dest, to - from, usedPtr);
+	}
+
+	/*
+	 * Keep slots [0, slotCnt) and repack their records against the end of
+	 * the page, dropping the bytes of any record no longer in the directory.
+	 */
+	private static void compact(byte[] data, int slotCnt) {
+		byte[] scratch = new byte[data.length];
+		int usedPtr = data.length;
+		for (int i = 0; i < slotCnt; i++) {
+			int len = slotLength(data, i);
+			usedPtr -= len;
+			System.arraycopy(data, slotOffset(data, i), scratch, usedPtr, len);
+			setSlot(data, i, len, usedPtr);
+		}
+		System.arraycopy(scratch, usedPtr, data, usedPtr, data.length - usedPtr);
+		setHeader(data, slotCnt, usedPtr);
+	}
+
+	private static void setHeader(byte[] data, int slotCnt, int usedPtr) {
+		putShort(data, HFPage.SLOT_CNT, slotCnt);
+		putShort(data, HFPage.USED_PTR, usedPtr);
+		putShort(data, HFPage.FREE_SPACE, usedPtr - HFPage.DPFIXED - slotCnt
+				* HFPage.SIZE_OF_SLOT);
+	}
+
+	static int slotCount(byte[] data) {
+		return getShort(data, HFPage.SLOT_CNT);
+	}
+
+	static short pageType(byte[] data) {
+		return (short) getShort(data, HFPage.TYPE);
+	}
+
+	/**
+	 * Same as HFPage.available_space(): room for one more record, slot
+	 * included.
+	 */
+	static int availableSpace(byte[] data) {
+		return getShort(data, HFPage.FREE_SPACE) - HFPage.SIZE_OF_SLOT;
+	}
+
+	/**
+	 * Bytes taken by records and slots.
+	 */
+	static int usedSpace(byte[] data) {
+		return data.length - HFPage.DPFIXED - getShort(data, HFPage.FREE_SPACE);
+	}
+
+	/**
+	 * True if records and slots take less than half the page, the point
+	 * below which a full delete rebalances the page with a sibling.
+	 */
+	static boolean underfull(byte[] data) {
+		return 2 * usedSpace(data) < data.length - HFPage.DPFIXED;
+	}
+
+	static int slotPos(int slot) {
+		return HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT;
+	}
+
+	static int slotLength(byte[] data, int slot) {
+		return getShort(data, slotPos(slot));
+	}
+
+	static int slotOffset(byte[] data, int slot) {
+		return getShort(data, slotPos(slot) + 2);
+	}
+
+	private static void setSlot(byte[] data, int slot, int len, int offset) {
+		putShort(data, slotPos(slot), len);
+		putShort(data, slotPos(slot) + 2, offset);
+	}
+
+	/*
+	 * Page fields are big-endian, as written by global.Convert.
+	 */
+	static int getShort(byte[] data, int pos) {
+		return (short) (((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff));
+	}
+
+	static void putShort(byte[] data, int pos, int value) {
+		data[pos] = (byte) (value >>> 8);
+		data[pos + 1] = (byte) value;
+	}
+
+	static int getInt(byte[] data, int pos) {
+		return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+				| ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+}
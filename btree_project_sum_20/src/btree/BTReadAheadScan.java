@@ -0,0 +1,157 @@
+/*
+ * @(#) BTReadAheadScan.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTReadAheadScan is the scan returned by
+ * {@link BTreeFile#new_scan(KeyClass, KeyClass, int)}. It iterates like
+ * BTFileScan, and whenever it moves to a new leaf it starts a background
+ * task that pins and unpins the next leaves on the chain, so a cold range
+ * scan finds them in the buffer pool instead of waiting for one read per
+ * leaf. At most one task per scan runs at a time.
+ * <p>
+ * The tasks pin pages from another thread while the caller goes on using
+ * the buffer manager, so they need a ConcurrentBufMgr: BTreeFile only
+ * creates this scan with one. The tasks share at most MAX_THREADS daemon
+ * threads, which end when idle; a leaf reached while they are all busy is
+ * not read ahead.
+ */
+class BTReadAheadScan extends BTFileScan {
+
+	private static final int MAX_THREADS = 16;
+	private static final long IDLE_SECONDS = 5;
+
+	private static ThreadPoolExecutor executor;
+
+	private final BTreeFile file;
+	private final int readAhead;
+	private int lastLeaf = INVALID_PAGE;
+	private Future<?> pending;
+	private volatile boolean closed;
+	private volatile Exception failure;
+
+	BTReadAheadScan(BTreeFile file, int readAhead) {
+		this.file = file;
+		this.readAhead = readAhead;
+	}
+
+	private static synchronized ExecutorService executor() {
+		if (executor == null || executor.isShutdown()) {
+			executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+					IDLE_SECONDS, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "BTreeFile read-ahead");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	/*
+	 * Stop the read-ahead threads once the tasks running finish; the next
+	 * read-ahead scan starts new ones.
+	 */
+	static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error, or the read-ahead failed
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		if (failure != null)
+			throw new ScanIteratorException(failure, "read-ahead failed");
+		KeyDataEntry entry = super.get_next();
+		if (leafPage != null) {
+			try {
+				int pid = leafPage.getCurPage().pid;
+				if (pid != lastLeaf) {
+					lastLeaf = pid;
+					startReadAhead(pid);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new ScanIteratorException(e, "");
+			}
+		}
+		return entry;
+	}
+
+	/*
+	 * A task that fails stops the read-ahead for good and leaves its
+	 * exception for the next get_next to throw.
+	 */
+	private void startReadAhead(final int pid) {
+		if (failure != null || (pending != null && !pending.isDone()))
+			return;
+		try {
+			pending = executor().submit(new Runnable() {
+				public void run() {
+					try {
+						file.readAhead(pid, readAhead, endkey, BTReadAheadScan.this);
+					} catch (Exception e) {
+						failure = e;
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// every thread busy, or shut down: skip this leaf
+			pending = null;
+		}
+	}
+
+	/**
+	 * destructor. Waits for the read-ahead task, then unpins the current
+	 * leaf.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		closed = true;
+		if (pending != null) {
+			try {
+				pending.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+			}
+			pending = null;
+		}
+		super.DestroyBTreeFileScan();
+	}
+}
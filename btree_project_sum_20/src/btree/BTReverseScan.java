@@ -0,0 +1,137 @@
+/*
+ * @(#) BTReverseScan.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTReverseScan is the scan new_scan returns for TupleOrder.Descending. It
+ * starts at the leaf holding the last entry <= hi_key and walks the leaf
+ * chain backwards through prev links, copying one leaf at a time, so it
+ * holds no pin between calls and a query for the last n entries of a range
+ * reads only the leaves those entries are on.
+ * <p>
+ * Splits only ever move entries to a new page right after the one split,
+ * so leaves split off the previous leaf since it was located are found
+ * between it and the last leaf copied, and copied with it. As in
+ * BTLinkScan, entries with a greater key than the last one returned, and
+ * entries with an equal key whose rid it returned, are skipped.
+ */
+class BTReverseScan extends BTFileScan {
+
+	private BTreeFile file;
+	private KeyClass lo_key;
+
+	private ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+	private int next;
+	private boolean started;
+	private int prevPage = INVALID_PAGE;
+	private int firstPage = INVALID_PAGE;
+	private boolean done;
+
+	private KeyDataEntry last;
+	private HashSet<Long> lastRun = new HashSet<Long>();
+
+	BTReverseScan(BTreeFile file, KeyClass lo_key, KeyClass hi_key,
+			int keyType, int maxKeysize) {
+		this.file = file;
+		this.lo_key = lo_key;
+		this.bfile = file;
+		this.endkey = hi_key;
+		this.keyType = keyType;
+		this.maxKeysize = maxKeysize;
+	}
+
+	/**
+	 * Iterate once (during a scan), from the largest key down.
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			while (!done) {
+				while (next > 0) {
+					KeyDataEntry entry = entries.get(--next);
+					RID rid = ((LeafData) entry.data).getData();
+					if (last != null) {
+						int cmp = BT.keyCompare(entry.key, last.key);
+						if (cmp > 0 || (cmp == 0 && lastRun.contains(ridKey(rid))))
+							continue;
+						if (cmp < 0)
+							lastRun.clear();
+					} else if (endkey != null
+							&& BT.keyCompare(entry.key, endkey) > 0) {
+						continue;
+					}
+					if (lo_key != null && BT.keyCompare(entry.key, lo_key) < 0) {
+						done = true;
+						break;
+					}
+					last = entry;
+					lastRun.add(ridKey(rid));
+					return entry;
+				}
+				if (done)
+					break;
+
+				entries.clear();
+				if (!started) {
+					started = true;
+					PageId pageno = new PageId();
+					prevPage = file.copyLastLeaf(endkey, pageno, entries);
+					firstPage = pageno.pid;
+				} else if (prevPage == INVALID_PAGE) {
+					done = true;
+				} else {
+					int before = file.copyLeavesBefore(prevPage, firstPage, entries);
+					firstPage = prevPage;
+					prevPage = before;
+				}
+				next = entries.size();
+			}
+			entries.clear();
+			return null;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	private static Long ridKey(RID rid) {
+		return Long.valueOf(((long) rid.pageNo.pid << 32)
+				| (rid.slotNo & 0xffffffffL));
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (last == null)
+			throw new ScanDeleteException(null, "no current entry");
+		try {
+			file.deleteForScan(last.key, ((LeafData) last.data).getData());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		}
+	}
+
+	/**
+	 * destructor. Nothing is pinned between calls, so there is nothing to
+	 * unpin.
+	 */
+	public void DestroyBTreeFileScan() {
+		entries.clear();
+		done = true;
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * @(#) BTSpliterator.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import global.*;
+import bufmgr.*;
+
+/**
+ * BTSpliterator backs {@link BTreeFile#stream(KeyClass, KeyClass)}. It
+ * covers the entries with keys >= lo_key, < end (if set) and <= hi_key, and
+ * reads them with a scan opened on the first tryAdvance. Until then
+ * trySplit hands the part of the range below a separator key of the tree
+ * to a new spliterator and keeps the rest, so the parts are disjoint by key
+ * and a run of duplicates is never divided.
+ * <p>
+ * All the spliterators split off one stream share a set of the ones with
+ * an open scan. A scan is closed as soon as it runs out, and close closes
+ * the rest, for streams cut short by findFirst, limit and the like.
+ */
+class BTSpliterator implements Spliterator<KeyDataEntry> {
+
+	private final BTreeFile file;
+	private final KeyClass hi_key;
+	private final Set<BTSpliterator> open;
+
+	private KeyClass lo_key;
+	private KeyClass end;
+	private BTFileScan scan;
+	private boolean done;
+
+	BTSpliterator(BTreeFile file, KeyClass lo_key, KeyClass hi_key) {
+		this(file, lo_key, hi_key, null, Collections
+				.newSetFromMap(new ConcurrentHashMap<BTSpliterator, Boolean>()));
+	}
+
+	private BTSpliterator(BTreeFile file, KeyClass lo_key, KeyClass hi_key,
+			KeyClass end, Set<BTSpliterator> open) {
+		this.file = file;
+		this.lo_key = lo_key;
+		this.hi_key = hi_key;
+		this.end = end;
+		this.open = open;
+	}
+
+	private static boolean serialized() {
+		return !(SystemDefs.JavabaseBM instanceof ConcurrentBufMgr);
+	}
+
+	public boolean tryAdvance(Consumer<? super KeyDataEntry> action) {
+		if (done)
+			return false;
+		KeyDataEntry entry;
+		try {
+			if (scan == null) {
+				scan = file.new_scan(lo_key, hi_key);
+				open.add(this);
+			}
+			if (serialized()) {
+				synchronized (SystemDefs.JavabaseBM) {
+					entry = scan.get_next();
+				}
+			} else {
+				entry = scan.get_next();
+			}
+			if (entry != null && end != null && BT.keyCompare(entry.key, end) >= 0)
+				entry = null;
+			if (entry == null)
+				closeScan();
+		} catch (Exception e) {
+			done = true;
+			throw new IllegalStateException("scan of " + lo_key + " to "
+					+ hi_key + " failed", e);
+		}
+		if (entry == null)
+			return false;
+		action.accept(entry);
+		return true;
+	}
+
+	/**
+	 * Split off the part of the range below the middle separator key found
+	 * by BTreeFile.separators, if there is one inside the range and
+	 * iteration has not started.
+	 */
+	public Spliterator<KeyDataEntry> trySplit() {
+		if (done || scan != null)
+			return null;
+		List<KeyClass> keys;
+		try {
+			keys = file.separators(lo_key, end);
+			while (!keys.isEmpty() && hi_key != null
+					&& BT.keyCompare(keys.get(keys.size() - 1), hi_key) > 0)
+				keys.remove(keys.size() - 1);
+		} catch (Exception e) {
+			throw new IllegalStateException("split of " + lo_key + " to "
+					+ hi_key + " failed", e);
+		}
+		if (keys.isEmpty())
+			return null;
+		KeyClass mid = keys.get(keys.size() / 2);
+		BTSpliterator prefix = new BTSpliterator(file, lo_key, hi_key, mid, open);
+		lo_key = mid;
+		return prefix;
+	}
+
+	public long estimateSize() {
+		return Long.MAX_VALUE;
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	/*
+	 * Close this spliterator's scan, unpinning its leaf.
+	 */
+	private void closeScan() throws Exception {
+		done = true;
+		if (scan == null)
+			return;
+		open.remove(this);
+		BTFileScan closing = scan;
+		scan = null;
+		if (serialized()) {
+			synchronized (SystemDefs.JavabaseBM) {
+				closing.DestroyBTreeFileScan();
+			}
+		} else {
+			closing.DestroyBTreeFileScan();
+		}
+	}
+
+	/**
+	 * Close every scan still open in the stream this spliterator was split
+	 * from.
+	 */
+	void close() {
+		for (BTSpliterator spliterator : open.toArray(new BTSpliterator[0])) {
+			try {
+				spliterator.closeScan();
+			} catch (Exception e) {
+				throw new IllegalStateException("closing a scan failed", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * @(#) BTTraceDecoder.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * BTTraceDecoder turns a binary trace written by
+ * {@link BTreeFile#traceFilename} back into the text trace the
+ * visualization tool reads:
+ *
+ * <pre>
+ *   java btree.BTTraceDecoder [-all] tracefile [textfile]
+ * </pre>
+ *
+ * Only the VISIT and CHILDREN lines of the text trace are written, unless
+ * -all is given, which adds a line for each insert, delete, split and new
+ * root:
+ *
+ * <pre>
+ *   INSERT key [ page slot ]
+ *   DELETE key [ page slot ]
+ *   SPLIT LEAF page into page
+ *   SPLIT INDEX page into page
+ *   NEW ROOT page over page
+ * </pre>
+ */
+public class BTTraceDecoder {
+
+	private final static String lineSep = System.getProperty("line.separator");
+
+	private final DataInputStream in;
+	private final byte[] record = new byte[BTTracer.RECORD_SIZE];
+
+	private int type;
+	private int page;
+	private int page2;
+	private int slot;
+	private String key;
+
+	private BTTraceDecoder(InputStream in) {
+		this.in = new DataInputStream(in);
+	}
+
+	/**
+	 * Decode a trace.
+	 *
+	 * @param in
+	 *            the binary trace. Input parameter.
+	 * @param out
+	 *            where the text trace is written. Input parameter.
+	 * @param all
+	 *            true to write the insert, delete, split and new root events
+	 *            as well. Input parameter.
+	 * @exception IOException
+	 *                error reading or writing, or the input is not a trace
+	 */
+	public static void decode(InputStream in, Writer out, boolean all)
+			throws IOException {
+		new BTTraceDecoder(in).run(out, all);
+	}
+
+	private void run(Writer out, boolean all) throws IOException {
+		byte[] magic = new byte[BTTracer.MAGIC.length];
+		try {
+			in.readFully(magic);
+			if (!Arrays.equals(magic, BTTracer.MAGIC)
+					|| in.readInt() != BTTracer.RECORD_SIZE)
+				throw new IOException("not a btree trace");
+		} catch (EOFException e) {
+			throw new IOException("not a btree trace");
+		}
+
+		boolean first = false;
+		while (next()) {
+			switch (type) {
+			case BTTracer.VISIT:
+				out.write("VISIT node " + page + lineSep);
+				break;
+			case BTTracer.INDEX_CHILDREN:
+				out.write("INDEX CHILDREN " + page + " nodes" + lineSep);
+				first = true;
+				break;
+			case BTTracer.LEAF_CHILDREN:
+				out.write("LEAF CHILDREN " + page + " nodes" + lineSep);
+				break;
+			case BTTracer.CHILD:
+				// the left link comes first, set off by one space
+				out.write((first ? " " : "   ") + page);
+				first = false;
+				break;
+			case BTTracer.ENTRY:
+				out.write("   " + key + " [ " + page2 + " " + slot + " ]");
+				break;
+			case BTTracer.END:
+				out.write(lineSep);
+				break;
+			case BTTracer.SPLIT_LEAF:
+			case BTTracer.SPLIT_INDEX:
+				if (all)
+					out.write("SPLIT " + ((type == BTTracer.SPLIT_LEAF) ? "LEAF " : "INDEX ")
+							+ page + " into " + page2 + lineSep);
+				break;
+			case BTTracer.NEW_ROOT:
+				if (all)
+					out.write("NEW ROOT " + page + " over " + page2 + lineSep);
+				break;
+			case BTTracer.INSERT:
+			case BTTracer.DELETE:
+				if (all)
+					out.write(((type == BTTracer.INSERT) ? "INSERT " : "DELETE ") + key
+							+ " [ " + page2 + " " + slot + " ]" + lineSep);
+				break;
+			default:
+				throw new IOException("bad record type " + type);
+			}
+		}
+		out.flush();
+	}
+
+	/*
+	 * Read the next event, with its string key, if any. Returns false at the
+	 * end of the trace.
+	 */
+	private boolean next() throws IOException {
+		int n = in.read(record);
+		if (n < 0)
+			return false;
+		if (n < record.length)
+			in.readFully(record, n, record.length - n);
+		DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+		type = fields.readUnsignedByte();
+		int keyType = fields.readUnsignedByte();
+		int length = fields.readUnsignedShort();
+		page = fields.readInt();
+		page2 = fields.readInt();
+		slot = fields.readInt();
+		fields.readLong(); // the time
+		long intKey = fields.readLong();
+
+		key = null;
+		if (keyType == BTTracer.KEY_INTEGER) {
+			key = String.valueOf(intKey);
+		} else if (keyType == BTTracer.KEY_STRING) {
+			byte[] utf = new byte[length];
+			for (int off = 0; off < length; off += BTTracer.KEY_BYTES) {
+				in.readFully(record);
+				if (record[0] != BTTracer.KEY)
+					throw new IOException("string key cut short");
+				System.arraycopy(record, 1, utf, off,
+						Math.min(BTTracer.KEY_BYTES, length - off));
+			}
+			key = new String(utf, StandardCharsets.UTF_8);
+		}
+		return true;
+	}
+
+	public static void main(String argv[]) {
+		boolean all = false;
+		int arg = 0;
+		if (arg < argv.length && argv[arg].equals("-all")) {
+			all = true;
+			arg++;
+		}
+		if (argv.length - arg < 1 || argv.length - arg > 2) {
+			System.err.println("usage: java btree.BTTraceDecoder [-all] tracefile [textfile]");
+			Runtime.getRuntime().exit(2);
+		}
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(argv[arg]));
+			Writer out = new BufferedWriter(new OutputStreamWriter(
+					(argv.length - arg == 2) ? new FileOutputStream(argv[arg + 1])
+							: (OutputStream) System.out, StandardCharsets.UTF_8));
+			try {
+				decode(in, out, all);
+			} finally {
+				in.close();
+				out.flush();
+				if (argv.length - arg == 2)
+					out.close();
+			}
+		} catch (IOException e) {
+			System.err.println(argv[arg] + ": " + e.getMessage());
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * @(#) BTTracer.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * BTTracer is the trace started by {@link BTreeFile#traceFilename}. Events
+ * are fixed-size binary records, written into a ring buffer by the threads
+ * using the tree and copied to the trace file by a background thread, so
+ * tracing costs a few stores per event instead of building a line of text
+ * and flushing it.
+ * <p>
+ * A thread claims a run of records by adding to the head sequence number,
+ * writes them, and publishes each one by storing its sequence number in a
+ * slot of its own; the writer thread follows behind, copying published
+ * records out in order. Runs are contiguous, so the children of a page
+ * are never interleaved with other events. When the ring is full, the
+ * threads adding events wait for the writer rather than lose them.
+ * <p>
+ * The file starts with the eight bytes "BTTRACE1" and the record size.
+ * Each record is RECORD_SIZE bytes:
+ *
+ * <pre>
+ *   0  type
+ *   1  key type: 0 none, 1 integer, 2 string
+ *   2  short, length of a string key in bytes
+ *   4  int, page
+ *   8  int, second page, or the page of a rid
+ *  12  int, slot of a rid
+ *  16  long, System.nanoTime()
+ *  24  long, integer key
+ * </pre>
+ *
+ * A string key follows its record in KEY records, each the type byte and
+ * up to 31 bytes of the key in UTF-8. {@link BTTraceDecoder} turns a trace
+ * file back into the text the visualization tool reads.
+ */
+class BTTracer {
+
+	static final int RECORD_SIZE = 32;
+	static final byte[] MAGIC = { 'B', 'T', 'T', 'R', 'A', 'C', 'E', '1' };
+
+	/** A page visited on the way down to a leaf. */
+	static final int VISIT = 1;
+	/** Starts the children of an index page: CHILD records, then END. */
+	static final int INDEX_CHILDREN = 2;
+	/** Starts the entries of a leaf page: ENTRY records, then END. */
+	static final int LEAF_CHILDREN = 3;
+	static final int CHILD = 4;
+	static final int ENTRY = 5;
+	static final int END = 6;
+	/** Continues the string key of the record before it. */
+	static final int KEY = 7;
+	/** A leaf split: page moved its upper half to page2. */
+	static final int SPLIT_LEAF = 8;
+	static final int SPLIT_INDEX = 9;
+	/** A new root, page, above the old root, page2. */
+	static final int NEW_ROOT = 10;
+	static final int INSERT = 11;
+	static final int DELETE = 12;
+
+	static final int KEY_NONE = 0;
+	static final int KEY_INTEGER = 1;
+	static final int KEY_STRING = 2;
+
+	static final int KEY_BYTES = RECORD_SIZE - 1;
+
+	private static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private final byte[] ring;
+	private final int mask;
+	private final int capacity;
+	private final AtomicLongArray published;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	/** Claims past the closed check that have not yet added to head. */
+	private final AtomicInteger claiming = new AtomicInteger();
+
+	private final OutputStream out;
+	private final Thread writer;
+	private volatile boolean closed;
+	private IOException error;
+
+	BTTracer(String filename) throws IOException {
+		this(filename, DEFAULT_CAPACITY);
+	}
+
+	/*
+	 * capacity is the size of the ring in records, a power of two.
+	 */
+	BTTracer(String filename, int capacity) throws IOException {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+			throw new IllegalArgumentException("capacity " + capacity
+					+ " is not a power of two");
+		this.capacity = capacity;
+		mask = capacity - 1;
+		ring = new byte[capacity * RECORD_SIZE];
+		published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++)
+			published.set(i, -1);
+
+		out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+		out.write(MAGIC);
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(RECORD_SIZE);
+
+		writer = new Thread("BTTracer " + filename) {
+			public void run() {
+				drain();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/*
+	 * Records needed for an event with this key.
+	 */
+	static int records(KeyClass key) {
+		if (key instanceof StringKey)
+			return 1 + (utf(key).length + KEY_BYTES - 1) / KEY_BYTES;
+		return 1;
+	}
+
+	private static byte[] utf(KeyClass key) {
+		return ((StringKey) key).getKey().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Add one event.
+	 *
+	 * @param type
+	 *            the record type. Input parameter.
+	 * @param page
+	 *            the page. Input parameter.
+	 * @param page2
+	 *            the second page, or the page of a rid. Input parameter.
+	 * @param slot
+	 *            the slot of a rid. Input parameter.
+	 * @param key
+	 *            the key, or null. Input parameter.
+	 */
+	void event(int type, int page, int page2, int slot, KeyClass key) {
+		long seq = claim(records(key));
+		if (seq >= 0)
+			put(seq, type, page, page2, slot, key);
+	}
+
+	/**
+	 * Claim a run of records, waiting for the writer if the ring is full.
+	 *
+	 * @param n
+	 *            the number of records. Input parameter.
+	 * @return the sequence number of the first, or -1 if the trace has
+	 *         been closed
+	 */
+	long claim(int n) {
+		if (n > capacity)
+			throw new IllegalArgumentException(n + " records do not fit in a ring of "
+					+ capacity);
+		// a claimed run must be published, or the writer would wait for it
+		// forever; so only a closed trace refuses a claim, and a full ring
+		// is waited out even while closing, as the writer drains up to head.
+		// A claim that passed the check is counted until it is in head, so
+		// the writer cannot see head and stop before the claim adds to it.
+		claiming.incrementAndGet();
+		if (closed) {
+			claiming.decrementAndGet();
+			return -1;
+		}
+		long seq = head.getAndAdd(n);
+		claiming.decrementAndGet();
+		while (seq + n - tail.get() > capacity) {
+			LockSupport.unpark(writer);
+			Thread.yield();
+		}
+		return seq;
+	}
+
+	/**
+	 * Write and publish the record(s) for one event at a claimed sequence
+	 * number.
+	 *
+	 * @return the sequence number after them
+	 */
+	long put(long seq, int type, int page, int page2, int slot, KeyClass key) {
+		int keyType = KEY_NONE;
+		long intKey = 0;
+		byte[] str = null;
+		if (key instanceof IntegerKey) {
+			keyType = KEY_INTEGER;
+			intKey = ((IntegerKey) key).getKey().intValue();
+		} else if (key instanceof StringKey) {
+			keyType = KEY_STRING;
+			str = utf(key);
+		}
+
+		int pos = (int) (seq & mask) * RECORD_SIZE;
+		ring[pos] = (byte) type;
+		ring[pos + 1] = (byte) keyType;
+		putShort(pos + 2, (str == null) ? 0 : str.length);
+		putInt(pos + 4, page);
+		putInt(pos + 8, page2);
+		putInt(pos + 12, slot);
+		putLong(pos + 16, System.nanoTime());
+		putLong(pos + 24, intKey);
+		published.lazySet((int) (seq & mask), seq);
+		seq++;
+
+		for (int off = 0; str != null && off < str.length; off += KEY_BYTES) {
+			pos = (int) (seq & mask) * RECORD_SIZE;
+			ring[pos] = (byte) KEY;
+			int len = Math.min(KEY_BYTES, str.length - off);
+			System.arraycopy(str, off, ring, pos + 1, len);
+			published.lazySet((int) (seq & mask), seq);
+			seq++;
+		}
+		return seq;
+	}
+
+	private void putShort(int pos, int v) {
+		ring[pos] = (byte) (v >>> 8);
+		ring[pos + 1] = (byte) v;
+	}
+
+	private void putInt(int pos, int v) {
+		ring[pos] = (byte) (v >>> 24);
+		ring[pos + 1] = (byte) (v >>> 16);
+		ring[pos + 2] = (byte) (v >>> 8);
+		ring[pos + 3] = (byte) v;
+	}
+
+	private void putLong(int pos, long v) {
+		putInt(pos, (int) (v >>> 32));
+		putInt(pos + 4, (int) v);
+	}
+
+	/*
+	 * The writer thread: copy published records to the file in order,
+	 * flushing whenever it catches up, until the trace is closed and
+	 * every claimed record is out. After an error records are still
+	 * taken off the ring, so threads adding events never wait on a
+	 * writer that has stopped.
+	 */
+	private void drain() {
+		long next = tail.get();
+		while (true) {
+			long start = next;
+			while (published.get((int) (next & mask)) == next) {
+				if (error == null) {
+					try {
+						out.write(ring, (int) (next & mask) * RECORD_SIZE, RECORD_SIZE);
+					} catch (IOException e) {
+						error = e;
+					}
+				}
+				next++;
+				if (next - start == capacity / 4)
+					break;
+			}
+			if (next != start) {
+				tail.set(next);
+				continue;
+			}
+			// claiming before head: a claim counted there has added to head
+			if (closed && claiming.get() == 0 && next == head.get())
+				break;
+			if (error == null) {
+				try {
+					out.flush();
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+			LockSupport.parkNanos(this, 1000000);
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			if (error == null)
+				error = e;
+		}
+	}
+
+	/**
+	 * Stop taking events, wait for the writer to copy out the ones taken,
+	 * and close the file.
+	 *
+	 * @exception IOException
+	 *                the trace file could not be written
+	 */
+	void close() throws IOException {
+		closed = true;
+		LockSupport.unpark(writer);
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (error != null)
+			throw error;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * @(#) BTreeCompactor.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * BTreeCompactor packs the pages of a BTreeFile back to a target fill
+ * factor, online: the work is done in small steps, and between steps the
+ * file is an ordinary, valid tree that lookups, scans, inserts and deletes
+ * can use as usual.
+ * <p>
+ * The job goes up the tree one level at a time. At the first level it
+ * visits the parents of the leaves left to right and packs each parent's
+ * leaves: neighbours that fit together on one page at the fill factor are
+ * merged, the right one is unlinked from the leaf chain and freed, and
+ * otherwise entries move left until the left page is full to the fill
+ * factor. Empty leaves left by naive deletes disappear this way. The next
+ * levels do the same for the index pages, which is how the index is
+ * rebuilt at the fill factor. Finally an index root left with a single
+ * child is dropped, as often as that shortens the tree. Pages are only
+ * merged with siblings under the same parent.
+ * <p>
+ * A step must not run at the same time as another call on the file, and
+ * the job is not for files in concurrent mode. Where it has got to is
+ * kept as a key, so the file may change between steps.
+ */
+public class BTreeCompactor {
+
+	private final BTreeFile file;
+	private final double fillFactor;
+
+	private int level = 1;
+	private KeyClass cursor;
+	private boolean done;
+	private int reclaimed;
+	private int height;
+
+	/**
+	 * Create a compaction job for a file; it starts with the first step.
+	 *
+	 * @param file
+	 *            the file to compact. Input parameter.
+	 * @param fillFactor
+	 *            fraction of each page to fill, in (0, 1]. Input parameter.
+	 */
+	public BTreeCompactor(BTreeFile file, double fillFactor) {
+		if (fillFactor <= 0.0 || fillFactor > 1.0)
+			throw new IllegalArgumentException("fill factor out of range");
+		this.file = file;
+		this.fillFactor = fillFactor;
+	}
+
+	/**
+	 * Do the next part of the job: pack the children of up to
+	 * <code>pages</code> index pages.
+	 *
+	 * @param pages
+	 *            number of index pages whose children are packed. Input
+	 *            parameter.
+	 * @return true if the job is finished
+	 * @exception LeafRedistributeException
+	 *                error moving entries between leaf pages
+	 * @exception RedistributeException
+	 *                error moving entries between index pages
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public boolean step(int pages) throws LeafRedistributeException,
+			RedistributeException, KeyNotMatchException, PinPageException,
+			UnpinPageException, FreePageException, IteratorException,
+			ConstructPageException, IOException {
+		KeyClass[] upper = new KeyClass[1];
+		for (int i = 0; i < pages && !done; i++) {
+			PageId parent = file.levelPage(cursor, level, upper);
+			if (parent == null) {
+				reclaimed += file.collapseRoot();
+				height = file.height();
+				done = true;
+				break;
+			}
+			reclaimed += file.packChildren(parent, fillFactor);
+			if (upper[0] == null) {
+				level++;
+				cursor = null;
+			} else {
+				cursor = upper[0];
+			}
+		}
+		return done;
+	}
+
+	/**
+	 * Run the job to the end in steps of a few pages.
+	 *
+	 * @exception LeafRedistributeException
+	 *                error moving entries between leaf pages
+	 * @exception RedistributeException
+	 *                error moving entries between index pages
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void run() throws LeafRedistributeException,
+			RedistributeException, KeyNotMatchException, PinPageException,
+			UnpinPageException, FreePageException, IteratorException,
+			ConstructPageException, IOException {
+		while (!step(8))
+			;
+	}
+
+	/**
+	 * True once the job has finished.
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Number of pages freed so far.
+	 */
+	public int getPagesReclaimed() {
+		return reclaimed;
+	}
+
+	/**
+	 * Height of the tree, leaves included, when the job finished; 0 before.
+	 */
+	public int getHeight() {
+		return height;
+	}
+}
@@ -8,6 +8,11 @@
 package btree;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 import diskmgr.*;
 import bufmgr.*;
@@ -22,15 +27,22 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private final static int MAGIC0 = 1989;
 
-	private final static String lineSep = System.getProperty("line.separator");
+	/*
+	 * Header slot 4 holds option flags in its length field, with MAGIC0 in
+	 * its offset field; files written before the slot was used have no
+	 * MAGIC0 there and no options.
+	 */
+	private final static int FLAGS_SLOT = 4;
+	private final static int SUFFIX_TRUNCATION = 1;
 
-	private static FileOutputStream fos;
-	private static DataOutputStream trace;
+	private static volatile BTTracer tracer;
 
 	/**
 	 * It causes a structured trace to be written to a file. This output is used
 	 * to drive a visualization tool that shows the inner workings of the b-tree
-	 * during its operations.
+	 * during its operations. The trace is binary, written by a background
+	 * thread, and complete once destroyTrace returns; BTTraceDecoder turns it
+	 * into the text the visualization tool reads.
 	 *
 	 * @param filename
 	 *            input parameter. The trace file name
@@ -39,8 +51,18 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 */
 	public static void traceFilename(String filename) throws IOException {
 
-		fos = new FileOutputStream(filename);
-		trace = new DataOutputStream(fos);
+		BTTracer old = tracer;
+		tracer = new BTTracer(filename);
+		if (old != null)
+			old.close();
+	}
+
+	/**
+	 * Stop the background threads of read-ahead scans once their current
+	 * reads finish. Reads ahead started afterwards get new threads.
+	 */
+	public static void stopReadAhead() {
+		BTReadAheadScan.shutdown();
 	}
 
 	/**
@@ -50,17 +72,145 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *                error from the lower layer
 	 */
 	public static void destroyTrace() throws IOException {
-		if (trace != null)
-			trace.close();
-		if (fos != null)
-			fos.close();
-		fos = null;
-		trace = null;
+		BTTracer old = tracer;
+		tracer = null;
+		if (old != null)
+			old.close();
 	}
 
 	private BTreeHeaderPage headerPage;
 	private PageId headerPageId;
 	private String dbname;
+	private BTreeFileStats stats;
+
+	/*
+	 * Concurrent mode: page latches, and a latch over the root id in the
+	 * header page. latches is null when the file is used by one thread.
+	 */
+	private BTLatchTable latches;
+	private final ReentrantReadWriteLock rootLatch = new ReentrantReadWriteLock();
+
+	/**
+	 * Switch concurrent mode on or off. In concurrent mode insert, Delete and
+	 * the scans from new_scan may run in many threads at once: pages are
+	 * latched (readers shared, writers exclusive, parents released as soon
+	 * as a child cannot split) and scans copy one leaf at a time and follow
+	 * the leaf chain, so they never hold a latch between calls. bulkLoad,
+	 * close and destroyFile still need the file to themselves. Calls into
+	 * the buffer manager are serialized on SystemDefs.JavabaseBM, unless it
+	 * is a ConcurrentBufMgr.
+	 *
+	 * @param concurrent
+	 *            true to allow concurrent callers. Input parameter.
+	 */
+	public void setConcurrent(boolean concurrent) {
+		latches = concurrent ? new BTLatchTable() : null;
+	}
+
+	/*
+	 * Resident mode: the index pages of the top residentLevels levels, by
+	 * page number, each pinned once for as long as it is in the map.
+	 * pinPage and unpinPage hand them out without going to the buffer
+	 * manager, and remember in residentDirty which ones were unpinned dirty.
+	 * A root change or an index split sets residentStale, and the next
+	 * insert, Delete or new_scan rebuilds the map. resident is null when
+	 * the mode is off.
+	 */
+	private Map<Integer, Page> resident;
+	private Set<Integer> residentDirty;
+	private int residentLevels;
+	private boolean residentStale;
+
+	/**
+	 * Keep the top levels of index pages pinned. A descent then goes to the
+	 * buffer manager only below those levels, so with two levels on a tree
+	 * of height three a lookup pins just its leaf. The resident pages are
+	 * found again after the root changes or an index page splits. At most a
+	 * quarter of the buffer pool is kept resident; the pages below that are
+	 * pinned as usual. Ignored in concurrent mode. close and destroyFile
+	 * unpin the pages.
+	 *
+	 * @param levels
+	 *            number of index levels to keep pinned, counting the root
+	 *            as one; 0 turns the mode off. Input parameter.
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void setResidentLevels(int levels) throws UnpinPageException {
+		dropResident();
+		if (levels > 0) {
+			resident = new ConcurrentHashMap<Integer, Page>();
+			residentDirty = new HashSet<Integer>();
+			residentLevels = levels;
+			residentStale = true;
+		}
+	}
+
+	/**
+	 * Number of index pages kept pinned in resident mode, as of the last
+	 * insert, Delete or new_scan.
+	 */
+	public int getResidentPages() {
+		return (resident == null) ? 0 : resident.size();
+	}
+
+	private Page residentPage(PageId pageno) {
+		if (resident == null || latches != null)
+			return null;
+		return resident.get(pageno.pid);
+	}
+
+	/*
+	 * Pin the top residentLevels levels again, breadth first from the root,
+	 * if the tree has changed shape since they were pinned. Leaves are never
+	 * kept resident.
+	 */
+	private void refreshResident() throws IOException, PinPageException,
+			UnpinPageException {
+		if (resident == null || !residentStale || latches != null)
+			return;
+		dropResident();
+		resident = new ConcurrentHashMap<Integer, Page>();
+		residentDirty = new HashSet<Integer>();
+		residentStale = false;
+
+		int limit = SystemDefs.JavabaseBM.getNumBuffers() / 4;
+		List<Integer> level = new ArrayList<Integer>();
+		int root = headerPage.get_rootId().pid;
+		if (root != INVALID_PAGE)
+			level.add(root);
+		for (int depth = 0; depth < residentLevels && !level.isEmpty(); depth++) {
+			List<Integer> below = new ArrayList<Integer>();
+			for (int pid : level) {
+				if (resident.size() >= limit)
+					return;
+				PageId pageno = new PageId(pid);
+				Page page = pinPage(pageno);
+				byte[] data = page.getpage();
+				if (BTPageOps.pageType(data) != NodeType.INDEX) {
+					unpinPage(pageno);
+					continue;
+				}
+				resident.put(pid, page);
+				for (int pos = 0; pos <= BTPageOps.slotCount(data); pos++)
+					below.add(BTPageOps.childPid(data, pos));
+			}
+			level = below;
+		}
+	}
+
+	/*
+	 * Unpin every resident page, dirty if it was changed while resident.
+	 */
+	private void dropResident() throws UnpinPageException {
+		if (resident == null)
+			return;
+		Map<Integer, Page> map = resident;
+		resident = null;
+		for (int pid : map.keySet())
+			unpinPage(new PageId(pid), residentDirty.contains(pid));
+		residentDirty = null;
+	}
 
 	/**
 	 * Access method to data member.
@@ -82,9 +232,20 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	private Page pinPage(PageId pageno) throws PinPageException {
+		BTreeFileStats.pinned();
+		Page page = residentPage(pageno);
+		if (page != null)
+			return page;
 		try {
-			Page page = new Page();
-			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			page = new Page();
+			if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr) {
+				((ConcurrentBufMgr) SystemDefs.JavabaseBM).pinPage(pageno, page,
+						false/* Rdisk */, dbname);
+			} else {
+				synchronized (SystemDefs.JavabaseBM) {
+					SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+				}
+			}
 			return page;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -103,8 +264,16 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	private void unpinPage(PageId pageno) throws UnpinPageException {
+		if (residentPage(pageno) != null)
+			return;
 		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
+			if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr) {
+				SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
+			} else {
+				synchronized (SystemDefs.JavabaseBM) {
+					SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
+				}
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new UnpinPageException(e, "");
@@ -112,8 +281,19 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	private void freePage(PageId pageno) throws FreePageException {
+		// The caller's pin of a resident page is the resident one
+		if (residentPage(pageno) != null) {
+			resident.remove(pageno.pid);
+			residentDirty.remove(pageno.pid);
+		}
 		try {
-			SystemDefs.JavabaseBM.freePage(pageno);
+			if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr) {
+				SystemDefs.JavabaseBM.freePage(pageno);
+			} else {
+				synchronized (SystemDefs.JavabaseBM) {
+					SystemDefs.JavabaseBM.freePage(pageno);
+				}
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new FreePageException(e, "");
@@ -133,14 +313,58 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private void unpinPage(PageId pageno, boolean dirty)
 			throws UnpinPageException {
+		if (residentPage(pageno) != null) {
+			if (dirty)
+				residentDirty.add(pageno.pid);
+			return;
+		}
 		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+			if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr) {
+				SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+			} else {
+				synchronized (SystemDefs.JavabaseBM) {
+					SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+				}
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new UnpinPageException(e, "");
 		}
 	}
 
+	/*
+	 * BufMgr is not thread-safe, so calls into it are serialized on it
+	 * unless it is a ConcurrentBufMgr. The page constructors that take only
+	 * a key type allocate the page through the buffer manager, so they are
+	 * serialized the same way; a ConcurrentBufMgr is told the new page is
+	 * this file's.
+	 */
+	private BTLeafPage newLeafPage() throws ConstructPageException,
+			IOException {
+		if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr) {
+			BTLeafPage page = new BTLeafPage(headerPage.get_keyType());
+			((ConcurrentBufMgr) SystemDefs.JavabaseBM).setOwner(
+					page.getCurPage(), dbname);
+			return page;
+		}
+		synchronized (SystemDefs.JavabaseBM) {
+			return new BTLeafPage(headerPage.get_keyType());
+		}
+	}
+
+	private BTIndexPage newIndexPage() throws ConstructPageException,
+			IOException {
+		if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr) {
+			BTIndexPage page = new BTIndexPage(headerPage.get_keyType());
+			((ConcurrentBufMgr) SystemDefs.JavabaseBM).setOwner(
+					page.getCurPage(), dbname);
+			return page;
+		}
+		synchronized (SystemDefs.JavabaseBM) {
+			return new BTIndexPage(headerPage.get_keyType());
+		}
+	}
+
 	/**
 	 * BTreeFile class an index file with given filename should already exist;
 	 * this opens it.
@@ -161,6 +385,10 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		headerPage = new BTreeHeaderPage(headerPageId);
 		dbname = new String(filename);
+		if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr)
+			((ConcurrentBufMgr) SystemDefs.JavabaseBM).setOwner(headerPageId, dbname);
+		stats = new BTreeFileStats(this, dbname);
+		stats.register();
 		/*
 		 * 
 		 * - headerPageId is the PageId of this BTreeFile's header page; -
@@ -193,6 +421,43 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public BTreeFile(String filename, int keytype, int keysize,
 			int delete_fashion) throws GetFileEntryException,
 			ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, false);
+	}
+
+	/**
+	 * if index file exists, open it; else create it, optionally with suffix
+	 * truncation. With suffix truncation, a leaf split in a tree of string
+	 * keys pushes up the shortest prefix of the new leaf's first key that
+	 * is still greater than the last key left behind, instead of the whole
+	 * key, so index pages hold more, shorter separators. The option is kept
+	 * in the header page; an existing file keeps the option it was created
+	 * with.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param suffixTruncation
+	 *            true to truncate separators; ignored unless keytype is
+	 *            AttrType.attrString. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, boolean suffixTruncation)
+			throws GetFileEntryException, ConstructPageException,
+			IOException, AddFileEntryException {
 
 		headerPageId = get_file_entry(filename);
 		if (headerPageId == null) // file not exist
@@ -206,16 +471,33 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			headerPage.set_maxKeySize(keysize);
 			headerPage.set_deleteFashion(delete_fashion);
 			headerPage.setType(NodeType.BTHEAD);
+			headerPage.setSlot(FLAGS_SLOT, (suffixTruncation
+					&& keytype == AttrType.attrString) ? SUFFIX_TRUNCATION : 0,
+					MAGIC0);
 		} else {
 			headerPage = new BTreeHeaderPage(headerPageId);
 		}
 
 		dbname = new String(filename);
+		if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr)
+			((ConcurrentBufMgr) SystemDefs.JavabaseBM).setOwner(headerPageId, dbname);
+		stats = new BTreeFileStats(this, dbname);
+		stats.register();
+	}
 
+	/**
+	 * The operation counters of this file, which are also registered with
+	 * the platform MBean server while the file is open.
+	 *
+	 * @return the statistics of this file
+	 */
+	public BTreeFileStats getStats() {
+		return stats;
 	}
 
 	/**
-	 * Close the B+ tree file. Unpin header page.
+	 * Close the B+ tree file. Unpin header page, and the resident pages, and
+	 * unregister the file's statistics.
 	 *
 	 * @exception PageUnpinnedException
 	 *                error from the lower layer
@@ -230,8 +512,16 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			InvalidFrameNumberException, HashEntryNotFoundException,
 			ReplacerException {
 		if (headerPage != null) {
+			if (resident != null) {
+				for (int pid : resident.keySet())
+					SystemDefs.JavabaseBM.unpinPage(new PageId(pid),
+							residentDirty.contains(pid));
+				resident = null;
+				residentDirty = null;
+			}
 			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
 			headerPage = null;
+			stats.unregister();
 		}
 	}
 
@@ -257,6 +547,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			UnpinPageException, FreePageException, DeleteFileEntryException,
 			ConstructPageException, PinPageException {
 		if (headerPage != null) {
+			dropResident();
 			PageId pgId = headerPage.get_rootId();
 			if (pgId.pid != INVALID_PAGE)
 				_destroyFile(pgId);
@@ -264,6 +555,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			freePage(headerPageId);
 			delete_file_entry(dbname);
 			headerPage = null;
+			stats.unregister();
 		}
 	}
 
@@ -286,32 +578,41 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				childId = ((IndexData) (entry.data)).getData();
 				_destroyFile(childId);
 			}
-		} else { // BTLeafPage
-
-			unpinPage(pageno);
-			freePage(pageno);
+			_destroyFile(indexPage.getPrevPage());
 		}
 
-	}
-
-	private void updateHeader(PageId newRoot) throws IOException,
-			PinPageException, UnpinPageException {
-
-		BTreeHeaderPage header;
-		PageId old_data;
+		unpinPage(pageno);
+		freePage(pageno);
 
-		header = new BTreeHeaderPage(pinPage(headerPageId));
-
-		old_data = headerPage.get_rootId();
-		header.set_rootId(newRoot);
-		
-		// clock in dirty bit to bm so our dtor needn't have to worry about it
-		unpinPage(headerPageId, true /* = DIRTY */);
+	}
 
+	private boolean truncatesSuffixes() throws IOException {
+		return headerPage.getSlotOffset(FLAGS_SLOT) == MAGIC0
+				&& (headerPage.getSlotLength(FLAGS_SLOT) & SUFFIX_TRUNCATION) != 0;
+	}
 
-		// ASSERTIONS:
-		// - headerPage, headerPageId valid, pinned and marked as dirty
+	/*
+	 * The key to push up between two leaves: the right leaf's first key,
+	 * or with suffix truncation its shortest prefix that is still greater
+	 * than the left leaf's last key.
+	 */
+	private KeyClass separator(KeyClass leftLast, KeyClass rightFirst)
+			throws IOException {
+		if (!(rightFirst instanceof StringKey) || !truncatesSuffixes())
+			return rightFirst;
+		String right = ((StringKey) rightFirst).getKey();
+		String sep = BTPageOps.shortSeparator(((StringKey) leftLast).getKey(),
+				right);
+		return (sep.length() == right.length()) ? rightFirst : new StringKey(sep);
+	}
 
+	/*
+	 * The header page stays pinned while the file is open, and close()
+	 * unpins it dirty, so the new root id is written straight into it.
+	 */
+	private void updateHeader(PageId newRoot) throws IOException {
+		headerPage.set_rootId(newRoot);
+		residentStale = true;
 	}
 
 	/**
@@ -365,49 +666,87 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		    // No need for validation, since BTTest.GetStuff.getChoice() has to be an integer
 		    // Meaning the key will always be an integer
 		
-		// When the tree is empty
-		if (headerPage.get_rootId().pid == INVALID_PAGE) {
-			// Create a leaf page
-			BTLeafPage newRootPage = new BTLeafPage(headerPage.get_keyType());
-			PageId newRootPageId = newRootPage.getCurPage();
-			
-			// Initialize the leaf page
-			newRootPage.setNextPage(new PageId(INVALID_PAGE));
-			newRootPage.setPrevPage(headerPage.get_rootId());
-			newRootPage.insertRecord(key, rid);
-			headerPage.setNextPage(newRootPageId);
-			
-			// Unpin the page
-			unpinPage(newRootPageId, true /* = DIRTY */);
-			
-			// Update the header page
-			updateHeader(newRootPageId);
-		} 
-		// Insert new data entries to the tree by calling function _insert()
-		else {
-			// Check for a split
-			KeyDataEntry newRootEntry = _insert(key, rid, headerPage.getNextPage());
+		long start = System.nanoTime();
+		long pins = BTreeFileStats.pins();
+		BTTracer t = tracer;
+		if (t != null)
+			t.event(BTTracer.INSERT, 0, rid.pageNo.pid, rid.slotNo, key);
+		try {
+			if (latches != null) {
+				insertLatched(key, rid);
+				return;
+			}
+			refreshResident();
 			
-			// Split occurs
-			if (newRootEntry != null) {
-				// Create an index page
-				BTIndexPage newRootPage = new BTIndexPage(headerPage.get_keyType());
-				PageId newRootPageId = newRootPage.getCurPage();
-				
-				// Initialize the index page
-				newRootPage.insertKey(newRootEntry.key, ((IndexData)newRootEntry.data).getData());
-				newRootPage.setPrevPage(headerPage.get_rootId());
-				headerPage.setNextPage(newRootPageId);
+			// When the tree is empty
+			if (headerPage.get_rootId().pid == INVALID_PAGE) {
+				insertFirst(key, rid);
+			} 
+			// Insert new data entries to the tree by calling function _insert()
+			else {
+				// Check for a split
+				KeyDataEntry newRootEntry = _insert(key, rid, headerPage.getNextPage());
 				
-				// Unpin the page
-				unpinPage(newRootPageId, true /* = DIRTY */);
+				// Split occurs
+				if (newRootEntry != null) {
+					growRoot(newRootEntry);
+				}
 				
-				// Update the header page
-				updateHeader(newRootPageId);
-			}
-			
-		}// End of else
+			}// End of else
+		} finally {
+			stats.record(BTreeFileStats.INSERT, start, pins);
+		}
+	}
+
+	/*
+	 * Make a leaf holding <key, rid> the root of an empty tree.
+	 */
+	private void insertFirst(KeyClass key, RID rid) throws IOException,
+			ConstructPageException, LeafInsertRecException,
+			UnpinPageException, PinPageException {
+		// Create a leaf page
+		BTLeafPage newRootPage = newLeafPage();
+		PageId newRootPageId = newRootPage.getCurPage();
+		
+		// Initialize the leaf page
+		newRootPage.setNextPage(new PageId(INVALID_PAGE));
+		newRootPage.setPrevPage(headerPage.get_rootId());
+		newRootPage.insertRecord(key, rid);
+		headerPage.setNextPage(newRootPageId);
+		
+		// Unpin the page
+		unpinPage(newRootPageId, true /* = DIRTY */);
+		
+		// Update the header page
+		updateHeader(newRootPageId);
+	}
+
+	/*
+	 * The root split: put a new index page above it with the old root as its
+	 * left link and the pushed-up entry as its only key.
+	 */
+	private void growRoot(KeyDataEntry upEntry) throws IOException,
+			ConstructPageException, IndexInsertRecException,
+			UnpinPageException, PinPageException {
+		stats.rootSplit();
+		// Create an index page
+		BTIndexPage newRootPage = newIndexPage();
+		PageId newRootPageId = newRootPage.getCurPage();
+		BTTracer t = tracer;
+		if (t != null)
+			t.event(BTTracer.NEW_ROOT, newRootPageId.pid,
+					headerPage.get_rootId().pid, 0, null);
+		
+		// Initialize the index page
+		newRootPage.insertKey(upEntry.key, ((IndexData)upEntry.data).getData());
+		newRootPage.setPrevPage(headerPage.get_rootId());
+		headerPage.setNextPage(newRootPageId);
 		
+		// Unpin the page
+		unpinPage(newRootPageId, true /* = DIRTY */);
+		
+		// Update the header page
+		updateHeader(newRootPageId);
 	}
 
 	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId)
@@ -418,24 +757,21 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			KeyNotMatchException, NodeNotMatchException, InsertException
 
 	{
-		// Create an empty page
-		Page page = new Page();
-		page = pinPage(currentPageId);
-		// Create a BTSortedPage - currentpage
-		BTSortedPage currentpage = new BTSortedPage(page, AttrType.attrInteger);
-		// Create a KeyDataEntry upEntry
-		KeyDataEntry upEntry = new KeyDataEntry(key, rid);
+		// Pin the current page
+		Page page = pinPage(currentPageId);
+		short pageType = BTPageOps.pageType(page.getpage());
+		KeyDataEntry upEntry;
 		
-		// Check if the currentpage is of type Index
-		if (currentpage.getType() == NodeType.INDEX) {
-			// Create an index page
-			BTIndexPage currentIndexPage = new BTIndexPage(currentpage.getCurPage(),headerPage.get_keyType());
-			PageId currentIndexPageId = currentIndexPage.getCurPage();
-			// PageId of the new key
-			PageId nextPageId = currentIndexPage.getPageNoByKey(key);
+		// Check if the current page is of type Index
+		if (pageType == NodeType.INDEX) {
+			PageId currentIndexPageId = currentPageId;
+			// PageId of the new key: last entry with key <= key, or the left
+			// link, found by comparing against the page bytes in place
+			PageId nextPageId = new PageId(BTPageOps.childPid(page.getpage(),
+					BTPageOps.upperBound(page.getpage(), key)));
 			
-			// Unpin the currentIndexPage
-			unpinPage(currentIndexPageId, true /* = DIRTY */);
+			// Unpin the current index page
+			unpinPage(currentIndexPageId);
 			
 			// Recursive call
 			upEntry = _insert(key, rid, nextPageId);
@@ -446,143 +782,17 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			} 
 			
 			// Pin it again
-			pinPage(currentIndexPageId);
-			
-			// If space available
-			if (currentIndexPage.available_space() >= BT.getKeyDataLength(upEntry.key, NodeType.INDEX)) 
-			{
-				currentIndexPage.insertKey(upEntry.key, ((IndexData)upEntry.data).getData());
-				unpinPage(currentIndexPageId, true /* = DIRTY */);
-				
-				// Done
-				return null;
-			}
-			// If no available space
-			else {
-				BTIndexPage newIndexPage = new BTIndexPage(headerPage.get_keyType());
-				PageId newIndexPageId = newIndexPage.getCurPage();
-				newIndexPage.setNextPage(new PageId(INVALID_PAGE));
-				
-				
-				KeyDataEntry tmpEntry;
-				RID delRID = new RID();
-				
-				// Loop 1: Copy all keys from currentIndexPage to newIndexPage
-				for (tmpEntry = currentIndexPage.getFirst(delRID); 
-					 tmpEntry!= null;
-					 tmpEntry = currentIndexPage.getFirst(delRID)) {
-					
-					// Insert the record to newIndexPage
-					newIndexPage.insertKey(tmpEntry.key, ((IndexData)tmpEntry.data).getData());
-					// Delete the record on currentIndexPage
-					currentIndexPage.deleteSortedRecord(delRID);
-				}
-				
-				// Loop 2: Insert first half back to currentIndexPage
-				for (tmpEntry = newIndexPage.getFirst(delRID);
-					 newIndexPage.available_space() < currentIndexPage.available_space();
-					 tmpEntry = newIndexPage.getFirst(delRID)) {
-					
-					// Insert the record to currentIndexPage
-					currentIndexPage.insertKey(tmpEntry.key, ((IndexData)tmpEntry.data).getData());
-					// Delete the record on newIndexPage
-					newIndexPage.deleteSortedRecord(delRID);
-				}
-				
-				tmpEntry = newIndexPage.getFirst(delRID);
-				// Insert the key to the correct index node
-				if (BT.keyCompare(upEntry.key, tmpEntry.key) > 0) {
-					newIndexPage.insertKey(upEntry.key, ((IndexData)upEntry.data).getData());
-				} else {
-					currentIndexPage.insertKey(upEntry.key, ((IndexData)upEntry.data).getData());
-				}
-				
-				// Unpin the currentIndexPage
-				unpinPage(currentIndexPageId, true /* = DIRTY */);
-				// Fill up
-				upEntry = newIndexPage.getFirst(delRID);
-				// Set the left link of newIndexPage
-				newIndexPage.setPrevPage(((IndexData)upEntry.data).getData());
-				// Delete the first record from newIndexPage
-				newIndexPage.deleteSortedRecord(delRID);
-				// Unpin the newIndexPage
-				unpinPage(newIndexPageId, true /* = DIRTY */);
-				// Set the higher index page in the hierarchy to point to the newIndexPage
-				((IndexData)upEntry.data).setData(newIndexPageId);
-				
-				return upEntry;
-			}
+			BTIndexPage currentIndexPage = new BTIndexPage(pinPage(currentIndexPageId), headerPage.get_keyType());
+			upEntry = insertIntoIndex(currentIndexPage, nextPageId, upEntry);
+			unpinPage(currentIndexPageId, true /* = DIRTY */);
+			return upEntry;
 		}
 		// Else check if currentpage is of type Leaf
-		else if (currentpage.getType() == NodeType.LEAF) {
-			BTLeafPage currentLeafPage = new BTLeafPage(currentpage.getCurPage(),headerPage.get_keyType());
-			PageId currentLeafPageId = currentLeafPage.getCurPage();
-			
-			// If space available
-			if (currentLeafPage.available_space() >= BT.getKeyDataLength(upEntry.key, NodeType.LEAF)) 
-			{
-				currentLeafPage.insertRecord(upEntry.key, ((LeafData)upEntry.data).getData());
-				unpinPage(currentLeafPageId, true /* = DIRTY */);
-				
-				// Done
-				return null;
-			}
-			// If no available space
-			else {
-				BTLeafPage newLeafPage = new BTLeafPage(headerPage.get_keyType());
-				PageId newLeafPageId = newLeafPage.getCurPage();
-				newLeafPage.setNextPage(new PageId(INVALID_PAGE));
-				newLeafPage.setPrevPage(currentLeafPageId);
-				
-				KeyDataEntry tmpEntry;
-				RID delRID = new RID();
-				
-				// Loop 1: Copy all keys from currentLeafPage to newLeafPage
-				for (tmpEntry = currentLeafPage.getFirst(delRID); 
-					 tmpEntry!= null;
-					 tmpEntry = currentLeafPage.getFirst(delRID)) {
-					
-					// Insert the record to newLeafPage
-					newLeafPage.insertRecord(tmpEntry.key, ((LeafData)tmpEntry.data).getData());
-					// Delete the record on currentLeafPage
-					currentLeafPage.deleteSortedRecord(delRID);
-					
-				}
-				
-				
-				// Loop 2: Insert first half back to currentLeafPage
-				for (tmpEntry = newLeafPage.getFirst(delRID);
-				     newLeafPage.available_space() < currentLeafPage.available_space();
-					 tmpEntry = newLeafPage.getFirst(delRID)) {
-					
-					// Insert the record to currentLeafPage
-					currentLeafPage.insertRecord(tmpEntry.key, ((LeafData)tmpEntry.data).getData());
-					// Delete the record on newLeafPage
-					newLeafPage.deleteSortedRecord(delRID);
-				}
-				
-				tmpEntry = newLeafPage.getFirst(delRID);
-				// Insert the key to the correct leaf node
-				if (BT.keyCompare(upEntry.key, tmpEntry.key) < 0) {
-					currentLeafPage.insertRecord(upEntry.key, ((LeafData)upEntry.data).getData());
-				} else {
-					newLeafPage.insertRecord(upEntry.key, ((LeafData)upEntry.data).getData());
-				}
-				
-				// Set the next link of currentLeafPage
-				currentLeafPage.setNextPage(newLeafPageId);
-				// Unpin the currentLeafPage
-				unpinPage(currentLeafPageId, true /* = DIRTY */);
-				
-				// Fill up
-				tmpEntry = newLeafPage.getFirst(delRID);
-				upEntry = new KeyDataEntry(tmpEntry.key, newLeafPageId);
-				
-				// Unpin the newLeafPage
-				unpinPage(newLeafPageId, true /* = DIRTY */);
-				
-				return upEntry;
-			}
+		else if (pageType == NodeType.LEAF) {
+			BTLeafPage currentLeafPage = new BTLeafPage(page, headerPage.get_keyType());
+			upEntry = insertIntoLeaf(currentLeafPage, key, rid);
+			unpinPage(currentPageId, true /* = DIRTY */);
+			return upEntry;
 		}
 		// Else throw insertException
 		else {
@@ -591,24 +801,476 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	}
 
-	
+	/*
+	 * Add the entry pushed up from the split of child splitChild to a pinned
+	 * index page, splitting it if it is full. The entry goes right after the
+	 * one for splitChild, which matters when the key is there already.
+	 * Returns the entry to push up to the parent, or null. The caller unpins
+	 * the page.
+	 */
+	private KeyDataEntry insertIntoIndex(BTIndexPage currentIndexPage,
+			PageId splitChild, KeyDataEntry upEntry) throws IOException, ConstructPageException,
+			IndexInsertRecException, KeyNotMatchException,
+			NodeNotMatchException, IteratorException, DeleteRecException,
+			UnpinPageException {
+		// If space available
+		if (currentIndexPage.available_space() >= BT.getKeyDataLength(upEntry.key, NodeType.INDEX)) 
+		{
+			insertAfterChild(currentIndexPage, splitChild, upEntry);
+			
+			// Done
+			return null;
+		}
+		
+		stats.indexSplit();
+		BTIndexPage newIndexPage = newIndexPage();
+		PageId newIndexPageId = newIndexPage.getCurPage();
+		newIndexPage.setNextPage(new PageId(INVALID_PAGE));
+		BTTracer t = tracer;
+		if (t != null)
+			t.event(BTTracer.SPLIT_INDEX, currentIndexPage.getCurPage().pid,
+					newIndexPageId.pid, 0, null);
+		
+		// Move the upper half of currentIndexPage to newIndexPage
+		BTPageOps.splitUpperHalf(currentIndexPage, newIndexPage);
+		
+		RID delRID = new RID();
+		
+		// Insert the key to the index node holding the child that split
+		if (BTPageOps.hasChild(currentIndexPage.getpage(), splitChild.pid)) {
+			insertAfterChild(currentIndexPage, splitChild, upEntry);
+		} else {
+			insertAfterChild(newIndexPage, splitChild, upEntry);
+		}
+		
+		// Fill up
+		upEntry = newIndexPage.getFirst(delRID);
+		// Set the left link of newIndexPage
+		newIndexPage.setPrevPage(((IndexData)upEntry.data).getData());
+		// Delete the first record from newIndexPage
+		newIndexPage.deleteSortedRecord(delRID);
+		// Unpin the newIndexPage
+		unpinPage(newIndexPageId, true /* = DIRTY */);
+		residentStale = true;
+		// Set the higher index page in the hierarchy to point to the newIndexPage
+		((IndexData)upEntry.data).setData(newIndexPageId);
+		
+		return upEntry;
+	}
+
+	private void insertAfterChild(BTIndexPage indexPage, PageId splitChild,
+			KeyDataEntry upEntry) throws IndexInsertRecException {
+		PageId newChild = ((IndexData)upEntry.data).getData();
+		indexPage.insertKey(upEntry.key, newChild);
+		BTPageOps.placeAfterChild(indexPage.getpage(), newChild.pid, splitChild.pid);
+	}
+
+	/*
+	 * Add <key, rid> to a pinned leaf, splitting it if it is full. Returns
+	 * the entry to push up to the parent, or null. The caller unpins the
+	 * page.
+	 */
+	private KeyDataEntry insertIntoLeaf(BTLeafPage currentLeafPage,
+			KeyClass key, RID rid) throws IOException, ConstructPageException,
+			LeafInsertRecException, KeyNotMatchException,
+			NodeNotMatchException, IteratorException, PinPageException,
+			UnpinPageException {
+		// If space available
+		if (currentLeafPage.available_space() >= BT.getKeyDataLength(key, NodeType.LEAF)) 
+		{
+			currentLeafPage.insertRecord(key, rid);
+			
+			// Done
+			return null;
+		}
+		
+		stats.leafSplit();
+		BTLeafPage newLeafPage = newLeafPage();
+		PageId newLeafPageId = newLeafPage.getCurPage();
+		PageId currentLeafPageId = currentLeafPage.getCurPage();
+		BTTracer t = tracer;
+		if (t != null)
+			t.event(BTTracer.SPLIT_LEAF, currentLeafPageId.pid,
+					newLeafPageId.pid, 0, null);
+		// getNextPage() returns the page's own PageId field, which
+		// setNextPage below overwrites
+		PageId oldNextPageId = new PageId(currentLeafPage.getNextPage().pid);
+		
+		// Link newLeafPage in between currentLeafPage and its old right sibling
+		newLeafPage.setNextPage(oldNextPageId);
+		newLeafPage.setPrevPage(currentLeafPageId);
+		currentLeafPage.setNextPage(newLeafPageId);
+		
+		// Move the upper half of currentLeafPage to newLeafPage
+		BTPageOps.splitUpperHalf(currentLeafPage, newLeafPage);
+		
+		KeyDataEntry tmpEntry;
+		RID delRID = new RID();
+		
+		// Insert the key to the correct leaf node
+		if (BTPageOps.compareKey(newLeafPage.getpage(), 0, key) > 0) {
+			currentLeafPage.insertRecord(key, rid);
+		} else {
+			newLeafPage.insertRecord(key, rid);
+		}
+		
+		// Only now point the old right sibling back at newLeafPage, which
+		// is not latched: a descending scan that follows the link must
+		// find it filled
+		if (oldNextPageId.pid != INVALID_PAGE) {
+			// left to right, the same order as scans take latches in
+			if (latches != null)
+				latches.lock(oldNextPageId.pid, true);
+			try {
+				BTLeafPage oldNextPage = new BTLeafPage(pinPage(oldNextPageId), headerPage.get_keyType());
+				oldNextPage.setPrevPage(newLeafPageId);
+				unpinPage(oldNextPageId, true /* = DIRTY */);
+			} finally {
+				if (latches != null)
+					latches.unlock(oldNextPageId.pid, true);
+			}
+		}
+		
+		// Fill up
+		tmpEntry = newLeafPage.getFirst(delRID);
+		KeyClass upKey = tmpEntry.key;
+		if (upKey instanceof StringKey && truncatesSuffixes()) {
+			byte[] data = currentLeafPage.getpage();
+			upKey = separator(new StringKey(BTPageOps.stringKey(data,
+					BTPageOps.slotCount(data) - 1)), upKey);
+		}
+		KeyDataEntry upEntry = new KeyDataEntry(upKey, newLeafPageId);
+		
+		// Unpin the newLeafPage
+		unpinPage(newLeafPageId, true /* = DIRTY */);
+		
+		return upEntry;
+	}
+
+	/*
+	 * Concurrent insert. First try with shared latches down to an exclusive
+	 * latch on the leaf, which is enough unless the leaf is full; otherwise
+	 * go down again with exclusive latches, keeping a page latched only
+	 * while the split below it may still reach it.
+	 */
+	private void insertLatched(KeyClass key, RID rid)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, IteratorException, DeleteRecException,
+			IOException {
+
+		// Whether an index page can take any separator depends on keys
+		// staying within the declared maximum
+		if (BT.getKeyLength(key) > headerPage.get_maxKeySize())
+			throw new KeyTooLongException(null, "");
+
+		PageId pageno = new PageId();
+		Page page = latchLeaf(key, true, true, pageno);
+		if (page != null) {
+			boolean fits = false;
+			try {
+				BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+				fits = leafPage.available_space() >= BT.getKeyDataLength(key, NodeType.LEAF);
+				if (fits)
+					leafPage.insertRecord(key, rid);
+			} finally {
+				latches.unlock(pageno.pid, true);
+				unpinPage(pageno, fits);
+			}
+			if (fits)
+				return;
+		}
+
+		// Latched and pinned pages, top-down
+		ArrayList<PageId> path = new ArrayList<PageId>();
+		ArrayList<Page> pages = new ArrayList<Page>();
+		boolean rootHeld = true;
+		rootLatch.writeLock().lock();
+		try {
+			if (headerPage.get_rootId().pid == INVALID_PAGE) {
+				insertFirst(key, rid);
+				return;
+			}
+
+			pageno = new PageId(headerPage.get_rootId().pid);
+			while (true) {
+				page = pinPage(pageno);
+				latches.lock(pageno.pid, true);
+				path.add(pageno);
+				pages.add(page);
+
+				byte[] data = page.getpage();
+				short pageType = BTPageOps.pageType(data);
+				int need = (pageType == NodeType.INDEX)
+						? headerPage.get_maxKeySize() + 4
+						: BT.getKeyDataLength(key, NodeType.LEAF);
+				if (BTPageOps.availableSpace(data) >= need) {
+					// This page will not split: nothing above it changes
+					while (path.size() > 1) {
+						PageId ancestor = path.remove(0);
+						pages.remove(0);
+						latches.unlock(ancestor.pid, true);
+						unpinPage(ancestor);
+					}
+					if (rootHeld) {
+						rootLatch.writeLock().unlock();
+						rootHeld = false;
+					}
+				}
+				if (pageType != NodeType.INDEX)
+					break;
+				pageno = new PageId(BTPageOps.childPid(data,
+						BTPageOps.upperBound(data, key)));
+			}
+
+			int i = pages.size() - 1;
+			KeyDataEntry upEntry = insertIntoLeaf(new BTLeafPage(pages.get(i),
+					headerPage.get_keyType()), key, rid);
+			for (i--; upEntry != null && i >= 0; i--)
+				upEntry = insertIntoIndex(new BTIndexPage(pages.get(i),
+						headerPage.get_keyType()), path.get(i + 1), upEntry);
+
+			// Every page on the path split, so the root latch is still held
+			if (upEntry != null)
+				growRoot(upEntry);
+		} finally {
+			for (int i = path.size() - 1; i >= 0; i--) {
+				latches.unlock(path.get(i).pid, true);
+				unpinPage(path.get(i), true /* = DIRTY */);
+			}
+			if (rootHeld)
+				rootLatch.writeLock().unlock();
+		}
+	}
 
+	/*
+	 * Concurrent descent with shared latch coupling to the leaf for `key':
+	 * the first entry >= key (upper == false) or > key (upper == true) is on
+	 * it or to its right. The leaf is returned pinned and latched, shared or
+	 * exclusive, and its id left in pageno; null if the tree is empty. A
+	 * null key with upper == true descends to the last leaf.
+	 */
+	private Page latchLeaf(KeyClass key, boolean upper, boolean exclusive,
+			PageId pageno) throws IOException, KeyNotMatchException,
+			PinPageException, UnpinPageException {
+		Page page;
+		boolean leaf;
+		rootLatch.readLock().lock();
+		try {
+			pageno.pid = headerPage.get_rootId().pid;
+			if (pageno.pid == INVALID_PAGE)
+				return null;
+			page = pinPage(pageno);
+			// The type of a page never changes while a parent (or the root
+			// latch) is held, so it can be read before latching
+			leaf = BTPageOps.pageType(page.getpage()) != NodeType.INDEX;
+			latches.lock(pageno.pid, exclusive && leaf);
+		} finally {
+			rootLatch.readLock().unlock();
+		}
 
+		while (!leaf) {
+			byte[] data = page.getpage();
+			PageId childId;
+			Page child;
+			try {
+				int pos = 0;
+				if (key != null)
+					pos = upper ? BTPageOps.upperBound(data, key)
+							: BTPageOps.lowerBound(data, key);
+				else if (upper)
+					pos = BTPageOps.slotCount(data);
+				childId = new PageId(BTPageOps.childPid(data, pos));
+				child = pinPage(childId);
+				leaf = BTPageOps.pageType(child.getpage()) != NodeType.INDEX;
+				latches.lock(childId.pid, exclusive && leaf);
+			} finally {
+				latches.unlock(pageno.pid, false);
+			}
+			unpinPage(pageno);
+			pageno.pid = childId.pid;
+			page = child;
+		}
+		return page;
+	}
 
 	/**
-	 * delete leaf entry given its <key, rid> pair. `rid' is IN the data entry;
-	 * it is not the id of the data entry)
+	 * Build the tree bottom-up from entries that are already in key order.
+	 * Leaf pages are packed left to right up to the fill factor and linked
+	 * through their next/prev pointers; the index levels are built in the
+	 * same pass and the root is written into the header page at the end.
+	 * The tree must be empty.
 	 *
-	 * @param key
-	 *            the key in pair <key, rid>. Input Parameter.
-	 * @param rid
-	 *            the rid in pair <key, rid>. Input Parameter.
-	 * @return true if deleted. false if no such record.
-	 * @exception DeleteFashionException
-	 *                neither full delete nor naive delete
-	 * @exception LeafRedistributeException
-	 *                redistribution error in leaf pages
-	 * @exception RedistributeException
+	 * @param entries
+	 *            leaf entries (key and rid) in ascending key order. Input
+	 *            parameter.
+	 * @param fillFactor
+	 *            fraction of each page to fill, in (0, 1]. Input parameter.
+	 * @exception InsertException
+	 *                tree not empty, bad fill factor or unsorted input
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception NodeNotMatchException
+	 *                entry does not carry a rid
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void bulkLoad(Iterator<KeyDataEntry> entries, double fillFactor)
+			throws InsertException, KeyNotMatchException,
+			NodeNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, IOException {
+
+		if (fillFactor <= 0.0 || fillFactor > 1.0)
+			throw new InsertException(null, "fill factor out of range");
+		if (headerPage.get_rootId().pid != INVALID_PAGE)
+			throw new InsertException(null, "bulk load needs an empty tree");
+
+		// open index page and its lowest key, one per level above the leaves
+		ArrayList<BTIndexPage> levels = new ArrayList<BTIndexPage>();
+		ArrayList<KeyClass> lowKeys = new ArrayList<KeyClass>();
+
+		BTLeafPage leafPage = null;
+		KeyClass leafLowKey = null;
+		KeyClass prevKey = null;
+
+		while (entries.hasNext()) {
+			KeyDataEntry entry = entries.next();
+			if (!(entry.data instanceof LeafData))
+				throw new NodeNotMatchException(null, "bulk load expects leaf entries");
+			if (prevKey != null && BT.keyCompare(entry.key, prevKey) < 0)
+				throw new InsertException(null, "bulk load input is not sorted");
+
+			int len = BT.getKeyDataLength(entry.key, NodeType.LEAF);
+			if (leafPage == null) {
+				leafPage = newLeafPage();
+				leafPage.setNextPage(new PageId(INVALID_PAGE));
+				leafPage.setPrevPage(new PageId(INVALID_PAGE));
+				leafLowKey = entry.key;
+			} else if (!bulkFits(leafPage, len, fillFactor)) {
+				// Start the next leaf and link it behind the full one
+				BTLeafPage nextLeafPage = newLeafPage();
+				PageId leafPageId = leafPage.getCurPage();
+				nextLeafPage.setNextPage(new PageId(INVALID_PAGE));
+				nextLeafPage.setPrevPage(leafPageId);
+				leafPage.setNextPage(nextLeafPage.getCurPage());
+				unpinPage(leafPageId, true /* = DIRTY */);
+
+				bulkPushUp(levels, lowKeys, 0, leafLowKey, leafPageId, fillFactor);
+				leafPage = nextLeafPage;
+				leafLowKey = separator(prevKey, entry.key);
+			}
+
+			leafPage.insertRecord(entry.key, ((LeafData) entry.data).getData());
+			prevKey = entry.key;
+		}
+
+		// Empty input leaves the tree empty
+		if (leafPage == null)
+			return;
+
+		PageId leafPageId = leafPage.getCurPage();
+		unpinPage(leafPageId, true /* = DIRTY */);
+		if (levels.isEmpty()) {
+			updateHeader(leafPageId);
+			return;
+		}
+
+		// Close the open pages bottom-up; the last one closed is the root
+		bulkPushUp(levels, lowKeys, 0, leafLowKey, leafPageId, fillFactor);
+		for (int level = 0; level < levels.size(); level++) {
+			PageId pageId = levels.get(level).getCurPage();
+			unpinPage(pageId, true /* = DIRTY */);
+			if (level == levels.size() - 1) {
+				updateHeader(pageId);
+				break;
+			}
+			bulkPushUp(levels, lowKeys, level + 1, lowKeys.get(level), pageId,
+					fillFactor);
+		}
+	}
+
+	/*
+	 * Add <key, child> to the open index page at `level' during a bulk load.
+	 * A fresh page takes the child as its left link and remembers key as the
+	 * page's lowest key; a full page is unpinned and pushed up a level first.
+	 */
+	private void bulkPushUp(ArrayList<BTIndexPage> levels,
+			ArrayList<KeyClass> lowKeys, int level, KeyClass key, PageId child,
+			double fillFactor) throws IOException, KeyNotMatchException,
+			NodeNotMatchException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException {
+
+		if (level < levels.size()) {
+			BTIndexPage indexPage = levels.get(level);
+			int len = BT.getKeyDataLength(key, NodeType.INDEX);
+			if (bulkFits(indexPage, len, fillFactor)) {
+				indexPage.insertKey(key, child);
+				return;
+			}
+
+			PageId indexPageId = indexPage.getCurPage();
+			unpinPage(indexPageId, true /* = DIRTY */);
+			bulkPushUp(levels, lowKeys, level + 1, lowKeys.get(level),
+					indexPageId, fillFactor);
+		}
+
+		BTIndexPage indexPage = newIndexPage();
+		indexPage.setPrevPage(child);
+		if (level < levels.size()) {
+			levels.set(level, indexPage);
+			lowKeys.set(level, key);
+		} else {
+			levels.add(indexPage);
+			lowKeys.add(key);
+		}
+	}
+
+	/*
+	 * True if a record of `len' bytes still fits on the page without filling
+	 * more than fillFactor of it. An empty page always takes the record.
+	 * The space is taken from the page itself, not from MAX_SPACE.
+	 */
+	private boolean bulkFits(BTSortedPage page, int len, double fillFactor)
+			throws IOException {
+		if (page.available_space() < len)
+			return false;
+		if (page.getSlotCnt() == 0)
+			return true;
+		int space = page.getpage().length - HFPage.DPFIXED;
+		int used = space - page.available_space() - HFPage.SIZE_OF_SLOT;
+		return used + len + HFPage.SIZE_OF_SLOT <= (int) (fillFactor * space);
+	}
+
+
+
+
+
+	/**
+	 * delete leaf entry given its <key, rid> pair. `rid' is IN the data entry;
+	 * it is not the id of the data entry)
+	 *
+	 * @param key
+	 *            the key in pair <key, rid>. Input Parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 * @exception DeleteFashionException
+	 *                neither full delete nor naive delete
+	 * @exception LeafRedistributeException
+	 *                redistribution error in leaf pages
+	 * @exception RedistributeException
 	 *                redistribution error in index pages
 	 * @exception InsertRecException
 	 *                error when insert in index page
@@ -648,10 +1310,29 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IndexFullDeleteException, LeafDeleteException, IteratorException,
 			ConstructPageException, DeleteRecException, IndexSearchException,
 			IOException {
-		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
-			return NaiveDelete(key, rid);
-		else
-			throw new DeleteFashionException(null, "");
+		long start = System.nanoTime();
+		long pins = BTreeFileStats.pins();
+		BTTracer t = tracer;
+		if (t != null)
+			t.event(BTTracer.DELETE, 0, rid.pageNo.pid, rid.slotNo, key);
+		try {
+			if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE) {
+				if (latches != null)
+					return deleteLatched(key, rid);
+				refreshResident();
+				return NaiveDelete(key, rid);
+			}
+			if (headerPage.get_deleteFashion() == DeleteFashion.FULL_DELETE) {
+				// No merging in concurrent mode: latches are taken top-down only
+				if (latches != null)
+					return deleteLatched(key, rid);
+				refreshResident();
+				return FullDelete(key, rid);
+			}
+		} finally {
+			stats.record(BTreeFileStats.DELETE, start, pins);
+		}
+		throw new DeleteFashionException(null, "");
 	}
 
 	/*
@@ -679,17 +1360,11 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IteratorException, KeyNotMatchException, ConstructPageException,
 			PinPageException, UnpinPageException {
 		BTLeafPage pageLeaf;
-		BTIndexPage pageIndex;
 		Page page;
-		BTSortedPage sortPage;
 		PageId pageno;
-		PageId curpageno = null; // iterator
-		PageId prevpageno;
 		PageId nextpageno;
-		RID curRid;
-		KeyDataEntry curEntry;
 
-		pageno = headerPage.get_rootId();
+		pageno = new PageId(headerPage.get_rootId().pid);
 
 		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
 			pageLeaf = null; // should be handled by
@@ -698,46 +1373,38 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 
 		page = pinPage(pageno);
-		sortPage = new BTSortedPage(page, headerPage.get_keyType());
 
-		if (trace != null) {
-			trace.writeBytes("VISIT node " + pageno + lineSep);
-			trace.flush();
-		}
+		BTTracer t = tracer;
+		if (t != null)
+			t.event(BTTracer.VISIT, pageno.pid, 0, 0, null);
 
 		// ASSERTION
-		// - pageno and sortPage is the root of the btree
-		// - pageno and sortPage valid and pinned
+		// - pageno and page is the root of the btree
+		// - pageno and page valid and pinned
 
-		while (sortPage.getType() == NodeType.INDEX) {
-			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			prevpageno = pageIndex.getPrevPage();
-			curEntry = pageIndex.getFirst(startrid);
-			while (curEntry != null && lo_key != null
-					&& BT.keyCompare(curEntry.key, lo_key) < 0) {
-
-				prevpageno = ((IndexData) curEntry.data).getData();
-				curEntry = pageIndex.getNext(startrid);
-			}
+		while (BTPageOps.pageType(page.getpage()) == NodeType.INDEX) {
+			// follow the last entry with key < lo_key, or the left link;
+			// keys are compared against the page bytes in place
+			byte[] data = page.getpage();
+			int childpid = BTPageOps.childPid(data,
+					(lo_key == null) ? 0 : BTPageOps.lowerBound(data, lo_key));
 
 			unpinPage(pageno);
 
-			pageno = prevpageno;
+			pageno.pid = childpid;
 			page = pinPage(pageno);
-			sortPage = new BTSortedPage(page, headerPage.get_keyType());
 
-			if (trace != null) {
-				trace.writeBytes("VISIT node " + pageno + lineSep);
-				trace.flush();
-			}
+			if (t != null)
+				t.event(BTTracer.VISIT, pageno.pid, 0, 0, null);
 
 		}
 
 		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
 
-		curEntry = pageLeaf.getFirst(startrid);
-		while (curEntry == null) {
-			// skip empty leaf pages off to left
+		// first slot with key >= lo_key, skipping empty leaf pages and
+		// pages whose keys are all smaller off to the right
+		int slot = (lo_key == null) ? 0 : BTPageOps.lowerBound(pageLeaf.getpage(), lo_key);
+		while (slot == pageLeaf.getSlotCnt()) {
 			nextpageno = pageLeaf.getNextPage();
 			unpinPage(pageno);
 			if (nextpageno.pid == INVALID_PAGE) {
@@ -747,38 +1414,17 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 			pageno = nextpageno;
 			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
-			curEntry = pageLeaf.getFirst(startrid);
+			slot = (lo_key == null) ? 0 : BTPageOps.lowerBound(pageLeaf.getpage(), lo_key);
 		}
 
 		// ASSERTIONS:
-		// - curkey, curRid: contain the first record on the
-		// current leaf page (curkey its key, cur
+		// - startrid: the first record on or after lo_key
 		// - pageLeaf, pageno valid and pinned
+		// note that pageno/pageLeaf is still pinned;
+		// scan will unpin it when done
 
-		if (lo_key == null) {
-			return pageLeaf;
-			// note that pageno/pageLeaf is still pinned;
-			// scan will unpin it when done
-		}
-
-		while (BT.keyCompare(curEntry.key, lo_key) < 0) {
-			curEntry = pageLeaf.getNext(startrid);
-			while (curEntry == null) { // have to go right
-				nextpageno = pageLeaf.getNextPage();
-				unpinPage(pageno);
-
-				if (nextpageno.pid == INVALID_PAGE) {
-					return null;
-				}
-
-				pageno = nextpageno;
-				pageLeaf = new BTLeafPage(pinPage(pageno),
-						headerPage.get_keyType());
-
-				curEntry = pageLeaf.getFirst(startrid);
-			}
-		}
-
+		startrid.pageNo = pageLeaf.getCurPage();
+		startrid.slotNo = slot;
 		return pageLeaf;
 	}
 
@@ -798,119 +1444,1702 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	private boolean NaiveDelete(KeyClass key, RID rid)
 			throws LeafDeleteException, KeyNotMatchException, PinPageException,
 			ConstructPageException, IOException, UnpinPageException,
-			PinPageException, IndexSearchException, IteratorException {
-		// Create a leafPage, delRid and a delete entry.
+			PinPageException, IndexSearchException, IteratorException,
+			DeleteRecException {
+		// Create a leafPage and a cursor rid.
 		BTLeafPage leafPage;
-		RID delRid = new RID();
-		KeyDataEntry delEntry;
+		RID curRid = new RID();
+		PageId nextpageno;
 
-		// Get the leaf node where the key exists
-		leafPage = findRunStart(key, rid);
+		// Get the leaf node with the first occurrence of the key
+		leafPage = findRunStart(key, curRid);
 		
-		// If the key does not exist in any leaf nodes
+		// If there is no key >= key in any leaf nodes
 		if (leafPage == null) {
 			return false;
 		}
 		
-		// Set the delEntry at the beginning of the leaf node
-		delEntry = leafPage.getCurrent(delRid);
-		
-		// The leaf exists, meaning the key does exist on the leaf
-		// While loop to skip through the whole leaf node to get to the spot of the key
-		while (BT.keyCompare(delEntry.key, key) < 0) {
-			delEntry = leafPage.getNext(delRid);
+		// Walk the run of duplicates of key, possibly across leaf pages,
+		// until we find the one carrying rid
+		int slot = curRid.slotNo;
+		while (true) {
+			byte[] data = leafPage.getpage();
+			for (; slot < BTPageOps.slotCount(data); slot++) {
+				if (BTPageOps.compareKey(data, slot, key) > 0) {
+					// Past the run: no such <key, rid>
+					unpinPage(leafPage.getCurPage());
+					return false;
+				}
+				if (BTPageOps.ridEquals(data, slot, rid)) {
+					// Delete the entry
+					leafPage.deleteSortedRecord(new RID(leafPage.getCurPage(), slot));
+					// Unpin the leaf page
+					unpinPage(leafPage.getCurPage(), true);
+					return true;
+				}
+			}
+			
+			nextpageno = leafPage.getNextPage();
+			unpinPage(leafPage.getCurPage());
+			if (nextpageno.pid == INVALID_PAGE) {
+				return false;
+			}
+			leafPage = new BTLeafPage(pinPage(nextpageno), headerPage.get_keyType());
+			slot = 0;
 		}
-		
-		// Delete the entry
-		leafPage.delEntry(delEntry);
-		// Unpin the leaf page
-		unpinPage(leafPage.getCurPage(), true);
+	}
+
+	/*
+	 * Remove <key, rid> and keep every page but the root at least half
+	 * full: a page that falls below half takes entries from a sibling under
+	 * the same parent or, if both fit on one page, is merged with it and the
+	 * right one is freed. A root index page left with no keys is freed and
+	 * its only child becomes the root; a root leaf left empty is freed and
+	 * the tree is empty again.
+	 */
+	private boolean FullDelete(KeyClass key, RID rid)
+			throws LeafRedistributeException, RedistributeException,
+			KeyNotMatchException, UnpinPageException, FreePageException,
+			PinPageException, IndexFullDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IOException {
+		PageId rootId = headerPage.get_rootId();
+		if (rootId.pid == INVALID_PAGE)
+			return false;
+		if (!fullDelete(rootId, key, rid))
+			return false;
+		collapseRoot();
 		return true;
 	}
-	/**
-	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
-	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
-	 * to the hi_key (3) lo_key!= null, hi_key = null range scan from the lo_key
-	 * to max (4) lo_key!= null, hi_key!= null, lo_key = hi_key exact match (
-	 * might not unique) (5) lo_key!= null, hi_key!= null, lo_key < hi_key range
-	 * scan from lo_key to hi_key
-	 *
-	 * @param lo_key
-	 *            the key where we begin scanning. Input parameter.
-	 * @param hi_key
-	 *            the key where we stop scanning. Input parameter.
-	 * @exception IOException
-	 *                error from the lower layer
-	 * @exception KeyNotMatchException
-	 *                key is not integer key nor string key
-	 * @exception IteratorException
-	 *                iterator error
-	 * @exception ConstructPageException
-	 *                error in BT page constructor
-	 * @exception PinPageException
-	 *                error when pin a page
-	 * @exception UnpinPageException
-	 *                error when unpin a page
+
+	/*
+	 * While the root is an index page with no keys, free it and make its
+	 * only child the root; free a root leaf with no entries, leaving the
+	 * tree empty. Returns the number of pages freed.
 	 */
-	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
-			throws IOException, KeyNotMatchException, IteratorException,
-			ConstructPageException, PinPageException, UnpinPageException
+	int collapseRoot() throws PinPageException, UnpinPageException,
+			FreePageException, IOException {
+		int freed = 0;
+		while (true) {
+			PageId rootId = new PageId(headerPage.get_rootId().pid);
+			if (rootId.pid == INVALID_PAGE)
+				return freed;
+			byte[] data = pinPage(rootId).getpage();
+			boolean empty = BTPageOps.slotCount(data) == 0;
+			PageId newRoot = new PageId(INVALID_PAGE);
+			if (BTPageOps.pageType(data) == NodeType.INDEX)
+				newRoot.pid = BTPageOps.childPid(data, 0);
+			unpinPage(rootId);
+			if (!empty)
+				return freed;
+			freePage(rootId);
+			updateHeader(newRoot);
+			freed++;
+		}
+	}
 
-	{
-		BTFileScan scan = new BTFileScan();
-		if (headerPage.get_rootId().pid == INVALID_PAGE) {
-			scan.leafPage = null;
-			return scan;
+	/*
+	 * Delete <key, rid> from the subtree under pageno. A run of duplicates
+	 * can span leaves, so every child whose range can hold key is tried,
+	 * left to right. Returns true if the entry was found; the child it was
+	 * found under has been rebalanced by then.
+	 */
+	private boolean fullDelete(PageId pageno, KeyClass key, RID rid)
+			throws LeafRedistributeException, RedistributeException,
+			KeyNotMatchException, UnpinPageException, FreePageException,
+			PinPageException, IndexFullDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IOException {
+		Page page = pinPage(pageno);
+		byte[] data = page.getpage();
+
+		if (BTPageOps.pageType(data) != NodeType.INDEX) {
+			for (int slot = BTPageOps.lowerBound(data, key); slot < BTPageOps
+					.slotCount(data)
+					&& BTPageOps.compareKey(data, slot, key) == 0; slot++) {
+				if (BTPageOps.ridEquals(data, slot, rid)) {
+					new BTLeafPage(page, headerPage.get_keyType())
+							.deleteSortedRecord(new RID(pageno, slot));
+					unpinPage(pageno, true /* = DIRTY */);
+					return true;
+				}
+			}
+			unpinPage(pageno);
+			return false;
 		}
 
-		scan.treeFilename = dbname;
-		scan.endkey = hi_key;
-		scan.didfirst = false;
-		scan.deletedcurrent = false;
-		scan.curRid = new RID();
-		scan.keyType = headerPage.get_keyType();
-		scan.maxKeysize = headerPage.get_maxKeySize();
-		scan.bfile = this;
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		int last = BTPageOps.upperBound(data, key);
+		for (int pos = BTPageOps.lowerBound(data, key); pos <= last; pos++) {
+			if (fullDelete(new PageId(BTPageOps.childPid(data, pos)), key, rid)) {
+				rebalance(indexPage, pos);
+				unpinPage(pageno, true /* = DIRTY */);
+				return true;
+			}
+		}
+		unpinPage(pageno);
+		return false;
+	}
 
-		// this sets up scan at the starting position, ready for iteration
-		scan.leafPage = findRunStart(lo_key, scan.curRid);
-		return scan;
+	/*
+	 * If the child at pos of a pinned index page is less than half full,
+	 * merge it with a sibling or move entries over from the sibling. The
+	 * sibling is the right one, or the left one for the last child.
+	 */
+	private void rebalance(BTIndexPage parent, int pos)
+			throws LeafRedistributeException, RedistributeException,
+			KeyNotMatchException, UnpinPageException, FreePageException,
+			PinPageException, IndexFullDeleteException, IteratorException,
+			DeleteRecException, IOException {
+		byte[] pdata = parent.getpage();
+		int slotCnt = BTPageOps.slotCount(pdata);
+		PageId childId = new PageId(BTPageOps.childPid(pdata, pos));
+		Page child = pinPage(childId);
+		if (slotCnt == 0 || !BTPageOps.underfull(child.getpage())) {
+			unpinPage(childId);
+			return;
+		}
+
+		// The parent entry at sepSlot separates leftId from rightId
+		int sepSlot = (pos < slotCnt) ? pos : pos - 1;
+		PageId leftId = new PageId(BTPageOps.childPid(pdata, sepSlot));
+		PageId rightId = new PageId(BTPageOps.childPid(pdata, sepSlot + 1));
+		Page left = (leftId.pid == childId.pid) ? child : pinPage(leftId);
+		Page right = (rightId.pid == childId.pid) ? child : pinPage(rightId);
+
+		boolean merged;
+		if (BTPageOps.pageType(child.getpage()) == NodeType.INDEX)
+			merged = rebalanceIndex(parent, sepSlot, left, right, 0);
+		else
+			merged = rebalanceLeaves(parent, sepSlot, left, right, 0);
+
+		unpinPage(leftId, true /* = DIRTY */);
+		unpinPage(rightId, true /* = DIRTY */);
+		if (merged) {
+			freePage(rightId);
+			residentStale = true;
+		}
 	}
 
-	void trace_children(PageId id) throws IOException, IteratorException,
-			ConstructPageException, PinPageException, UnpinPageException {
+	/*
+	 * Merge two adjacent leaves into the left one if their entries fit on
+	 * one page, unlinking the right one and dropping its parent entry, and
+	 * return true. Otherwise move entries from the fuller leaf to the other
+	 * until they are about even and give the right leaf a new separator;
+	 * this is skipped if the parent has no room for it.
+	 *
+	 * With packTo > 0 (compaction) the leaves are merged only if the result
+	 * takes at most packTo bytes, and otherwise entries only move left,
+	 * until the left leaf would pass packTo bytes.
+	 */
+	private boolean rebalanceLeaves(BTIndexPage parent, int sepSlot,
+			Page left, Page right, int packTo) throws LeafRedistributeException,
+			KeyNotMatchException, UnpinPageException, PinPageException,
+			IteratorException, IOException {
+		byte[] ldata = left.getpage();
+		byte[] rdata = right.getpage();
+		int keyType = headerPage.get_keyType();
+		try {
+			BTLeafPage leftPage = new BTLeafPage(left, keyType);
+			BTLeafPage rightPage = new BTLeafPage(right, keyType);
+			int lused = BTPageOps.usedSpace(ldata);
+			int rused = BTPageOps.usedSpace(rdata);
+
+			int mergeLimit = (packTo > 0) ? packTo : ldata.length - HFPage.DPFIXED;
+			if (lused + rused <= mergeLimit) {
+				for (int slot = 0; slot < BTPageOps.slotCount(rdata); slot++) {
+					KeyDataEntry entry = entryAt(rdata, slot, NodeType.LEAF);
+					leftPage.insertRecord(entry.key, ((LeafData) entry.data).getData());
+				}
+				PageId nextId = rightPage.getNextPage();
+				leftPage.setNextPage(nextId);
+				if (nextId.pid != INVALID_PAGE) {
+					BTLeafPage nextPage = new BTLeafPage(pinPage(nextId), keyType);
+					nextPage.setPrevPage(leftPage.getCurPage());
+					unpinPage(nextId, true /* = DIRTY */);
+				}
+				parent.deleteSortedRecord(new RID(parent.getCurPage(), sepSlot));
+				return true;
+			}
 
-		if (trace != null) {
+			// Plan the move by record sizes, so the new separator is known
+			// before anything changes
+			boolean toLeft = (packTo > 0) || lused < rused;
+			byte[] from = toLeft ? rdata : ldata;
+			int fromCnt = BTPageOps.slotCount(from);
+			int moved = 0;
+			while (moved < fromCnt - 1) {
+				int slot = toLeft ? moved : fromCnt - 1 - moved;
+				int size = BTPageOps.slotLength(from, slot) + HFPage.SIZE_OF_SLOT;
+				int lighter = toLeft ? lused : rused;
+				int heavier = toLeft ? rused : lused;
+				if ((packTo > 0) ? lused + size > packTo
+						: lighter + size > heavier - size)
+					break;
+				if (toLeft) {
+					lused += size;
+					rused -= size;
+				} else {
+					rused += size;
+					lused -= size;
+				}
+				moved++;
+			}
+			if (moved == 0)
+				return false;
+			int lastLeft = toLeft ? moved - 1 : fromCnt - 1 - moved;
+			KeyClass sep = separator(entryAt(from, lastLeft, NodeType.LEAF).key,
+					entryAt(from, lastLeft + 1, NodeType.LEAF).key);
+			if (!roomForSeparator(parent, sepSlot, sep))
+				return false;
+
+			for (int i = 0; i < moved; i++) {
+				int slot = toLeft ? 0 : BTPageOps.slotCount(ldata) - 1;
+				KeyDataEntry entry = entryAt(from, slot, NodeType.LEAF);
+				BTLeafPage to = toLeft ? leftPage : rightPage;
+				to.insertRecord(entry.key, ((LeafData) entry.data).getData());
+				(toLeft ? rightPage : leftPage).deleteSortedRecord(new RID(
+						(toLeft ? rightPage : leftPage).getCurPage(), slot));
+			}
+			setSeparator(parent, sepSlot, sep);
+			return false;
+		} catch (LeafInsertRecException e) {
+			throw new LeafRedistributeException(e, "");
+		} catch (ConstructPageException e) {
+			throw new LeafRedistributeException(e, "");
+		} catch (DeleteRecException e) {
+			throw new LeafRedistributeException(e, "");
+		} catch (IndexInsertRecException e) {
+			throw new LeafRedistributeException(e, "");
+		}
+	}
 
-			BTSortedPage sortedPage;
-			RID metaRid = new RID();
-			PageId childPageId;
-			KeyClass key;
-			KeyDataEntry entry;
-			sortedPage = new BTSortedPage(pinPage(id), headerPage.get_keyType());
+	/*
+	 * The same for two adjacent index pages. Their separator comes down
+	 * with the entries: a merge appends <separator, right left link> and
+	 * then the right page's entries to the left page, and each move turns
+	 * one key around through the parent.
+	 */
+	private boolean rebalanceIndex(BTIndexPage parent, int sepSlot,
+			Page left, Page right, int packTo) throws RedistributeException,
+			KeyNotMatchException, IteratorException, IOException {
+		byte[] pdata = parent.getpage();
+		byte[] ldata = left.getpage();
+		byte[] rdata = right.getpage();
+		int keyType = headerPage.get_keyType();
+		try {
+			BTIndexPage leftPage = new BTIndexPage(left, keyType);
+			BTIndexPage rightPage = new BTIndexPage(right, keyType);
+			int sepSize = BTPageOps.slotLength(pdata, sepSlot) + HFPage.SIZE_OF_SLOT;
+
+			int mergeLimit = (packTo > 0) ? packTo : ldata.length - HFPage.DPFIXED;
+			if (BTPageOps.usedSpace(ldata) + sepSize + BTPageOps.usedSpace(rdata)
+					<= mergeLimit) {
+				KeyClass sep = entryAt(pdata, sepSlot, NodeType.INDEX).key;
+				appendIndexEntry(leftPage, new KeyDataEntry(sep,
+						rightPage.getPrevPage()));
+				for (int slot = 0; slot < BTPageOps.slotCount(rdata); slot++)
+					appendIndexEntry(leftPage, entryAt(rdata, slot, NodeType.INDEX));
+				parent.deleteSortedRecord(new RID(parent.getCurPage(), sepSlot));
+				return true;
+			}
 
-			// Now print all the child nodes of the page.
-			if (sortedPage.getType() == NodeType.INDEX) {
-				BTIndexPage indexPage = new BTIndexPage(sortedPage,
-						headerPage.get_keyType());
-				trace.writeBytes("INDEX CHILDREN " + id + " nodes" + lineSep);
-				trace.writeBytes(" " + indexPage.getPrevPage());
-				for (entry = indexPage.getFirst(metaRid); entry != null; entry = indexPage
-						.getNext(metaRid)) {
-					trace.writeBytes("   " + ((IndexData) entry.data).getData());
+			while (true) {
+				int lused = BTPageOps.usedSpace(ldata);
+				int rused = BTPageOps.usedSpace(rdata);
+				boolean toLeft = (packTo > 0) || lused < rused;
+				byte[] from = toLeft ? rdata : ldata;
+				int fromCnt = BTPageOps.slotCount(from);
+				int slot = toLeft ? 0 : fromCnt - 1;
+				sepSize = BTPageOps.slotLength(pdata, sepSlot) + HFPage.SIZE_OF_SLOT;
+				int upSize = BTPageOps.slotLength(from, slot) + HFPage.SIZE_OF_SLOT;
+				int lighter = toLeft ? lused : rused;
+				int heavier = toLeft ? rused : lused;
+				if (fromCnt < 2 || ((packTo > 0) ? lused + sepSize > packTo
+						: lighter + sepSize > heavier - upSize))
+					return false;
+				KeyDataEntry up = entryAt(from, slot, NodeType.INDEX);
+				if (!roomForSeparator(parent, sepSlot, up.key)
+						|| BTPageOps.availableSpace(toLeft ? ldata : rdata) < sepSize)
+					return false;
+
+				KeyClass sep = entryAt(pdata, sepSlot, NodeType.INDEX).key;
+				PageId upChild = ((IndexData) up.data).getData();
+				if (toLeft) {
+					appendIndexEntry(leftPage, new KeyDataEntry(sep,
+							rightPage.getPrevPage()));
+					rightPage.setPrevPage(upChild);
+					rightPage.deleteSortedRecord(new RID(rightPage.getCurPage(), 0));
+				} else {
+					// sep goes in front of the right page's old left link
+					PageId oldLeftLink = new PageId(rightPage.getPrevPage().pid);
+					rightPage.setPrevPage(upChild);
+					rightPage.insertKey(sep, oldLeftLink);
+					BTPageOps.placeAfterChild(rdata, oldLeftLink.pid, upChild.pid);
+					leftPage.deleteSortedRecord(new RID(leftPage.getCurPage(), slot));
 				}
-			} else if (sortedPage.getType() == NodeType.LEAF) {
-				BTLeafPage leafPage = new BTLeafPage(sortedPage,
-						headerPage.get_keyType());
-				trace.writeBytes("LEAF CHILDREN " + id + " nodes" + lineSep);
-				for (entry = leafPage.getFirst(metaRid); entry != null; entry = leafPage
-						.getNext(metaRid)) {
-					trace.writeBytes("   " + entry.key + " " + entry.data);
+				setSeparator(parent, sepSlot, up.key);
+			}
+		} catch (IndexInsertRecException e) {
+			throw new RedistributeException(e, "");
+		} catch (ConstructPageException e) {
+			throw new RedistributeException(e, "");
+		} catch (DeleteRecException e) {
+			throw new RedistributeException(e, "");
+		}
+	}
+
+	/*
+	 * Compaction, for BTreeCompactor: pack the children of a page left to
+	 * right to fillFactor of a page each, merging neighbours that fit
+	 * together and moving entries left otherwise. Only children of the same
+	 * page are merged. Returns the number of pages freed.
+	 */
+	int packChildren(PageId parentId, double fillFactor)
+			throws LeafRedistributeException, RedistributeException,
+			KeyNotMatchException, PinPageException, UnpinPageException,
+			FreePageException, IteratorException, ConstructPageException,
+			IOException {
+		Page page = pinPage(parentId);
+		byte[] pdata = page.getpage();
+		BTIndexPage parent = new BTIndexPage(page, headerPage.get_keyType());
+		int packTo = Math.max(1, (int) (fillFactor * (pdata.length - HFPage.DPFIXED)));
+		int freed = 0;
+		int sepSlot = 0;
+		while (sepSlot < BTPageOps.slotCount(pdata)) {
+			PageId leftId = new PageId(BTPageOps.childPid(pdata, sepSlot));
+			PageId rightId = new PageId(BTPageOps.childPid(pdata, sepSlot + 1));
+			Page left = pinPage(leftId);
+			Page right = pinPage(rightId);
+			boolean merged;
+			if (BTPageOps.pageType(left.getpage()) == NodeType.INDEX)
+				merged = rebalanceIndex(parent, sepSlot, left, right, packTo);
+			else
+				merged = rebalanceLeaves(parent, sepSlot, left, right, packTo);
+			unpinPage(leftId, true /* = DIRTY */);
+			unpinPage(rightId, true /* = DIRTY */);
+			if (merged) {
+				freePage(rightId);
+				residentStale = true;
+				freed++;
+			} else {
+				sepSlot++;
+			}
+		}
+		unpinPage(parentId, true /* = DIRTY */);
+		return freed;
+	}
+
+	/*
+	 * For BTreeCompactor: descend towards cursor (the leftmost path if it
+	 * is null), taking the last child whose keys are all <= cursor, and
+	 * return the page `level' levels above the leaves on that path (level
+	 * 1 is a parent of leaves), or null if the tree is not that tall.
+	 * upper[0] is set to the key that bounds the page on the right, or null
+	 * for the rightmost page of its level.
+	 */
+	PageId levelPage(KeyClass cursor, int level, KeyClass[] upper)
+			throws KeyNotMatchException, PinPageException, UnpinPageException,
+			IteratorException, IOException {
+		refreshResident();
+		List<Integer> path = new ArrayList<Integer>();
+		List<KeyClass> bounds = new ArrayList<KeyClass>();
+		PageId pageno = new PageId(headerPage.get_rootId().pid);
+		KeyClass bound = null;
+		while (pageno.pid != INVALID_PAGE) {
+			path.add(pageno.pid);
+			bounds.add(bound);
+			byte[] data = pinPage(pageno).getpage();
+			int next = INVALID_PAGE;
+			if (BTPageOps.pageType(data) == NodeType.INDEX) {
+				int pos = (cursor == null) ? 0 : BTPageOps.upperBound(data, cursor);
+				if (pos < BTPageOps.slotCount(data))
+					bound = entryAt(data, pos, NodeType.INDEX).key;
+				next = BTPageOps.childPid(data, pos);
+			}
+			unpinPage(pageno);
+			pageno.pid = next;
+		}
+		int index = path.size() - 1 - level;
+		if (index < 0)
+			return null;
+		upper[0] = bounds.get(index);
+		return new PageId(path.get(index));
+	}
+
+	/*
+	 * Number of levels, leaves included; 0 for an empty tree.
+	 */
+	int height() throws PinPageException, UnpinPageException, IOException {
+		int height = 0;
+		PageId pageno = new PageId(headerPage.get_rootId().pid);
+		while (pageno.pid != INVALID_PAGE) {
+			height++;
+			byte[] data = pinPage(pageno).getpage();
+			int next = (BTPageOps.pageType(data) == NodeType.INDEX)
+					? BTPageOps.childPid(data, 0) : INVALID_PAGE;
+			unpinPage(pageno);
+			pageno.pid = next;
+		}
+		return height;
+	}
+
+	/*
+	 * BTreeFileStats.analyze: the pages of each level, from the root down,
+	 * found by reading every index page's children; the leaves are found
+	 * along the leaf chain from the first one, which also takes in leaves
+	 * split off since their parent was read. In concurrent mode each page
+	 * is latched shared while it is read; pages are never freed in
+	 * concurrent mode, so children read from a parent stay valid.
+	 */
+	List<BTreeLevelStats> levelStats() throws IOException, PinPageException,
+			UnpinPageException {
+		if (headerPage == null)
+			throw new IllegalStateException("file " + dbname + " is closed");
+		List<BTreeLevelStats> levels = new ArrayList<BTreeLevelStats>();
+		List<Integer> level = new ArrayList<Integer>();
+		if (latches != null)
+			rootLatch.readLock().lock();
+		try {
+			if (headerPage.get_rootId().pid != INVALID_PAGE)
+				level.add(headerPage.get_rootId().pid);
+		} finally {
+			if (latches != null)
+				rootLatch.readLock().unlock();
+		}
+
+		while (!level.isEmpty()) {
+			List<Integer> below = new ArrayList<Integer>();
+			boolean leaf = false;
+			long entries = 0;
+			int empty = 0;
+			double minFill = 1.0, maxFill = 0.0, sumFill = 0.0;
+			int[] fills = new int[10];
+			for (int i = 0; i < level.size(); i++) {
+				int pid = level.get(i);
+				PageId pageno = new PageId(pid);
+				byte[] data = pinPage(pageno).getpage();
+				if (latches != null)
+					latches.lock(pid, false);
+				try {
+					int slotCnt = BTPageOps.slotCount(data);
+					leaf = BTPageOps.pageType(data) != NodeType.INDEX;
+					if (!leaf) {
+						for (int pos = 0; pos <= slotCnt; pos++)
+							below.add(BTPageOps.childPid(data, pos));
+					} else {
+						if (i == 0)
+							level = new ArrayList<Integer>(Collections.singletonList(pid));
+						int next = BTPageOps.getInt(data, HFPage.NEXT_PAGE);
+						if (next != INVALID_PAGE)
+							level.add(next);
+					}
+					entries += slotCnt;
+					if (slotCnt == 0)
+						empty++;
+					double fill = (double) BTPageOps.usedSpace(data)
+							/ (data.length - HFPage.DPFIXED);
+					minFill = Math.min(minFill, fill);
+					maxFill = Math.max(maxFill, fill);
+					sumFill += fill;
+					fills[Math.min((int) (fill * 10), 9)]++;
+				} finally {
+					if (latches != null)
+						latches.unlock(pid, false);
+					unpinPage(pageno);
 				}
 			}
-			unpinPage(id);
-			trace.writeBytes(lineSep);
-			trace.flush();
+			levels.add(new BTreeLevelStats(levels.size(), leaf, level.size(),
+					entries, empty, minFill, sumFill / level.size(), maxFill,
+					fills));
+			level = below;
+		}
+		return levels;
+	}
+
+	/*
+	 * Add an entry after every entry of an index page; its key is not less
+	 * than any key there.
+	 */
+	private void appendIndexEntry(BTIndexPage indexPage, KeyDataEntry entry)
+			throws IndexInsertRecException, IOException {
+		byte[] data = indexPage.getpage();
+		PageId lastChild = new PageId(BTPageOps.childPid(data,
+				BTPageOps.slotCount(data)));
+		insertAfterChild(indexPage, lastChild, entry);
+	}
+
+	/*
+	 * True if the parent entry at sepSlot can be replaced by one with key
+	 * sep.
+	 */
+	private boolean roomForSeparator(BTIndexPage parent, int sepSlot,
+			KeyClass sep) throws KeyNotMatchException, IOException {
+		byte[] pdata = parent.getpage();
+		int size;
+		try {
+			size = BT.getKeyDataLength(sep, NodeType.INDEX);
+		} catch (NodeNotMatchException e) {
+			throw new KeyNotMatchException(e, "");
+		}
+		return BTPageOps.availableSpace(pdata) + BTPageOps.slotLength(pdata, sepSlot) >= size;
+	}
+
+	/*
+	 * Replace the key of the parent entry at sepSlot, keeping it right
+	 * after the entry for the child on its left.
+	 */
+	private void setSeparator(BTIndexPage parent, int sepSlot, KeyClass sep)
+			throws DeleteRecException, IndexInsertRecException, IOException {
+		byte[] pdata = parent.getpage();
+		PageId leftId = new PageId(BTPageOps.childPid(pdata, sepSlot));
+		PageId rightId = new PageId(BTPageOps.childPid(pdata, sepSlot + 1));
+		parent.deleteSortedRecord(new RID(parent.getCurPage(), sepSlot));
+		insertAfterChild(parent, leftId, new KeyDataEntry(sep, rightId));
+	}
+
+	private KeyDataEntry entryAt(byte[] data, int slot, short nodeType)
+			throws IteratorException {
+		try {
+			return BT.getEntryFromBytes(data, BTPageOps.slotOffset(data, slot),
+					BTPageOps.slotLength(data, slot), headerPage.get_keyType(),
+					nodeType);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/*
+	 * Concurrent NaiveDelete: the run of `key' is walked left to right with
+	 * exclusive latch coupling.
+	 */
+	private boolean deleteLatched(KeyClass key, RID rid)
+			throws KeyNotMatchException, PinPageException,
+			ConstructPageException, IOException, UnpinPageException,
+			LeafDeleteException, DeleteRecException {
+		PageId pageno = new PageId();
+		Page page = latchLeaf(key, false, true, pageno);
+		if (page == null)
+			return false;
+
+		boolean deleted = false;
+		try {
+			int slot = BTPageOps.lowerBound(page.getpage(), key);
+			while (true) {
+				byte[] data = page.getpage();
+				for (; slot < BTPageOps.slotCount(data); slot++) {
+					if (BTPageOps.compareKey(data, slot, key) > 0)
+						return false;
+					if (BTPageOps.ridEquals(data, slot, rid)) {
+						new BTLeafPage(page, headerPage.get_keyType())
+								.deleteSortedRecord(new RID(pageno, slot));
+						deleted = true;
+						return true;
+					}
+				}
+
+				PageId nextpageno = new PageId(BTPageOps.getInt(data,
+						HFPage.NEXT_PAGE));
+				if (nextpageno.pid == INVALID_PAGE)
+					return false;
+				Page next = pinPage(nextpageno);
+				latches.lock(nextpageno.pid, true);
+				latches.unlock(pageno.pid, true);
+				unpinPage(pageno);
+				pageno = nextpageno;
+				page = next;
+				slot = 0;
+			}
+		} finally {
+			latches.unlock(pageno.pid, true);
+			unpinPage(pageno, deleted);
+		}
+	}
+
+	/**
+	 * Delete every entry with a key in [lo_key, hi_key], the range a scan
+	 * with the same keys returns; a null key leaves that end open. The tree
+	 * is descended once, to the first leaf of the range, and the leaf chain
+	 * is walked from there, removing the entries in range from each leaf in
+	 * one pass. Leaves that end up empty stay in the tree.
+	 *
+	 * @param lo_key
+	 *            the lowest key to delete, or null. Input parameter.
+	 * @param hi_key
+	 *            the highest key to delete, or null. Input parameter.
+	 * @return the number of entries deleted
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int deleteRange(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException, PinPageException, UnpinPageException,
+			FreePageException, IteratorException, ConstructPageException,
+			IOException {
+		return deleteRange(lo_key, hi_key, false);
+	}
+
+	/**
+	 * Delete every entry with a key in [lo_key, hi_key], as above. With
+	 * freeEmpty, the leaves in the range left with no entries are then
+	 * unlinked from the leaf chain and freed, together with their index
+	 * entries and any index page left with no children, in one more
+	 * descent. Leaves that are not empty are not merged; BTreeCompactor
+	 * packs them. In concurrent mode empty leaves are never freed, since
+	 * latches are only taken top-down. The statistics count the call as one
+	 * delete; a trace gets a DELETE for every entry removed.
+	 *
+	 * @param lo_key
+	 *            the lowest key to delete, or null. Input parameter.
+	 * @param hi_key
+	 *            the highest key to delete, or null. Input parameter.
+	 * @param freeEmpty
+	 *            free the leaves emptied. Input parameter.
+	 * @return the number of entries deleted
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int deleteRange(KeyClass lo_key, KeyClass hi_key, boolean freeEmpty)
+			throws KeyNotMatchException, PinPageException, UnpinPageException,
+			FreePageException, IteratorException, ConstructPageException,
+			IOException {
+		long start = System.nanoTime();
+		long pins = BTreeFileStats.pins();
+		try {
+			return removeRange(lo_key, hi_key, freeEmpty);
+		} finally {
+			stats.record(BTreeFileStats.DELETE, start, pins);
+		}
+	}
+
+	private int removeRange(KeyClass lo_key, KeyClass hi_key, boolean freeEmpty)
+			throws KeyNotMatchException, PinPageException, UnpinPageException,
+			FreePageException, IteratorException, ConstructPageException,
+			IOException {
+		if (latches != null)
+			return deleteRangeLatched(lo_key, hi_key);
+		refreshResident();
+
+		RID startrid = new RID();
+		BTLeafPage leafPage = findRunStart(lo_key, startrid);
+		if (leafPage == null)
+			return 0;
+
+		PageId pageno = new PageId(leafPage.getCurPage().pid);
+		byte[] data = leafPage.getpage();
+		int slot = startrid.slotNo;
+		int deleted = 0;
+		Set<Integer> emptied = new HashSet<Integer>();
+		while (true) {
+			int removed = removeUpTo(data, slot, hi_key);
+			deleted += removed;
+			int left = BTPageOps.slotCount(data);
+			if (left == 0)
+				emptied.add(pageno.pid);
+			PageId nextpageno = new PageId(BTPageOps.getInt(data,
+					HFPage.NEXT_PAGE));
+			unpinPage(pageno, removed > 0);
+			// Stop at the first key past hi_key
+			if (left > slot || nextpageno.pid == INVALID_PAGE)
+				break;
+			pageno = nextpageno;
+			data = pinPage(pageno).getpage();
+			slot = 0;
+		}
+
+		if (freeEmpty && !emptied.isEmpty()) {
+			PageId rootId = new PageId(headerPage.get_rootId().pid);
+			if (freeEmptied(rootId, height(), lo_key, hi_key, emptied))
+				updateHeader(new PageId(INVALID_PAGE));
+			else
+				collapseRoot();
+		}
+		return deleted;
+	}
+
+	/*
+	 * Remove the entries of a leaf from slot on up to the last one with a
+	 * key <= hi_key (every one, if hi_key is null). Returns the number
+	 * removed; if it leaves no entries from slot on, the range may go on
+	 * into the next leaf.
+	 */
+	private int removeUpTo(byte[] data, int slot, KeyClass hi_key)
+			throws KeyNotMatchException, IOException {
+		int end = (hi_key == null) ? BTPageOps.slotCount(data) : BTPageOps
+				.upperBound(data, hi_key);
+		if (end <= slot)
+			return 0;
+		BTTracer t = tracer;
+		if (t != null) {
+			int keyType = headerPage.get_keyType();
+			for (int i = slot; i < end; i++) {
+				RID rid = BTPageOps.ridAt(data, i);
+				t.event(BTTracer.DELETE, 0, rid.pageNo.pid, rid.slotNo,
+						BTPageOps.keyAt(data, i, keyType));
+			}
+		}
+		BTPageOps.removeSlots(data, slot, end);
+		return end - slot;
+	}
+
+	/*
+	 * Free the leaves in `emptied' that can hold keys in [lo_key, hi_key]
+	 * under pageno, which is `levels' levels high (a leaf is 1); no other
+	 * leaf is pinned. Each is unlinked from the leaf chain and its index
+	 * entry dropped; when the child that goes is the left link, the next
+	 * child takes its place. Returns true if pageno itself was freed: an
+	 * emptied leaf, or an index page whose children were all freed.
+	 */
+	private boolean freeEmptied(PageId pageno, int levels, KeyClass lo_key,
+			KeyClass hi_key, Set<Integer> emptied) throws KeyNotMatchException,
+			PinPageException, UnpinPageException, FreePageException,
+			ConstructPageException, IOException {
+		Page page = pinPage(pageno);
+		byte[] data = page.getpage();
+
+		if (BTPageOps.pageType(data) != NodeType.INDEX) {
+			boolean empty = emptied.contains(pageno.pid)
+					&& BTPageOps.slotCount(data) == 0;
+			PageId prevId = new PageId(BTPageOps.getInt(data, HFPage.PREV_PAGE));
+			PageId nextId = new PageId(BTPageOps.getInt(data, HFPage.NEXT_PAGE));
+			unpinPage(pageno);
+			if (!empty)
+				return false;
+			int keyType = headerPage.get_keyType();
+			if (prevId.pid != INVALID_PAGE) {
+				new BTLeafPage(pinPage(prevId), keyType).setNextPage(nextId);
+				unpinPage(prevId, true /* = DIRTY */);
+			}
+			if (nextId.pid != INVALID_PAGE) {
+				new BTLeafPage(pinPage(nextId), keyType).setPrevPage(prevId);
+				unpinPage(nextId, true /* = DIRTY */);
+			}
+			freePage(pageno);
+			return true;
+		}
+
+		// Right to left, so the positions still to visit do not move
+		int first = (lo_key == null) ? 0 : BTPageOps.lowerBound(data, lo_key);
+		int last = (hi_key == null) ? BTPageOps.slotCount(data) : BTPageOps
+				.upperBound(data, hi_key);
+		boolean dirty = false;
+		for (int pos = last; pos >= first; pos--) {
+			int child = BTPageOps.childPid(data, pos);
+			if (levels == 2 && !emptied.contains(child))
+				continue;
+			if (!freeEmptied(new PageId(child), levels - 1, lo_key, hi_key,
+					emptied))
+				continue;
+			dirty = true;
+			residentStale = true;
+			if (pos > 0) {
+				BTPageOps.removeSlots(data, pos - 1, pos);
+			} else if (BTPageOps.slotCount(data) > 0) {
+				new BTIndexPage(page, headerPage.get_keyType())
+						.setPrevPage(new PageId(BTPageOps.childPid(data, 1)));
+				BTPageOps.removeSlots(data, 0, 1);
+			} else {
+				unpinPage(pageno, true /* = DIRTY */);
+				freePage(pageno);
+				return true;
+			}
+		}
+		unpinPage(pageno, dirty);
+		return false;
+	}
+
+	/*
+	 * Concurrent deleteRange: the leaves of the range are walked left to
+	 * right with exclusive latch coupling.
+	 */
+	private int deleteRangeLatched(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException, PinPageException, UnpinPageException,
+			IOException {
+		PageId pageno = new PageId();
+		Page page = latchLeaf(lo_key, false, true, pageno);
+		if (page == null)
+			return 0;
+
+		int deleted = 0;
+		boolean dirty = false;
+		try {
+			int slot = (lo_key == null) ? 0 : BTPageOps.lowerBound(
+					page.getpage(), lo_key);
+			while (true) {
+				byte[] data = page.getpage();
+				int removed = removeUpTo(data, slot, hi_key);
+				deleted += removed;
+				dirty = removed > 0;
+				if (BTPageOps.slotCount(data) > slot)
+					return deleted;
+
+				PageId nextpageno = new PageId(BTPageOps.getInt(data,
+						HFPage.NEXT_PAGE));
+				if (nextpageno.pid == INVALID_PAGE)
+					return deleted;
+				Page next = pinPage(nextpageno);
+				latches.lock(nextpageno.pid, true);
+				latches.unlock(pageno.pid, true);
+				unpinPage(pageno, dirty);
+				pageno = nextpageno;
+				page = next;
+				slot = 0;
+				dirty = false;
+			}
+		} finally {
+			latches.unlock(pageno.pid, true);
+			unpinPage(pageno, dirty);
+		}
+	}
+
+	/*
+	 * Concurrent scans: append to `out' the entries of the leaf after
+	 * `pid' in the leaf chain, or, if pid is INVALID_PAGE, those >= lo_key
+	 * on the leaf where lo_key's run starts. The leaf is read under a shared
+	 * latch and released before returning. Returns the id of the leaf read,
+	 * or INVALID_PAGE at the end of the chain.
+	 */
+	int copyLeaf(int pid, KeyClass lo_key, ArrayList<KeyDataEntry> out)
+			throws IOException, KeyNotMatchException, PinPageException,
+			UnpinPageException, ConstructPageException, IteratorException {
+		PageId pageno = new PageId(pid);
+		Page page;
+		int slot = 0;
+		if (pid == INVALID_PAGE) {
+			page = latchLeaf(lo_key, false, false, pageno);
+			if (page == null)
+				return INVALID_PAGE;
+			if (lo_key != null)
+				slot = BTPageOps.lowerBound(page.getpage(), lo_key);
+		} else {
+			// Read the next link now: a split since the last call put the
+			// moved entries right after this leaf
+			page = pinPage(pageno);
+			latches.lock(pid, false);
+			PageId nextpageno = new PageId(BTPageOps.getInt(page.getpage(),
+					HFPage.NEXT_PAGE));
+			Page next = null;
+			try {
+				if (nextpageno.pid != INVALID_PAGE) {
+					next = pinPage(nextpageno);
+					latches.lock(nextpageno.pid, false);
+				}
+			} finally {
+				latches.unlock(pid, false);
+				unpinPage(pageno);
+			}
+			if (next == null)
+				return INVALID_PAGE;
+			pageno = nextpageno;
+			page = next;
+		}
+
+		try {
+			copyEntries(page, slot, out);
+		} finally {
+			latches.unlock(pageno.pid, false);
+			unpinPage(pageno);
+		}
+		return pageno.pid;
+	}
+
+	/*
+	 * Append the entries of a pinned leaf from slot on to `out'.
+	 */
+	private void copyEntries(Page page, int slot, ArrayList<KeyDataEntry> out)
+			throws IOException, ConstructPageException, IteratorException {
+		BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+		RID metaRid = new RID();
+		KeyDataEntry entry = leafPage.getFirst(metaRid);
+		for (int i = 0; entry != null; i++) {
+			if (i >= slot)
+				out.add(entry);
+			entry = leafPage.getNext(metaRid);
+		}
+	}
+
+	/*
+	 * Descending scans: append to `out' the entries of the leaf that holds
+	 * the last entry <= hi_key, or of a leaf after it (the last leaf, if
+	 * hi_key is null), and leave its id in pageno; INVALID_PAGE if the tree
+	 * is empty. In concurrent mode the descent and the copy are done under
+	 * shared latches. Returns the id of the leaf before it.
+	 */
+	int copyLastLeaf(KeyClass hi_key, PageId pageno,
+			ArrayList<KeyDataEntry> out) throws IOException,
+			KeyNotMatchException, PinPageException, UnpinPageException,
+			ConstructPageException, IteratorException {
+		Page page;
+		if (latches != null) {
+			page = latchLeaf(hi_key, true, false, pageno);
+		} else {
+			refreshResident();
+			page = null;
+			pageno.pid = headerPage.get_rootId().pid;
+			if (pageno.pid != INVALID_PAGE)
+				page = pinPage(pageno);
+			while (page != null
+					&& BTPageOps.pageType(page.getpage()) == NodeType.INDEX) {
+				byte[] data = page.getpage();
+				int childpid = BTPageOps.childPid(data, (hi_key == null)
+						? BTPageOps.slotCount(data) : BTPageOps.upperBound(data, hi_key));
+				unpinPage(pageno);
+				pageno.pid = childpid;
+				page = pinPage(pageno);
+			}
+		}
+		if (page == null) {
+			pageno.pid = INVALID_PAGE;
+			return INVALID_PAGE;
+		}
+
+		try {
+			copyEntries(page, 0, out);
+			return BTPageOps.getInt(page.getpage(), HFPage.PREV_PAGE);
+		} finally {
+			if (latches != null)
+				latches.unlock(pageno.pid, false);
+			unpinPage(pageno);
+		}
+	}
+
+	/*
+	 * Descending scans: append to `out' the entries of leaf `prev', the one
+	 * before leaf `first' that was copied last. If leaves were split off
+	 * prev since, they are between the two and are copied as well, walking
+	 * right from prev (with shared latch coupling in concurrent mode).
+	 * Returns the id of the leaf before prev.
+	 */
+	int copyLeavesBefore(int prev, int first, ArrayList<KeyDataEntry> out)
+			throws IOException, PinPageException, UnpinPageException,
+			ConstructPageException, IteratorException {
+		PageId pageno = new PageId(prev);
+		Page page = pinPage(pageno);
+		if (latches != null)
+			latches.lock(pageno.pid, false);
+		try {
+			int before = BTPageOps.getInt(page.getpage(), HFPage.PREV_PAGE);
+			while (true) {
+				copyEntries(page, 0, out);
+				PageId nextpageno = new PageId(BTPageOps.getInt(page.getpage(),
+						HFPage.NEXT_PAGE));
+				if (nextpageno.pid == first || nextpageno.pid == INVALID_PAGE)
+					return before;
+				Page next = pinPage(nextpageno);
+				if (latches != null) {
+					latches.lock(nextpageno.pid, false);
+					latches.unlock(pageno.pid, false);
+				}
+				unpinPage(pageno);
+				pageno = nextpageno;
+				page = next;
+			}
+		} finally {
+			if (latches != null)
+				latches.unlock(pageno.pid, false);
+			unpinPage(pageno);
+		}
+	}
+
+	/*
+	 * delete_current of a descending scan: remove <key, rid> without
+	 * merging leaves, whatever the delete fashion, so the leaves the scan
+	 * has yet to copy stay where they are.
+	 */
+	boolean deleteForScan(KeyClass key, RID rid) throws KeyNotMatchException,
+			PinPageException, ConstructPageException, IOException,
+			UnpinPageException, LeafDeleteException, DeleteRecException,
+			IndexSearchException, IteratorException {
+		if (latches != null)
+			return deleteLatched(key, rid);
+		refreshResident();
+		return NaiveDelete(key, rid);
+	}
+
+	/**
+	 * Look up a key: descend to the leaf where its run starts, search the
+	 * leaf in place and unpin it, without creating a scan. If the key has
+	 * duplicates, the rid of the first one in key order is returned.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @return the rid of an entry with the key, or null if there is none
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public RID lookup(KeyClass key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		long start = System.nanoTime();
+		long pins = BTreeFileStats.pins();
+		RID[] out = new RID[1];
+		try {
+			return (search(key, out, false) == 0) ? null : out[0];
+		} finally {
+			stats.record(BTreeFileStats.LOOKUP, start, pins);
+		}
+	}
+
+	/**
+	 * Look up every entry with a key, as lookup does, following its run of
+	 * duplicates along the leaf chain. The rids are stored in
+	 * <code>out</code> in key order, as many as fit; the return value
+	 * counts them all, so a result greater than out.length means some
+	 * were left out.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @param out
+	 *            the array the rids are stored in. Output parameter.
+	 * @return the number of entries with the key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int lookupAll(KeyClass key, RID[] out) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		long start = System.nanoTime();
+		long pins = BTreeFileStats.pins();
+		try {
+			return search(key, out, true);
+		} finally {
+			stats.record(BTreeFileStats.LOOKUP, start, pins);
+		}
+	}
+
+	/*
+	 * Store the rids of the entries with `key' in `out', as many as fit,
+	 * and return how many there are; with all == false stop at the first.
+	 * In concurrent mode the run is walked with shared latch coupling.
+	 */
+	private int search(KeyClass key, RID[] out, boolean all)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		PageId pageno = new PageId();
+		Page page;
+		int slot;
+		if (latches != null) {
+			page = latchLeaf(key, false, false, pageno);
+			if (page == null)
+				return 0;
+			slot = BTPageOps.lowerBound(page.getpage(), key);
+		} else {
+			refreshResident();
+			RID startrid = new RID();
+			page = findRunStart(key, startrid);
+			if (page == null)
+				return 0;
+			pageno.pid = startrid.pageNo.pid;
+			slot = startrid.slotNo;
+		}
+
+		int found = 0;
+		try {
+			while (true) {
+				byte[] data = page.getpage();
+				for (; slot < BTPageOps.slotCount(data); slot++) {
+					if (BTPageOps.compareKey(data, slot, key) != 0)
+						return found;
+					if (found < out.length)
+						out[found] = BTPageOps.ridAt(data, slot);
+					found++;
+					if (!all)
+						return found;
+				}
+
+				PageId nextpageno = new PageId(BTPageOps.getInt(data,
+						HFPage.NEXT_PAGE));
+				if (nextpageno.pid == INVALID_PAGE)
+					return found;
+				Page next = pinPage(nextpageno);
+				if (latches != null) {
+					latches.lock(nextpageno.pid, false);
+					latches.unlock(pageno.pid, false);
+				}
+				unpinPage(pageno);
+				pageno = nextpageno;
+				page = next;
+				slot = 0;
+			}
+		} finally {
+			if (latches != null)
+				latches.unlock(pageno.pid, false);
+			unpinPage(pageno);
+		}
+	}
+
+	/**
+	 * Look up a batch of keys, as lookup does for each. The keys are probed
+	 * in sorted order along one path from the root: the pages of the last
+	 * descent stay pinned, and the next key climbs only as far as the
+	 * lowest page whose subtree can hold it before descending again. Within
+	 * a leaf a cursor moves forward from key to key, so a batch costs about
+	 * one pass over the leaves and index pages it touches instead of one
+	 * descent per key. In concurrent mode the keys are looked up one at a
+	 * time, in sorted order, since holding a path latched would hold up
+	 * writers. The statistics count the call as one lookup.
+	 *
+	 * @param keys
+	 *            the keys to look up, in any order. Input parameter.
+	 * @param out
+	 *            out[i] is set to the rid of the first entry with keys[i],
+	 *            or null if there is none. Output parameter.
+	 * @return the number of keys found
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int multiGet(KeyClass[] keys, RID[] out) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		long start = System.nanoTime();
+		long pins = BTreeFileStats.pins();
+		try {
+			return probeAll(keys, out);
+		} finally {
+			stats.record(BTreeFileStats.LOOKUP, start, pins);
+		}
+	}
+
+	private int probeAll(final KeyClass[] keys, RID[] out) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		Integer[] order = new Integer[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			order[i] = i;
+		try {
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					try {
+						return BT.keyCompare(keys[a], keys[b]);
+					} catch (KeyNotMatchException e) {
+						throw new IllegalArgumentException(e);
+					}
+				}
+			});
+		} catch (IllegalArgumentException e) {
+			throw new KeyNotMatchException(e, "");
+		}
+
+		int found = 0;
+		if (latches != null) {
+			RID[] rid = new RID[1];
+			for (int i : order) {
+				out[i] = (search(keys[i], rid, false) == 0) ? null : rid[0];
+				if (out[i] != null)
+					found++;
+			}
+			return found;
+		}
+
+		refreshResident();
+		// The pinned path, root first. The subtree under path[d] holds the
+		// keys up to the key in slot bound[d] of page boundData[d], which is
+		// pinned further up; boundData[d] is null for no upper bound
+		ArrayList<PageId> path = new ArrayList<PageId>();
+		ArrayList<byte[]> pathData = new ArrayList<byte[]>();
+		ArrayList<byte[]> boundData = new ArrayList<byte[]>();
+		ArrayList<Integer> bound = new ArrayList<Integer>();
+		int slot = 0;
+		try {
+			for (int i : order) {
+				KeyClass key = keys[i];
+				// Climb to the lowest page whose subtree can hold key. Keys
+				// come in ascending order, so only the upper bound matters
+				int top = path.size() - 1;
+				while (top >= 0 && boundData.get(top) != null
+						&& BTPageOps.compareKey(boundData.get(top), bound.get(top), key) < 0) {
+					unpinPage(path.remove(top));
+					pathData.remove(top);
+					boundData.remove(top);
+					bound.remove(top);
+					top--;
+				}
+				if (top < 0) {
+					PageId rootId = new PageId(headerPage.get_rootId().pid);
+					if (rootId.pid == INVALID_PAGE) {
+						out[i] = null;
+						continue;
+					}
+					path.add(rootId);
+					pathData.add(pinPage(rootId).getpage());
+					boundData.add(null);
+					bound.add(0);
+					top = 0;
+					slot = 0;
+				}
+
+				// Descend as a lookup of key would
+				while (BTPageOps.pageType(pathData.get(top)) == NodeType.INDEX) {
+					byte[] data = pathData.get(top);
+					int pos = BTPageOps.lowerBound(data, key);
+					PageId childId = new PageId(BTPageOps.childPid(data, pos));
+					if (pos < BTPageOps.slotCount(data)) {
+						boundData.add(data);
+						bound.add(pos);
+					} else {
+						boundData.add(boundData.get(top));
+						bound.add(bound.get(top));
+					}
+					path.add(childId);
+					pathData.add(pinPage(childId).getpage());
+					top++;
+					slot = 0;
+				}
+
+				byte[] data = pathData.get(top);
+				int slotCnt = BTPageOps.slotCount(data);
+				while (slot < slotCnt && BTPageOps.compareKey(data, slot, key) < 0)
+					slot++;
+				if (slot < slotCnt)
+					out[i] = (BTPageOps.compareKey(data, slot, key) == 0)
+							? BTPageOps.ridAt(data, slot) : null;
+				else
+					out[i] = firstAfter(BTPageOps.getInt(data, HFPage.NEXT_PAGE), key);
+				if (out[i] != null)
+					found++;
+			}
+		} finally {
+			for (int d = path.size() - 1; d >= 0; d--)
+				unpinPage(path.get(d));
+		}
+		return found;
+	}
+
+	/*
+	 * multiGet: every entry on a leaf is less than key, so key's run, if
+	 * any, starts on a later leaf, as in findRunStart. Returns the rid of
+	 * its first entry, or null.
+	 */
+	private RID firstAfter(int pid, KeyClass key) throws KeyNotMatchException,
+			PinPageException, UnpinPageException {
+		while (pid != INVALID_PAGE) {
+			PageId pageno = new PageId(pid);
+			byte[] data = pinPage(pageno).getpage();
+			int slot = BTPageOps.lowerBound(data, key);
+			RID rid = null;
+			if (slot < BTPageOps.slotCount(data)) {
+				if (BTPageOps.compareKey(data, slot, key) == 0)
+					rid = BTPageOps.ridAt(data, slot);
+				pid = INVALID_PAGE;
+			} else {
+				pid = BTPageOps.getInt(data, HFPage.NEXT_PAGE);
+			}
+			unpinPage(pageno);
+			if (rid != null)
+				return rid;
+		}
+		return null;
+	}
+
+	/**
+	 * A stream of the entries in [lo_key, hi_key], in key order, read
+	 * through a scan as the stream is consumed. Its spliterator splits the
+	 * range at separator keys of the root index page (or of the highest
+	 * index page below it that has some inside the range), so a parallel
+	 * stream reads disjoint subtrees with one scan each; the entries of a
+	 * run of duplicates all go to the same part. Each scan unpins its page
+	 * when it runs out, and closing the stream closes any scan a
+	 * short-circuiting operation left open, so the stream should be closed,
+	 * e.g. with try-with-resources. Errors while scanning are thrown as
+	 * IllegalStateException. With a plain BufMgr the scans of a parallel
+	 * stream take turns on it, as BTReadAheadScan does, so only a
+	 * ConcurrentBufMgr lets them read in parallel. A parallel stream must
+	 * not run alongside inserts or deletes unless the file is in concurrent
+	 * mode.
+	 *
+	 * @param lo_key
+	 *            the key where the stream begins, or null. Input parameter.
+	 * @param hi_key
+	 *            the key where the stream ends, or null. Input parameter.
+	 * @return a sequential stream; call parallel() for a parallel one
+	 */
+	public Stream<KeyDataEntry> stream(KeyClass lo_key, KeyClass hi_key) {
+		final BTSpliterator spliterator = new BTSpliterator(this, lo_key, hi_key);
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			public void run() {
+				spliterator.close();
+			}
+		});
+	}
+
+	/**
+	 * The keys of stream(lo_key, hi_key) as ints, for a tree of integer
+	 * keys. Closing the stream releases its scans as for stream.
+	 *
+	 * @param lo_key
+	 *            the key where the stream begins, or null. Input parameter.
+	 * @param hi_key
+	 *            the key where the stream ends, or null. Input parameter.
+	 * @return a sequential stream of keys
+	 * @exception KeyNotMatchException
+	 *                the tree does not have integer keys
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public IntStream intStream(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException, IOException {
+		if (headerPage.get_keyType() != AttrType.attrInteger)
+			throw new KeyNotMatchException(null, "not an integer key tree");
+		return stream(lo_key, hi_key).mapToInt(new ToIntFunction<KeyDataEntry>() {
+			public int applyAsInt(KeyDataEntry entry) {
+				return ((IntegerKey) entry.key).getKey().intValue();
+			}
+		});
+	}
+
+	/*
+	 * Streams: the separator keys > lo_key and < end (null for no bound) in
+	 * the highest index page that has any, descending from the root toward
+	 * lo_key; empty if none has. When a page has none, the whole range lies
+	 * under the child the descent follows. In concurrent mode the pages are
+	 * read with shared latch coupling.
+	 */
+	List<KeyClass> separators(KeyClass lo_key, KeyClass end)
+			throws IOException, KeyNotMatchException, IteratorException,
+			PinPageException, UnpinPageException {
+		List<KeyClass> keys = new ArrayList<KeyClass>();
+		PageId pageno = new PageId();
+		Page page;
+		if (latches != null) {
+			rootLatch.readLock().lock();
+			try {
+				pageno.pid = headerPage.get_rootId().pid;
+				if (pageno.pid == INVALID_PAGE)
+					return keys;
+				page = pinPage(pageno);
+				latches.lock(pageno.pid, false);
+			} finally {
+				rootLatch.readLock().unlock();
+			}
+		} else {
+			refreshResident();
+			pageno.pid = headerPage.get_rootId().pid;
+			if (pageno.pid == INVALID_PAGE)
+				return keys;
+			page = pinPage(pageno);
+		}
+
+		try {
+			while (true) {
+				byte[] data = page.getpage();
+				if (BTPageOps.pageType(data) != NodeType.INDEX)
+					return keys;
+				int pos = (lo_key == null) ? 0 : BTPageOps.upperBound(data, lo_key);
+				for (int slot = pos; slot < BTPageOps.slotCount(data)
+						&& (end == null || BTPageOps.compareKey(data, slot, end) < 0); slot++)
+					keys.add(entryAt(data, slot, NodeType.INDEX).key);
+				if (!keys.isEmpty())
+					return keys;
+
+				PageId childId = new PageId(BTPageOps.childPid(data, pos));
+				Page child = pinPage(childId);
+				if (latches != null) {
+					latches.lock(childId.pid, false);
+					latches.unlock(pageno.pid, false);
+				}
+				unpinPage(pageno);
+				pageno = childId;
+				page = child;
+			}
+		} finally {
+			if (latches != null)
+				latches.unlock(pageno.pid, false);
+			unpinPage(pageno);
+		}
+	}
+
+	/**
+	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
+	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
+	 * to the hi_key (3) lo_key!= null, hi_key = null range scan from the lo_key
+	 * to max (4) lo_key!= null, hi_key!= null, lo_key = hi_key exact match (
+	 * might not unique) (5) lo_key!= null, hi_key!= null, lo_key < hi_key range
+	 * scan from lo_key to hi_key
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException
+
+	{
+		long start = System.nanoTime();
+		long pins = BTreeFileStats.pins();
+		try {
+			if (latches != null)
+				return new BTLinkScan(this, lo_key, hi_key,
+						headerPage.get_keyType(), headerPage.get_maxKeySize());
+			return initScan(new BTFileScan(), lo_key, hi_key);
+		} finally {
+			stats.record(BTreeFileStats.SCAN, start, pins);
+		}
+	}
+
+	/**
+	 * Create a scan that reads ahead on the leaf chain: each time the scan
+	 * moves to a new leaf, the next <code>readAhead</code> leaves (up to the
+	 * first one past hi_key) are pinned and unpinned in the background, so
+	 * they are already in the buffer pool when the scan reaches them. The
+	 * scan must be closed with DestroyBTreeFileScan, which waits for any
+	 * read-ahead still running. The background reads race with the
+	 * caller's own use of the buffer manager, so they are only done with a
+	 * ConcurrentBufMgr: with a plain BufMgr, in concurrent mode, or with
+	 * readAhead 0, this is the same as new_scan(lo_key, hi_key).
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @param readAhead
+	 *            number of leaves to read ahead of the scan. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key, int readAhead)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (latches != null || readAhead <= 0
+				|| !(SystemDefs.JavabaseBM instanceof ConcurrentBufMgr))
+			return new_scan(lo_key, hi_key);
+		long start = System.nanoTime();
+		long pins = BTreeFileStats.pins();
+		try {
+			return initScan(new BTReadAheadScan(this, readAhead), lo_key, hi_key);
+		} finally {
+			stats.record(BTreeFileStats.SCAN, start, pins);
+		}
+	}
+
+	/**
+	 * Create a scan over [lo_key, hi_key] in the given order. A descending
+	 * scan finds the leaf holding the last entry <= hi_key and walks the
+	 * leaf chain backwards through the prev links, so the first n entries
+	 * it returns are the n largest in range, read from the last leaves
+	 * only. It copies one leaf at a time and holds no pin between calls;
+	 * delete_current never merges leaves, even with full delete, but other
+	 * deletes that merge leaves must wait until the scan is closed. Any
+	 * other order is the same as new_scan(lo_key, hi_key).
+	 *
+	 * @param lo_key
+	 *            the key where the scan stops. Input parameter.
+	 * @param hi_key
+	 *            the key where the scan begins. Input parameter.
+	 * @param order
+	 *            TupleOrder.Descending or TupleOrder.Ascending. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key,
+			TupleOrder order) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		if (order.tupleOrder != TupleOrder.Descending)
+			return new_scan(lo_key, hi_key);
+		long start = System.nanoTime();
+		long pins = BTreeFileStats.pins();
+		try {
+			return new BTReverseScan(this, lo_key, hi_key,
+					headerPage.get_keyType(), headerPage.get_maxKeySize());
+		} finally {
+			stats.record(BTreeFileStats.SCAN, start, pins);
+		}
+	}
+
+	private BTFileScan initScan(BTFileScan scan, KeyClass lo_key,
+			KeyClass hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		refreshResident();
+		if (headerPage.get_rootId().pid == INVALID_PAGE) {
+			scan.leafPage = null;
+			return scan;
+		}
+
+		scan.treeFilename = dbname;
+		scan.endkey = hi_key;
+		scan.didfirst = false;
+		scan.deletedcurrent = false;
+		scan.curRid = new RID();
+		scan.keyType = headerPage.get_keyType();
+		scan.maxKeysize = headerPage.get_maxKeySize();
+		scan.bfile = this;
+
+		// this sets up scan at the starting position, ready for iteration
+		scan.leafPage = findRunStart(lo_key, scan.curRid);
+		return scan;
+	}
+
+	/*
+	 * Read-ahead for a BTReadAheadScan: pin and unpin up to n leaves on the
+	 * chain after leaf pid, stopping at a leaf whose first key is past
+	 * hi_key or once the scan is closed.
+	 */
+	void readAhead(int pid, int n, KeyClass hi_key, BTReadAheadScan scan)
+			throws PinPageException, UnpinPageException, KeyNotMatchException {
+		PageId pageno = new PageId(pid);
+		Page page = pinPage(pageno);
+		int next = BTPageOps.getInt(page.getpage(), HFPage.NEXT_PAGE);
+		unpinPage(pageno);
+		for (int i = 0; i < n && next != INVALID_PAGE && !scan.isClosed(); i++) {
+			pageno = new PageId(next);
+			byte[] data = pinPage(pageno).getpage();
+			next = BTPageOps.getInt(data, HFPage.NEXT_PAGE);
+			boolean past = hi_key != null && BTPageOps.slotCount(data) > 0
+					&& BTPageOps.compareKey(data, 0, hi_key) > 0;
+			unpinPage(pageno);
+			if (past)
+				break;
+		}
+	}
+
+	void trace_children(PageId id) throws IOException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+
+		BTTracer t = tracer;
+		if (t != null) {
+
+			BTSortedPage sortedPage;
+			RID metaRid = new RID();
+			KeyDataEntry entry;
+			List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			sortedPage = new BTSortedPage(pinPage(id), headerPage.get_keyType());
+			short type = sortedPage.getType();
+			PageId prevPage = new PageId(sortedPage.getPrevPage().pid);
+
+			// Collect the child nodes of the page, to claim a run of records
+			// for them all: the page's children are never split up in the
+			// trace
+			if (type == NodeType.INDEX) {
+				BTIndexPage indexPage = new BTIndexPage(sortedPage,
+						headerPage.get_keyType());
+				for (entry = indexPage.getFirst(metaRid); entry != null; entry = indexPage
+						.getNext(metaRid)) {
+					entries.add(entry);
+				}
+			} else if (type == NodeType.LEAF) {
+				BTLeafPage leafPage = new BTLeafPage(sortedPage,
+						headerPage.get_keyType());
+				for (entry = leafPage.getFirst(metaRid); entry != null; entry = leafPage
+						.getNext(metaRid)) {
+					entries.add(entry);
+				}
+			}
+			unpinPage(id);
+
+			if (type == NodeType.INDEX) {
+				long seq = t.claim(entries.size() + 3);
+				if (seq < 0)
+					return;
+				seq = t.put(seq, BTTracer.INDEX_CHILDREN, id.pid, 0, 0, null);
+				seq = t.put(seq, BTTracer.CHILD, prevPage.pid, 0, 0, null);
+				for (KeyDataEntry e : entries)
+					seq = t.put(seq, BTTracer.CHILD,
+							((IndexData) e.data).getData().pid, 0, 0, null);
+				t.put(seq, BTTracer.END, id.pid, 0, 0, null);
+			} else if (type == NodeType.LEAF) {
+				int n = 2;
+				for (KeyDataEntry e : entries)
+					n += BTTracer.records(e.key);
+				long seq = t.claim(n);
+				if (seq < 0)
+					return;
+				seq = t.put(seq, BTTracer.LEAF_CHILDREN, id.pid, 0, 0, null);
+				for (KeyDataEntry e : entries) {
+					RID rid = ((LeafData) e.data).getData();
+					seq = t.put(seq, BTTracer.ENTRY, id.pid, rid.pageNo.pid,
+							rid.slotNo, e.key);
+				}
+				t.put(seq, BTTracer.END, id.pid, 0, 0, null);
+			}
 		}
 
 	}
@@ -0,0 +1,320 @@
+/*
+ * @(#) BTreeFileStats.java
+ *
+ */
+
+package btree;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+/**
+ * BTreeFileStats counts what happens to one open BTreeFile: inserts,
+ * deletes, lookups and scans with the pages each pinned and how long each
+ * took, and leaf, index and root splits. Every BTreeFile has one, from
+ * {@link BTreeFile#getStats}, registered with the platform MBean server as
+ * <code>btree:type=BTreeFileStats,name="&lt;file name&gt;"</code> while
+ * the file is open (with an instance number added if the same file is
+ * open twice). A deleteRange counts as one delete and a multiGet as one
+ * lookup, however many entries or keys they cover.
+ * <p>
+ * The counters are LongAdders and each thread counts its own pins, so
+ * keeping them costs a few nanoseconds per operation and page, with no
+ * contention between threads. {@link #analyze} reads every page instead,
+ * and should be called when nothing else is changing the file, unless the
+ * file is in concurrent mode, where it latches each page while reading it.
+ */
+public class BTreeFileStats implements BTreeFileStatsMXBean {
+
+	static final int INSERT = 0;
+	static final int DELETE = 1;
+	static final int LOOKUP = 2;
+	static final int SCAN = 3;
+
+	private static final String[] OPERATIONS = { "insert", "delete", "lookup", "scan" };
+
+	/*
+	 * Four buckets per power of two nanoseconds, up to 2^63.
+	 */
+	private static final int BUCKETS = 248;
+
+	/*
+	 * Pages pinned by this thread, in any file.
+	 */
+	private static final ThreadLocal<long[]> threadPins = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	private final BTreeFile file;
+	private final String fileName;
+	private ObjectName name;
+
+	private final LongAdder[] count = new LongAdder[OPERATIONS.length];
+	private final LongAdder[] nanos = new LongAdder[OPERATIONS.length];
+	private final LongAdder[] pins = new LongAdder[OPERATIONS.length];
+	private final AtomicLong[] max = new AtomicLong[OPERATIONS.length];
+	private final AtomicLongArray[] histogram = new AtomicLongArray[OPERATIONS.length];
+	private final LongAdder leafSplits = new LongAdder();
+	private final LongAdder indexSplits = new LongAdder();
+	private final LongAdder rootSplits = new LongAdder();
+
+	BTreeFileStats(BTreeFile file, String fileName) {
+		this.file = file;
+		this.fileName = fileName;
+		for (int op = 0; op < OPERATIONS.length; op++) {
+			count[op] = new LongAdder();
+			nanos[op] = new LongAdder();
+			pins[op] = new LongAdder();
+			max[op] = new AtomicLong();
+			histogram[op] = new AtomicLongArray(BUCKETS);
+		}
+	}
+
+	/*
+	 * Register with the platform MBean server. Statistics are not worth
+	 * failing to open a file over, so errors leave them unregistered.
+	 */
+	void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		String base = "btree:type=BTreeFileStats,name=" + ObjectName.quote(fileName);
+		try {
+			for (int instance = 1; name == null; instance++) {
+				ObjectName candidate = new ObjectName((instance == 1) ? base
+						: base + ",instance=" + instance);
+				try {
+					server.registerMBean(this, candidate);
+					name = candidate;
+				} catch (InstanceAlreadyExistsException e) {
+					// the file is open twice; try the next instance number
+				}
+			}
+		} catch (JMException e) {
+			name = null;
+		}
+	}
+
+	void unregister() {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			// already gone
+		}
+		name = null;
+	}
+
+	/**
+	 * @return the name this is registered under, or null if it is not
+	 */
+	public ObjectName getObjectName() {
+		return name;
+	}
+
+	/*
+	 * Count a page pinned by the current thread.
+	 */
+	static void pinned() {
+		threadPins.get()[0]++;
+	}
+
+	/*
+	 * Pages pinned by the current thread so far: taken at the start of an
+	 * operation and passed to record at its end.
+	 */
+	static long pins() {
+		return threadPins.get()[0];
+	}
+
+	void record(int op, long start, long pinsBefore) {
+		long elapsed = System.nanoTime() - start;
+		count[op].increment();
+		nanos[op].add(elapsed);
+		pins[op].add(pins() - pinsBefore);
+		histogram[op].incrementAndGet(bucket(elapsed));
+		long old;
+		while (elapsed > (old = max[op].get()))
+			if (max[op].compareAndSet(old, elapsed))
+				break;
+	}
+
+	void leafSplit() {
+		leafSplits.increment();
+	}
+
+	void indexSplit() {
+		indexSplits.increment();
+	}
+
+	void rootSplit() {
+		rootSplits.increment();
+	}
+
+	static int bucket(long nanos) {
+		if (nanos < 4)
+			return (int) Math.max(nanos, 0);
+		int exp = 63 - Long.numberOfLeadingZeros(nanos);
+		return 4 * (exp - 1) + (int) ((nanos >> (exp - 2)) & 3);
+	}
+
+	static long bucketLow(int bucket) {
+		if (bucket < 4)
+			return bucket;
+		return (long) (4 + bucket % 4) << (bucket / 4 - 1);
+	}
+
+	static long bucketHigh(int bucket) {
+		if (bucket < 4)
+			return bucket + 1;
+		return bucketLow(bucket) + (1L << (bucket / 4 - 1));
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public long getInserts() {
+		return count[INSERT].sum();
+	}
+
+	public long getDeletes() {
+		return count[DELETE].sum();
+	}
+
+	public long getLookups() {
+		return count[LOOKUP].sum();
+	}
+
+	public long getScans() {
+		return count[SCAN].sum();
+	}
+
+	public long getLeafSplits() {
+		return leafSplits.sum();
+	}
+
+	public long getIndexSplits() {
+		return indexSplits.sum();
+	}
+
+	public long getRootSplits() {
+		return rootSplits.sum();
+	}
+
+	private double pinsPer(int op) {
+		long n = count[op].sum();
+		return (n == 0) ? 0 : (double) pins[op].sum() / n;
+	}
+
+	public double getPinsPerInsert() {
+		return pinsPer(INSERT);
+	}
+
+	public double getPinsPerDelete() {
+		return pinsPer(DELETE);
+	}
+
+	public double getPinsPerLookup() {
+		return pinsPer(LOOKUP);
+	}
+
+	public double getPinsPerScan() {
+		return pinsPer(SCAN);
+	}
+
+	private double percentile(int op, long[] buckets, long n, double p) {
+		long rank = Math.max((long) Math.ceil(p * n), 1);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += buckets[b];
+			if (seen >= rank)
+				return Math.min(bucketHigh(b), max[op].get()) / 1e3;
+		}
+		return max[op].get() / 1e3;
+	}
+
+	private Map<String, Double> latency(int op) {
+		long[] buckets = new long[BUCKETS];
+		long n = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			buckets[b] = histogram[op].get(b);
+			n += buckets[b];
+		}
+		Map<String, Double> out = new LinkedHashMap<String, Double>();
+		out.put("mean", (n == 0) ? 0 : nanos[op].sum() / 1e3 / n);
+		out.put("p50", (n == 0) ? 0 : percentile(op, buckets, n, 0.5));
+		out.put("p90", (n == 0) ? 0 : percentile(op, buckets, n, 0.9));
+		out.put("p99", (n == 0) ? 0 : percentile(op, buckets, n, 0.99));
+		out.put("p99.9", (n == 0) ? 0 : percentile(op, buckets, n, 0.999));
+		out.put("max", max[op].get() / 1e3);
+		return out;
+	}
+
+	public Map<String, Double> getInsertLatency() {
+		return latency(INSERT);
+	}
+
+	public Map<String, Double> getDeleteLatency() {
+		return latency(DELETE);
+	}
+
+	public Map<String, Double> getLookupLatency() {
+		return latency(LOOKUP);
+	}
+
+	public Map<String, Double> getScanLatency() {
+		return latency(SCAN);
+	}
+
+	public Map<String, Long> latencyHistogram(String operation) {
+		int op = Arrays.asList(OPERATIONS).indexOf(operation);
+		if (op < 0)
+			throw new IllegalArgumentException("no operation " + operation);
+		Map<String, Long> out = new LinkedHashMap<String, Long>();
+		for (int b = 0; b < BUCKETS; b++) {
+			long n = histogram[op].get(b);
+			if (n > 0)
+				out.put(String.format("%.3f-%.3f", bucketLow(b) / 1e3,
+						bucketHigh(b) / 1e3), n);
+		}
+		return out;
+	}
+
+	/**
+	 * Walk every page of the file, one level at a time.
+	 *
+	 * @return the height of the tree and the fill of its pages, per level
+	 *         from the root down; empty if the tree is empty
+	 * @exception IllegalStateException
+	 *                the file is closed, or reading a page failed
+	 */
+	public BTreeLevelStats[] analyze() {
+		try {
+			List<BTreeLevelStats> levels = file.levelStats();
+			return levels.toArray(new BTreeLevelStats[levels.size()]);
+		} catch (IllegalStateException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("analyze of " + fileName + " failed", e);
+		}
+	}
+
+	public void reset() {
+		for (int op = 0; op < OPERATIONS.length; op++) {
+			count[op].reset();
+			nanos[op].reset();
+			pins[op].reset();
+			max[op].set(0);
+			for (int b = 0; b < BUCKETS; b++)
+				histogram[op].set(b, 0);
+		}
+		leafSplits.reset();
+		indexSplits.reset();
+		rootSplits.reset();
+	}
+}
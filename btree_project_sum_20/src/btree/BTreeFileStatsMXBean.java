@@ -0,0 +1,103 @@
+/*
+ * @(#) BTreeFileStatsMXBean.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+/**
+ * The management interface of {@link BTreeFileStats}: operation counters
+ * and latencies of one open BTreeFile, kept as the file is used, and a
+ * structural pass over its pages on demand. Latencies are in microseconds,
+ * read from histograms with four buckets per power of two, so percentiles
+ * are at most 25% high.
+ */
+public interface BTreeFileStatsMXBean {
+
+	/**
+	 * @return the name of the file
+	 */
+	String getFileName();
+
+	long getInserts();
+
+	long getDeletes();
+
+	/**
+	 * @return calls to lookup and lookupAll
+	 */
+	long getLookups();
+
+	/**
+	 * @return scans created by new_scan
+	 */
+	long getScans();
+
+	long getLeafSplits();
+
+	/**
+	 * @return splits of index pages, the root included
+	 */
+	long getIndexSplits();
+
+	/**
+	 * @return splits that added a level to the tree
+	 */
+	long getRootSplits();
+
+	/**
+	 * @return pages pinned per insert, splits included
+	 */
+	double getPinsPerInsert();
+
+	double getPinsPerDelete();
+
+	double getPinsPerLookup();
+
+	/**
+	 * @return pages pinned to position a new scan; the pages a scan pins
+	 *         as it moves along the leaves are not counted, nor are any
+	 *         pinned by scans in concurrent mode and descending scans,
+	 *         which find their first leaf on the first get_next
+	 */
+	double getPinsPerScan();
+
+	/**
+	 * @return mean, p50, p90, p99, p99.9 and max insert latency
+	 */
+	Map<String, Double> getInsertLatency();
+
+	Map<String, Double> getDeleteLatency();
+
+	Map<String, Double> getLookupLatency();
+
+	/**
+	 * @return latency of positioning a new scan
+	 */
+	Map<String, Double> getScanLatency();
+
+	/**
+	 * The latency histogram of one kind of operation.
+	 *
+	 * @param operation
+	 *            "insert", "delete", "lookup" or "scan". Input parameter.
+	 * @return the count in each non-empty bucket, keyed by its range in
+	 *         microseconds
+	 */
+	Map<String, Long> latencyHistogram(String operation);
+
+	/**
+	 * Walk every page of the file, one level at a time.
+	 *
+	 * @return the height of the tree and the fill of its pages, per level
+	 *         from the root down; empty if the tree is empty
+	 */
+	BTreeLevelStats[] analyze();
+
+	/**
+	 * Set the counters and histograms back to zero.
+	 */
+	void reset();
+}
@@ -0,0 +1,90 @@
+/*
+ * @(#) BTreeLevelStats.java
+ *
+ */
+
+package btree;
+
+/**
+ * The pages of one level of a BTreeFile, as found by
+ * {@link BTreeFileStats#analyze}. Level 0 is the root; the leaves are the
+ * last level, and the number of levels is the height of the tree. Fill is
+ * the fraction of a page's record space taken by records and slots.
+ */
+public class BTreeLevelStats {
+
+	private final int level;
+	private final boolean leaf;
+	private final int pages;
+	private final long entries;
+	private final int emptyPages;
+	private final double minFill;
+	private final double meanFill;
+	private final double maxFill;
+	private final int[] fillHistogram;
+
+	BTreeLevelStats(int level, boolean leaf, int pages, long entries,
+			int emptyPages, double minFill, double meanFill, double maxFill,
+			int[] fillHistogram) {
+		this.level = level;
+		this.leaf = leaf;
+		this.pages = pages;
+		this.entries = entries;
+		this.emptyPages = emptyPages;
+		this.minFill = minFill;
+		this.meanFill = meanFill;
+		this.maxFill = maxFill;
+		this.fillHistogram = fillHistogram;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public boolean isLeaf() {
+		return leaf;
+	}
+
+	public int getPages() {
+		return pages;
+	}
+
+	public long getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return pages with no entries, such as leaves emptied by naive
+	 *         deletes
+	 */
+	public int getEmptyPages() {
+		return emptyPages;
+	}
+
+	public double getMinFill() {
+		return minFill;
+	}
+
+	public double getMeanFill() {
+		return meanFill;
+	}
+
+	public double getMaxFill() {
+		return maxFill;
+	}
+
+	/**
+	 * @return the number of pages filled 0-10%, 10-20%, ... 90-100%
+	 */
+	public int[] getFillHistogram() {
+		return fillHistogram.clone();
+	}
+
+	public String toString() {
+		return "level " + level + (leaf ? " (leaves)" : "") + ": " + pages
+				+ " pages, " + entries + " entries, " + emptyPages
+				+ " empty, fill min " + String.format("%.2f", minFill)
+				+ " mean " + String.format("%.2f", meanFill) + " max "
+				+ String.format("%.2f", maxFill);
+	}
+}
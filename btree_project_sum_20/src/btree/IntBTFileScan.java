@@ -0,0 +1,149 @@
+/*
+ * @(#) IntBTFileScan.java
+ *
+ */
+
+package btree;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * IntBTFileScan walks the leaves of an IntBTreeFile in key order. next() and
+ * the key(), ridPage() and ridSlot() accessors read the current entry without
+ * allocating; get_next() wraps it in a KeyDataEntry for IndexFileScan users.
+ * The current leaf stays pinned until the scan runs off the end of its range
+ * or DestroyIntBTreeFileScan() is called.
+ */
+public class IntBTFileScan extends IndexFileScan implements GlobalConst {
+
+	private PageId pageno;
+	private IntBTPage leaf;
+	private boolean dirty;
+	private int pos;
+	private int hiKey;
+
+	private int curKey;
+	private int curPid;
+	private int curSlot;
+
+	IntBTFileScan(PageId pageno, Page page, int pos, int hiKey) {
+		this.pageno = pageno;
+		this.leaf = (page == null) ? null : new IntBTPage(page);
+		this.pos = pos;
+		this.hiKey = hiKey;
+	}
+
+	/**
+	 * Advance to the next entry.
+	 *
+	 * @return false if the scan has no more entries
+	 * @exception ScanIteratorException
+	 *                error when pin or unpin a page
+	 */
+	public boolean next() throws ScanIteratorException {
+		try {
+			while (leaf != null && pos == leaf.getCount()) {
+				int next = leaf.getNextPage();
+				SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+				dirty = false;
+				if (next == INVALID_PAGE) {
+					leaf = null;
+					break;
+				}
+				pageno.pid = next;
+				Page page = new Page();
+				SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+				leaf = new IntBTPage(page);
+				pos = 0;
+			}
+			if (leaf == null)
+				return false;
+
+			curKey = leaf.keyAt(pos);
+			if (curKey > hiKey) {
+				SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+				leaf = null;
+				return false;
+			}
+			curPid = leaf.pidAt(pos);
+			curSlot = leaf.slotAt(pos);
+			pos++;
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/** Key of the current entry. */
+	public int key() {
+		return curKey;
+	}
+
+	/** Page number of the rid of the current entry. */
+	public int ridPage() {
+		return curPid;
+	}
+
+	/** Slot number of the rid of the current entry. */
+	public int ridSlot() {
+		return curSlot;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		if (!next())
+			return null;
+		return new KeyDataEntry(new IntegerKey(curKey), new RID(new PageId(
+				curPid), curSlot));
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leaf == null || pos == 0)
+			throw new ScanDeleteException(null, "no current entry");
+		pos--;
+		leaf.removeLeaf(pos);
+		dirty = true;
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in IntBTreeFile
+	 */
+	public int keysize() {
+		return 4;
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do
+	 * some clearing work.
+	 *
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void DestroyIntBTreeFileScan() throws UnpinPageException {
+		if (leaf != null) {
+			try {
+				SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new UnpinPageException(e, "");
+			}
+		}
+		leaf = null;
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * @(#) IntBTPage.java
+ *
+ */
+
+package btree;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * IntBTPage is the page layout of an IntBTreeFile. There is no slot
+ * directory: after a 16 byte header the page holds packed, fixed-width int
+ * arrays, so the i-th key is always at the same offset.
+ * <p>
+ * Header: type (short), entry count (short), prev page, next page, current
+ * page (ints).
+ * <p>
+ * Leaf page: keys[capacity], rid page numbers[capacity], rid slot
+ * numbers[capacity]. Prev/next link the leaves in key order.
+ * <p>
+ * Index page: keys[capacity], children[capacity + 1]. Child i holds the
+ * keys in [key i-1, key i); child 0 is the leftmost child.
+ */
+class IntBTPage implements GlobalConst {
+
+	static final int TYPE = 0;
+	static final int COUNT = 2;
+	static final int PREV_PAGE = 4;
+	static final int NEXT_PAGE = 8;
+	static final int CUR_PAGE = 12;
+	static final int HEADER_SIZE = 16;
+
+	private byte[] data;
+	private int capacity;
+	private int keysPos;
+	private int pidsPos;
+	private int slotsPos;
+
+	/**
+	 * Wrap a pinned page.
+	 *
+	 * @param page
+	 *            the page, already formatted. Input parameter.
+	 */
+	IntBTPage(Page page) {
+		this.data = page.getpage();
+		layout(getType());
+	}
+
+	/**
+	 * Format a fresh page.
+	 *
+	 * @param page
+	 *            the pinned page. Input parameter.
+	 * @param pageno
+	 *            its page id. Input parameter.
+	 * @param type
+	 *            NodeType.LEAF or NodeType.INDEX. Input parameter.
+	 */
+	IntBTPage(Page page, PageId pageno, short type) {
+		this.data = page.getpage();
+		putShort(TYPE, type);
+		putShort(COUNT, 0);
+		putInt(PREV_PAGE, INVALID_PAGE);
+		putInt(NEXT_PAGE, INVALID_PAGE);
+		putInt(CUR_PAGE, pageno.pid);
+		layout(type);
+	}
+
+	private void layout(short type) {
+		int space = data.length - HEADER_SIZE;
+		keysPos = HEADER_SIZE;
+		if (type == NodeType.LEAF) {
+			capacity = space / 12;
+			pidsPos = keysPos + 4 * capacity;
+			slotsPos = pidsPos + 4 * capacity;
+		} else {
+			// one more child than keys
+			capacity = (space - 4) / 8;
+			pidsPos = keysPos + 4 * capacity;
+			slotsPos = -1;
+		}
+	}
+
+	short getType() {
+		return (short) (((data[TYPE] & 0xff) << 8) | (data[TYPE + 1] & 0xff));
+	}
+
+	int getCount() {
+		return ((data[COUNT] & 0xff) << 8) | (data[COUNT + 1] & 0xff);
+	}
+
+	void setCount(int count) {
+		putShort(COUNT, count);
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	boolean isFull() {
+		return getCount() == capacity;
+	}
+
+	int getPrevPage() {
+		return getInt(PREV_PAGE);
+	}
+
+	void setPrevPage(int pid) {
+		putInt(PREV_PAGE, pid);
+	}
+
+	int getNextPage() {
+		return getInt(NEXT_PAGE);
+	}
+
+	void setNextPage(int pid) {
+		putInt(NEXT_PAGE, pid);
+	}
+
+	int getCurPage() {
+		return getInt(CUR_PAGE);
+	}
+
+	int keyAt(int i) {
+		return getInt(keysPos + 4 * i);
+	}
+
+	/** Leaf: rid page number of entry i. Index: child i. */
+	int pidAt(int i) {
+		return getInt(pidsPos + 4 * i);
+	}
+
+	/** Leaf only: rid slot number of entry i. */
+	int slotAt(int i) {
+		return getInt(slotsPos + 4 * i);
+	}
+
+	/**
+	 * Index of the first key greater than or equal to <code>key</code>, or
+	 * the entry count. The loop has a fixed trip count for a given count and
+	 * no data-dependent branch, only a conditional add.
+	 */
+	int lowerBound(int key) {
+		int n = getCount();
+		if (n == 0)
+			return 0;
+		int base = 0;
+		while (n > 1) {
+			int half = n >>> 1;
+			base += (keyAt(base + half) < key) ? half : 0;
+			n -= half;
+		}
+		return base + ((keyAt(base) < key) ? 1 : 0);
+	}
+
+	/**
+	 * Index of the first key greater than <code>key</code>, or the entry
+	 * count.
+	 */
+	int upperBound(int key) {
+		int n = getCount();
+		if (n == 0)
+			return 0;
+		int base = 0;
+		while (n > 1) {
+			int half = n >>> 1;
+			base += (keyAt(base + half) <= key) ? half : 0;
+			n -= half;
+		}
+		return base + ((keyAt(base) <= key) ? 1 : 0);
+	}
+
+	/**
+	 * Leaf: insert <key, rid> at position i, shifting the tail right.
+	 */
+	void insertLeaf(int i, int key, RID rid) {
+		int n = getCount();
+		shift(keysPos, i, n, 1);
+		shift(pidsPos, i, n, 1);
+		shift(slotsPos, i, n, 1);
+		putInt(keysPos + 4 * i, key);
+		putInt(pidsPos + 4 * i, rid.pageNo.pid);
+		putInt(slotsPos + 4 * i, rid.slotNo);
+		setCount(n + 1);
+	}
+
+	/**
+	 * Leaf: remove entry i, shifting the tail left.
+	 */
+	void removeLeaf(int i) {
+		int n = getCount();
+		shift(keysPos, i + 1, n, -1);
+		shift(pidsPos, i + 1, n, -1);
+		shift(slotsPos, i + 1, n, -1);
+		setCount(n - 1);
+	}
+
+	/**
+	 * Index: insert separator <code>key</code> at position i with
+	 * <code>child</code> as the child to its right (child i + 1).
+	 */
+	void insertIndex(int i, int key, int child) {
+		int n = getCount();
+		shift(keysPos, i, n, 1);
+		shift(pidsPos, i + 1, n + 1, 1);
+		putInt(keysPos + 4 * i, key);
+		putInt(pidsPos + 4 * (i + 1), child);
+		setCount(n + 1);
+	}
+
+	/**
+	 * Index: set the leftmost child.
+	 */
+	void setFirstChild(int child) {
+		putInt(pidsPos, child);
+	}
+
+	/**
+	 * Leaf: move entries [from, count) to the empty leaf <code>right</code>.
+	 */
+	void moveLeafTail(int from, IntBTPage right) {
+		int n = getCount() - from;
+		System.arraycopy(data, keysPos + 4 * from, right.data, right.keysPos, 4 * n);
+		System.arraycopy(data, pidsPos + 4 * from, right.data, right.pidsPos, 4 * n);
+		System.arraycopy(data, slotsPos + 4 * from, right.data, right.slotsPos, 4 * n);
+		right.setCount(n);
+		setCount(from);
+	}
+
+	/**
+	 * Index: move keys (mid, count) and their children to the empty index
+	 * page <code>right</code>; key mid is dropped from both pages and
+	 * returned, to be pushed up to the parent.
+	 */
+	int moveIndexTail(int mid, IntBTPage right) {
+		int n = getCount();
+		int upKey = keyAt(mid);
+		int moved = n - mid - 1;
+		System.arraycopy(data, keysPos + 4 * (mid + 1), right.data, right.keysPos, 4 * moved);
+		System.arraycopy(data, pidsPos + 4 * (mid + 1), right.data, right.pidsPos, 4 * (moved + 1));
+		right.setCount(moved);
+		setCount(mid);
+		return upKey;
+	}
+
+	/*
+	 * Move the ints in [from, to) of the array at arrayPos by `by' places.
+	 */
+	private void shift(int arrayPos, int from, int to, int by) {
+		if (to > from)
+			System.arraycopy(data, arrayPos + 4 * from, data, arrayPos + 4
+					* (from + by), 4 * (to - from));
+	}
+
+	private int getInt(int pos) {
+		return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+				| ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+
+	private void putInt(int pos, int value) {
+		data[pos] = (byte) (value >>> 24);
+		data[pos + 1] = (byte) (value >>> 16);
+		data[pos + 2] = (byte) (value >>> 8);
+		data[pos + 3] = (byte) value;
+	}
+
+	private void putShort(int pos, int value) {
+		data[pos] = (byte) (value >>> 8);
+		data[pos + 1] = (byte) value;
+	}
+}
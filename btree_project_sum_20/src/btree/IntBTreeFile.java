@@ -0,0 +1,532 @@
+/*
+ * @(#) IntBTreeFile.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import diskmgr.*;
+import bufmgr.*;
+import global.*;
+
+/**
+ * IntBTreeFile is a B+ tree for integer keys only. Its pages (IntBTPage) keep
+ * keys and data in packed fixed-width int arrays with no slot directory, so
+ * entries are smaller than in the generic BTSortedPage layout, and a page is
+ * searched directly in its bytes with a branch-free binary search. The API
+ * takes primitive int keys; insert/Delete with an IntegerKey are provided so
+ * it can stand in for a BTreeFile as an IndexFile.
+ */
+public class IntBTreeFile extends IndexFile implements GlobalConst {
+
+	private final static int MAGIC0 = 1990;
+
+	private BTreeHeaderPage headerPage;
+	private PageId headerPageId;
+	private String dbname;
+
+	/**
+	 * If the index file exists, open it; else create it.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed, or the file is not an int tree
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public IntBTreeFile(String filename) throws GetFileEntryException,
+			ConstructPageException, IOException, AddFileEntryException {
+
+		headerPageId = get_file_entry(filename);
+		if (headerPageId == null) // file not exist
+		{
+			headerPage = new BTreeHeaderPage();
+			headerPageId = headerPage.getPageId();
+			add_file_entry(filename, headerPageId);
+			headerPage.set_magic0(MAGIC0);
+			headerPage.set_rootId(new PageId(INVALID_PAGE));
+			headerPage.set_keyType((short) AttrType.attrInteger);
+			headerPage.set_maxKeySize(4);
+			headerPage.set_deleteFashion(DeleteFashion.NAIVE_DELETE);
+			headerPage.setType(NodeType.BTHEAD);
+		} else {
+			headerPage = new BTreeHeaderPage(headerPageId);
+			if (headerPage.get_magic0() != MAGIC0)
+				throw new ConstructPageException(null, "not an int B+ tree file");
+		}
+
+		dbname = new String(filename);
+		if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr)
+			((ConcurrentBufMgr) SystemDefs.JavabaseBM).setOwner(headerPageId, dbname);
+	}
+
+	/**
+	 * Close the file. Unpin header page.
+	 *
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void close() throws UnpinPageException {
+		if (headerPage != null) {
+			unpinPage(headerPageId, true);
+			headerPage = null;
+		}
+	}
+
+	/**
+	 * Destroy the entire file.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception DeleteFileEntryException
+	 *                failed when delete a file from DM
+	 */
+	public void destroyFile() throws IOException, PinPageException,
+			UnpinPageException, FreePageException, DeleteFileEntryException {
+		if (headerPage != null) {
+			int root = headerPage.get_rootId().pid;
+			if (root != INVALID_PAGE)
+				_destroyFile(root);
+			unpinPage(headerPageId, false);
+			freePage(headerPageId);
+			delete_file_entry(dbname);
+			headerPage = null;
+		}
+	}
+
+	private void _destroyFile(int pid) throws PinPageException,
+			UnpinPageException, FreePageException {
+		PageId pageno = new PageId(pid);
+		IntBTPage page = new IntBTPage(pinPage(pageno));
+		if (page.getType() == NodeType.INDEX) {
+			for (int i = 0; i <= page.getCount(); i++)
+				_destroyFile(page.pidAt(i));
+		}
+		unpinPage(pageno, false);
+		freePage(pageno);
+	}
+
+	/**
+	 * Insert record with the given key and rid.
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error when allocating a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void insert(int key, RID rid) throws IOException,
+			ConstructPageException, PinPageException, UnpinPageException {
+
+		int root = headerPage.get_rootId().pid;
+
+		// When the tree is empty, the root is a single leaf
+		if (root == INVALID_PAGE) {
+			Page page = new Page();
+			PageId rootId = newPage(page);
+			IntBTPage leaf = new IntBTPage(page, rootId, NodeType.LEAF);
+			leaf.insertLeaf(0, key, rid);
+			unpinPage(rootId, true /* = DIRTY */);
+			headerPage.set_rootId(rootId);
+			return;
+		}
+
+		// split[0] = separator pushed up, split[1] = new right page
+		int[] split = new int[2];
+		if (_insert(key, rid, root, split)) {
+			// Root split: grow the tree by one level
+			Page page = new Page();
+			PageId rootId = newPage(page);
+			IntBTPage newRoot = new IntBTPage(page, rootId, NodeType.INDEX);
+			newRoot.setFirstChild(root);
+			newRoot.insertIndex(0, split[0], split[1]);
+			unpinPage(rootId, true /* = DIRTY */);
+			headerPage.set_rootId(rootId);
+		}
+	}
+
+	/*
+	 * Insert into the subtree at `pid'. Returns true if the page split; the
+	 * separator and the new right page are then in split[0] and split[1].
+	 */
+	private boolean _insert(int key, RID rid, int pid, int[] split)
+			throws IOException, ConstructPageException, PinPageException,
+			UnpinPageException {
+
+		PageId pageno = new PageId(pid);
+		IntBTPage page = new IntBTPage(pinPage(pageno));
+
+		if (page.getType() == NodeType.INDEX) {
+			int pos = page.upperBound(key);
+			int child = page.pidAt(pos);
+			unpinPage(pageno, false);
+
+			if (!_insert(key, rid, child, split))
+				return false;
+
+			// The child split: add its separator right after it, at pos; a
+			// search for upKey could land past separators equal to it
+			page = new IntBTPage(pinPage(pageno));
+			int upKey = split[0];
+			int upChild = split[1];
+			if (!page.isFull()) {
+				page.insertIndex(pos, upKey, upChild);
+				unpinPage(pageno, true /* = DIRTY */);
+				return false;
+			}
+
+			// Children [0, mid] stay, the rest move to the right page
+			Page newPage = new Page();
+			PageId rightId = newPage(newPage);
+			IntBTPage right = new IntBTPage(newPage, rightId, NodeType.INDEX);
+			int mid = page.getCount() / 2;
+			int midKey = page.moveIndexTail(mid, right);
+			if (pos <= mid)
+				page.insertIndex(pos, upKey, upChild);
+			else
+				right.insertIndex(pos - mid - 1, upKey, upChild);
+			unpinPage(pageno, true /* = DIRTY */);
+			unpinPage(rightId, true /* = DIRTY */);
+
+			split[0] = midKey;
+			split[1] = rightId.pid;
+			return true;
+		}
+
+		// Leaf
+		if (!page.isFull()) {
+			page.insertLeaf(page.upperBound(key), key, rid);
+			unpinPage(pageno, true /* = DIRTY */);
+			return false;
+		}
+
+		Page newPage = new Page();
+		PageId rightId = newPage(newPage);
+		IntBTPage right = new IntBTPage(newPage, rightId, NodeType.LEAF);
+
+		// Link the new leaf in between page and its old right sibling
+		int oldNext = page.getNextPage();
+		right.setNextPage(oldNext);
+		right.setPrevPage(pid);
+		page.setNextPage(rightId.pid);
+		if (oldNext != INVALID_PAGE) {
+			PageId nextId = new PageId(oldNext);
+			new IntBTPage(pinPage(nextId)).setPrevPage(rightId.pid);
+			unpinPage(nextId, true /* = DIRTY */);
+		}
+
+		page.moveLeafTail(page.getCount() / 2, right);
+		if (key < right.keyAt(0))
+			page.insertLeaf(page.upperBound(key), key, rid);
+		else
+			right.insertLeaf(right.upperBound(key), key, rid);
+
+		split[0] = right.keyAt(0);
+		split[1] = rightId.pid;
+		unpinPage(pageno, true /* = DIRTY */);
+		unpinPage(rightId, true /* = DIRTY */);
+		return true;
+	}
+
+	/**
+	 * Insert entry into the index file.
+	 *
+	 * @param key
+	 *            an IntegerKey. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyNotMatchException
+	 *                key is not an integer key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error when allocating a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyNotMatchException,
+			IOException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		insert(intKey(key), rid);
+	}
+
+	/**
+	 * Delete the entry <key, rid>. Empty leaves are left in place, as with
+	 * DeleteFashion.NAIVE_DELETE in BTreeFile.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param rid
+	 *            the rid. Input parameter.
+	 * @return true if deleted, false if there is no such entry
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public boolean delete(int key, RID rid) throws IOException,
+			PinPageException, UnpinPageException {
+		RunStart start = findRunStart(key);
+		if (start == null)
+			return false;
+
+		// Walk the run of duplicates of key until we find rid
+		PageId pageno = start.pageno;
+		IntBTPage leaf = new IntBTPage(start.page);
+		int i = start.pos;
+		while (true) {
+			for (; i < leaf.getCount(); i++) {
+				if (leaf.keyAt(i) != key) {
+					unpinPage(pageno, false);
+					return false;
+				}
+				if (leaf.pidAt(i) == rid.pageNo.pid
+						&& leaf.slotAt(i) == rid.slotNo) {
+					leaf.removeLeaf(i);
+					unpinPage(pageno, true /* = DIRTY */);
+					return true;
+				}
+			}
+			int next = leaf.getNextPage();
+			unpinPage(pageno, false);
+			if (next == INVALID_PAGE)
+				return false;
+			pageno = new PageId(next);
+			leaf = new IntBTPage(pinPage(pageno));
+			i = 0;
+		}
+	}
+
+	/**
+	 * Delete entry from the index file.
+	 *
+	 * @param key
+	 *            an IntegerKey. Input parameter.
+	 * @param rid
+	 *            the rid. Input parameter.
+	 * @return true if deleted, false if there is no such entry
+	 * @exception KeyNotMatchException
+	 *                key is not an integer key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public boolean Delete(KeyClass key, RID rid) throws KeyNotMatchException,
+			IOException, PinPageException, UnpinPageException {
+		return delete(intKey(key), rid);
+	}
+
+	/**
+	 * Find the first entry with the given key.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @return the rid of the first entry with key, or null if there is none
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public RID lookup(int key) throws IOException, PinPageException,
+			UnpinPageException {
+		RunStart start = findRunStart(key);
+		if (start == null)
+			return null;
+		IntBTPage leaf = new IntBTPage(start.page);
+		RID rid = null;
+		if (leaf.keyAt(start.pos) == key)
+			rid = new RID(new PageId(leaf.pidAt(start.pos)), leaf.slotAt(start.pos));
+		unpinPage(start.pageno, false);
+		return rid;
+	}
+
+	/**
+	 * Create a scan over the keys in [lo_key, hi_key].
+	 *
+	 * @param lo_key
+	 *            the lowest key returned. Input parameter.
+	 * @param hi_key
+	 *            the highest key returned. Input parameter.
+	 * @return the scan, positioned before the first entry
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public IntBTFileScan new_scan(int lo_key, int hi_key) throws IOException,
+			PinPageException, UnpinPageException {
+		RunStart start = findRunStart(lo_key);
+		if (start == null)
+			return new IntBTFileScan(null, null, 0, hi_key);
+		return new IntBTFileScan(start.pageno, start.page, start.pos, hi_key);
+	}
+
+	/*
+	 * Where findRunStart stopped: a leaf, left pinned, and a position in it.
+	 */
+	private static class RunStart {
+		final PageId pageno;
+		final Page page;
+		final int pos;
+
+		RunStart(PageId pageno, Page page, int pos) {
+			this.pageno = pageno;
+			this.page = page;
+			this.pos = pos;
+		}
+	}
+
+	/*
+	 * Find the left-most entry with a key >= `key'. Returns its leaf, left
+	 * pinned, and its position there; or null (nothing pinned) if every key
+	 * is smaller.
+	 */
+	private RunStart findRunStart(int key) throws IOException,
+			PinPageException, UnpinPageException {
+		int root = headerPage.get_rootId().pid;
+		if (root == INVALID_PAGE)
+			return null;
+
+		PageId pageno = new PageId(root);
+		Page page = pinPage(pageno);
+		IntBTPage node = new IntBTPage(page);
+		while (node.getType() == NodeType.INDEX) {
+			int child = node.pidAt(node.lowerBound(key));
+			unpinPage(pageno, false);
+			pageno.pid = child;
+			page = pinPage(pageno);
+			node = new IntBTPage(page);
+		}
+
+		// Skip to the right past empty leaves and smaller keys
+		int i = node.lowerBound(key);
+		while (i == node.getCount()) {
+			int next = node.getNextPage();
+			unpinPage(pageno, false);
+			if (next == INVALID_PAGE)
+				return null;
+			pageno = new PageId(next);
+			page = pinPage(pageno);
+			node = new IntBTPage(page);
+			i = node.lowerBound(key);
+		}
+
+		return new RunStart(pageno, page, i);
+	}
+
+	private static int intKey(KeyClass key) throws KeyNotMatchException {
+		if (!(key instanceof IntegerKey))
+			throw new KeyNotMatchException(null, "key types do not match");
+		return ((IntegerKey) key).getKey().intValue();
+	}
+
+	private PageId get_file_entry(String filename) throws GetFileEntryException {
+		try {
+			return SystemDefs.JavabaseDB.get_file_entry(filename);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new GetFileEntryException(e, "");
+		}
+	}
+
+	private void add_file_entry(String fileName, PageId pageno)
+			throws AddFileEntryException {
+		try {
+			SystemDefs.JavabaseDB.add_file_entry(fileName, pageno);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AddFileEntryException(e, "");
+		}
+	}
+
+	private void delete_file_entry(String filename)
+			throws DeleteFileEntryException {
+		try {
+			SystemDefs.JavabaseDB.delete_file_entry(filename);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new DeleteFileEntryException(e, "");
+		}
+	}
+
+	private PageId newPage(Page page) throws ConstructPageException {
+		try {
+			PageId pageno = SystemDefs.JavabaseBM.newPage(page, 1);
+			if (pageno == null)
+				throw new ConstructPageException(null, "new page failed");
+			if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr)
+				((ConcurrentBufMgr) SystemDefs.JavabaseBM).setOwner(pageno, dbname);
+			return pageno;
+		} catch (ConstructPageException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "new page failed");
+		}
+	}
+
+	private Page pinPage(PageId pageno) throws PinPageException {
+		try {
+			Page page = new Page();
+			if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr)
+				((ConcurrentBufMgr) SystemDefs.JavabaseBM).pinPage(pageno, page,
+						false/* Rdisk */, dbname);
+			else
+				SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			return page;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+	}
+
+	private void unpinPage(PageId pageno, boolean dirty)
+			throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	private void freePage(PageId pageno) throws FreePageException {
+		try {
+			SystemDefs.JavabaseBM.freePage(pageno);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new FreePageException(e, "");
+		}
+	}
+}
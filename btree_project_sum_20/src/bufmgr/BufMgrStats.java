@@ -0,0 +1,90 @@
+/*
+ * @(#) BufMgrStats.java
+ *
+ */
+
+package bufmgr;
+
+/**
+ * A snapshot of the counters of a ConcurrentBufMgr, for the whole buffer
+ * pool or for the pages of one file, from
+ * {@link ConcurrentBufMgr#getStats} and
+ * {@link ConcurrentBufMgr#getFileStats}.
+ */
+public class BufMgrStats {
+
+	private final long hits;
+	private final long misses;
+	private final long evictions;
+	private final long dirtyFlushes;
+	private final long pinWaits;
+	private final long poolExceeded;
+
+	BufMgrStats(long hits, long misses, long evictions, long dirtyFlushes,
+			long pinWaits, long poolExceeded) {
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.dirtyFlushes = dirtyFlushes;
+		this.pinWaits = pinWaits;
+		this.poolExceeded = poolExceeded;
+	}
+
+	/**
+	 * @return pins that found the page in the buffer pool
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return pins that read the page from disk
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return hits over hits and misses, or 0 before the first pin
+	 */
+	public double getHitRatio() {
+		return (hits + misses == 0) ? 0 : (double) hits / (hits + misses);
+	}
+
+	/**
+	 * @return pages dropped from the pool to make room for another
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return dirty pages written to disk, when evicted or flushed
+	 */
+	public long getDirtyFlushes() {
+		return dirtyFlushes;
+	}
+
+	/**
+	 * @return pins that waited for another thread loading or evicting the
+	 *         same frame or page
+	 */
+	public long getPinWaits() {
+		return pinWaits;
+	}
+
+	/**
+	 * @return pins that failed with BufferPoolExceededException, every
+	 *         frame being pinned
+	 */
+	public long getPoolExceeded() {
+		return poolExceeded;
+	}
+
+	public String toString() {
+		return hits + " hits, " + misses + " misses (hit ratio "
+				+ String.format("%.3f", getHitRatio()) + "), " + evictions
+				+ " evictions, " + dirtyFlushes + " dirty flushes, " + pinWaits
+				+ " pin waits, " + poolExceeded + " pool exceeded";
+	}
+}
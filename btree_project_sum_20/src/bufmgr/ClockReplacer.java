@@ -0,0 +1,55 @@
+/*
+ * @(#) ClockReplacer.java
+ *
+ */
+
+package bufmgr;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Clock replacement for ConcurrentBufMgr: a hit sets the frame's reference
+ * bit, and the clock hand, an atomic counter, clears reference bits until
+ * it finds an unreferenced frame it can claim. Nothing takes a lock.
+ */
+class ClockReplacer extends ConcurrentReplacer {
+
+	private final AtomicIntegerArray referenced;
+	private final AtomicInteger hand = new AtomicInteger();
+
+	ClockReplacer(ConcurrentBufMgr mgr, int numFrames) {
+		super(mgr, numFrames);
+		referenced = new AtomicIntegerArray(numFrames);
+	}
+
+	void hit(int f) {
+		referenced.set(f, 1);
+	}
+
+	void loaded(int f, int pid) {
+		referenced.set(f, 1);
+	}
+
+	void freed(int f) {
+		referenced.set(f, 0);
+	}
+
+	int pick_victim() throws BufferPoolExceededException {
+		for (int i = 0; i < 3 * numFrames; i++) {
+			int f = (hand.getAndIncrement() & Integer.MAX_VALUE) % numFrames;
+			if (!mgr.isUnpinned(f))
+				continue;
+			if (referenced.get(f) == 1) {
+				referenced.set(f, 0);
+				continue;
+			}
+			if (mgr.claim(f))
+				return f;
+		}
+		throw new BufferPoolExceededException(null, "BUFMGR: BUFFER_EXCEEDED.");
+	}
+
+	String name() {
+		return "Clock";
+	}
+}
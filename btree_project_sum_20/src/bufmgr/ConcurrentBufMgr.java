@@ -0,0 +1,732 @@
+/*
+ * @(#) ConcurrentBufMgr.java
+ *
+ */
+
+package bufmgr;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import javax.management.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * ConcurrentBufMgr is a buffer manager that many threads can call at once.
+ * It keeps the pinPage/unpinPage/newPage/freePage contract of BufMgr, so it
+ * can be installed as SystemDefs.JavabaseBM in its place.
+ * <ul>
+ * <li>The page table is a ConcurrentHashMap from page number to frame, so
+ * hits take no lock.</li>
+ * <li>A frame's pin count is an atomic int; a hit pins with one
+ * compare-and-set. A pin count of -1 marks a frame being evicted or loaded;
+ * nobody can pin it until it is back in the table.</li>
+ * <li>Misses for the same page are serialized by a lock striped on the page
+ * number, so a page is read into at most one frame.</li>
+ * <li>Replacement is up to a ConcurrentReplacer, chosen by name like the
+ * replacer of BufMgr: "Clock", or the scan-resistant "2Q" and "LRU-2". A
+ * victim is claimed by setting its pin count from 0 to -1. A dirty victim
+ * is written before it leaves the page table, so a reader never sees a
+ * stale copy on disk.</li>
+ * <li>Hits, misses, evictions, writes of dirty pages, pins that waited and
+ * pins that found every frame pinned are counted, in total and for the
+ * pages of each file (see {@link #getFileStats}), with LongAdders, so
+ * counting takes no lock. The latest ConcurrentBufMgr created is
+ * registered with the platform MBean server as
+ * <code>bufmgr:type=ConcurrentBufMgr</code>.</li>
+ * <li>Disk reads and writes go through SystemDefs.JavabaseDB under one lock,
+ * since DB seeks and reads one shared file; over a ChannelDB they take no
+ * lock. Allocation and deallocation take a second lock: DB pins its space
+ * map pages through this buffer manager, so they must not hold the I/O
+ * lock while doing so.</li>
+ * </ul>
+ */
+public class ConcurrentBufMgr extends BufMgr implements GlobalConst,
+		ConcurrentBufMgrMXBean {
+
+	private static final int STRIPES = 64;
+	private static final int EVICTING = -1;
+
+	private static final String OBJECT_NAME = "bufmgr:type=ConcurrentBufMgr";
+
+	private static final int HITS = 0;
+	private static final int MISSES = 1;
+	private static final int EVICTIONS = 2;
+	private static final int DIRTY_FLUSHES = 3;
+	private static final int PIN_WAITS = 4;
+	private static final int POOL_EXCEEDED = 5;
+
+	/*
+	 * The counters of the whole pool or of one file.
+	 */
+	private static class Counters {
+		final LongAdder[] count = new LongAdder[POOL_EXCEEDED + 1];
+
+		Counters() {
+			for (int i = 0; i < count.length; i++)
+				count[i] = new LongAdder();
+		}
+
+		BufMgrStats snapshot() {
+			return new BufMgrStats(count[HITS].sum(), count[MISSES].sum(),
+					count[EVICTIONS].sum(), count[DIRTY_FLUSHES].sum(),
+					count[PIN_WAITS].sum(), count[POOL_EXCEEDED].sum());
+		}
+
+		void reset() {
+			for (LongAdder adder : count)
+				adder.reset();
+		}
+	}
+
+	private final int numFrames;
+	private final byte[][] pool;
+	private final AtomicIntegerArray framePid;
+	private final AtomicIntegerArray pinCount;
+	private final AtomicIntegerArray dirty;
+	private final ConcurrentReplacer replacer;
+
+	/*
+	 * The counters in total and by file, and the file of each page pinned
+	 * with an owner, or created by setOwner, until it is freed.
+	 */
+	private final Counters total = new Counters();
+	private final ConcurrentHashMap<String, Counters> files = new ConcurrentHashMap<String, Counters>();
+	private final ConcurrentHashMap<Integer, Counters> pageOwner = new ConcurrentHashMap<Integer, Counters>();
+
+	private final ConcurrentHashMap<Integer, Integer> pageTable;
+	private final ReentrantLock[] missLocks = new ReentrantLock[STRIPES];
+	private final ReentrantLock ioLock = new ReentrantLock();
+	private final ReentrantLock allocLock = new ReentrantLock();
+
+	/**
+	 * Create a buffer manager with numbufs frames and Clock replacement.
+	 *
+	 * @param numbufs
+	 *            number of buffer frames. Input parameter.
+	 */
+	public ConcurrentBufMgr(int numbufs) {
+		this(numbufs, "Clock");
+	}
+
+	/**
+	 * Create a buffer manager with numbufs frames.
+	 *
+	 * @param numbufs
+	 *            number of buffer frames. Input parameter.
+	 * @param replacerArg
+	 *            name of the replacement policy: "Clock", "2Q" or "LRU-2".
+	 *            Input parameter.
+	 */
+	public ConcurrentBufMgr(int numbufs, String replacerArg) {
+		// BufMgr's own pool goes unused, so its frameTable() is only the
+		// one frame asked for here
+		super(1, "Clock");
+		numFrames = numbufs;
+		pool = new byte[numbufs][pageSize()];
+		framePid = new AtomicIntegerArray(numbufs);
+		pinCount = new AtomicIntegerArray(numbufs);
+		dirty = new AtomicIntegerArray(numbufs);
+		for (int i = 0; i < numbufs; i++)
+			framePid.set(i, INVALID_PAGE);
+		pageTable = new ConcurrentHashMap<Integer, Integer>(2 * numbufs,
+				0.75f, STRIPES);
+		for (int i = 0; i < STRIPES; i++)
+			missLocks[i] = new ReentrantLock();
+		replacer = ConcurrentReplacer.create(replacerArg, this, numbufs);
+		register();
+	}
+
+	/*
+	 * Register with the platform MBean server in place of the buffer
+	 * manager registered before, which has been replaced. Statistics are
+	 * not worth failing over, so errors leave this unregistered.
+	 */
+	private void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			synchronized (ConcurrentBufMgr.class) {
+				if (server.isRegistered(name))
+					server.unregisterMBean(name);
+				server.registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			// left unregistered
+		}
+	}
+
+	/*
+	 * Frames are the size of the open database's pages.
+	 */
+	private static int pageSize() {
+		DB db = SystemDefs.JavabaseDB;
+		return (db != null) ? db.db_page_size() : MINIBASE_PAGESIZE;
+	}
+
+	/**
+	 * Replace SystemDefs.JavabaseBM with a ConcurrentBufMgr of the same
+	 * size, with Clock replacement. Call it right after constructing
+	 * SystemDefs, before any file is opened: the old buffer manager is
+	 * flushed and dropped.
+	 *
+	 * @exception IOException
+	 *                I/O errors
+	 * @exception BufMgrException
+	 *                other error when flushing the old buffer manager
+	 */
+	public static void install() throws IOException, BufMgrException {
+		install("Clock");
+	}
+
+	/**
+	 * Same as install(), with the named replacement policy.
+	 *
+	 * @param replacerArg
+	 *            name of the replacement policy: "Clock", "2Q" or "LRU-2".
+	 *            Input parameter.
+	 * @exception IOException
+	 *                I/O errors
+	 * @exception BufMgrException
+	 *                other error when flushing the old buffer manager
+	 */
+	public static void install(String replacerArg) throws IOException,
+			BufMgrException {
+		BufMgr old = SystemDefs.JavabaseBM;
+		try {
+			old.flushAllPages();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new BufMgrException(e, "BUFMGR: FLUSH_ERROR.");
+		}
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(old.getNumBuffers(),
+				replacerArg);
+	}
+
+	/**
+	 * Pin a page. First check if this page is already in the buffer pool.
+	 * If it is, increment the pin_count and return a pointer to this page.
+	 * If not, choose a frame from the clock sweep, write it out if dirty,
+	 * and read the page in (unless emptyPage is true). The pin is counted
+	 * for the file the page was last pinned for, if any.
+	 *
+	 * @param pin_pgid
+	 *            page number in the minibase. Input parameter.
+	 * @param page
+	 *            the pointer poit to the page. Output parameter.
+	 * @param emptyPage
+	 *            true (empty page); false (non-empty page). Input parameter.
+	 * @exception BufferPoolExceededException
+	 *                every frame is pinned
+	 * @exception PageNotReadException
+	 *                error reading the page from disk
+	 * @exception BufMgrException
+	 *                error writing out a dirty victim
+	 */
+	public void pinPage(PageId pin_pgid, Page page, boolean emptyPage)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+		pinPage(pin_pgid, page, emptyPage, null);
+	}
+
+	/**
+	 * Pin a page of a file: same as pinPage(pin_pgid, page, emptyPage), with
+	 * the page counted for the named file from now on.
+	 *
+	 * @param pin_pgid
+	 *            page number in the minibase. Input parameter.
+	 * @param page
+	 *            the pointer poit to the page. Output parameter.
+	 * @param emptyPage
+	 *            true (empty page); false (non-empty page). Input parameter.
+	 * @param fileName
+	 *            the file the page belongs to, or null if not known. Input
+	 *            parameter.
+	 * @exception BufferPoolExceededException
+	 *                every frame is pinned
+	 * @exception PageNotReadException
+	 *                error reading the page from disk
+	 * @exception BufMgrException
+	 *                error writing out a dirty victim
+	 */
+	public void pinPage(PageId pin_pgid, Page page, boolean emptyPage,
+			String fileName) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+		int pid = pin_pgid.pid;
+		Integer key = Integer.valueOf(pid);
+		Counters file = (fileName == null) ? pageOwner.get(key) : own(key, fileName);
+		try {
+			pin(pid, key, page, emptyPage, file);
+		} catch (BufferPoolExceededException e) {
+			count(POOL_EXCEEDED, file);
+			throw e;
+		}
+	}
+
+	/*
+	 * A pin that waits, for its frame to be evicted or for another miss on
+	 * the same lock stripe, is counted as one pin wait however long it
+	 * waits.
+	 */
+	private void pin(int pid, Integer key, Page page, boolean emptyPage,
+			Counters file) throws BufferPoolExceededException,
+			PageNotReadException, BufMgrException {
+		boolean waited = false;
+		try {
+			while (true) {
+				Integer frame = pageTable.get(key);
+				if (frame != null) {
+					if (pinHit(frame.intValue(), pid)) {
+						replacer.hit(frame.intValue());
+						count(HITS, file);
+						page.setpage(pool[frame.intValue()]);
+						return;
+					}
+					// Being evicted: wait for it to leave the table
+					waited = true;
+					Thread.yield();
+					continue;
+				}
+
+				ReentrantLock miss = missLocks[stripe(pid)];
+				if (!miss.tryLock()) {
+					waited = true;
+					miss.lock();
+				}
+				try {
+					if (pageTable.containsKey(key))
+						continue;
+					int f = claimVictim();
+					framePid.set(f, pid);
+					if (!emptyPage) {
+						try {
+							lockIO();
+							try {
+								SystemDefs.JavabaseDB.read_page(new PageId(pid),
+										new Page(pool[f]));
+							} finally {
+								unlockIO();
+							}
+						} catch (Exception e) {
+							framePid.set(f, INVALID_PAGE);
+							replacer.freed(f);
+							pinCount.set(f, 0);
+							throw new PageNotReadException(e,
+									"BUFMGR: DB_READ_PAGE_ERROR.");
+						}
+						count(MISSES, file);
+					}
+					replacer.loaded(f, pid);
+					pinCount.set(f, 1);
+					pageTable.put(key, Integer.valueOf(f));
+					page.setpage(pool[f]);
+					return;
+				} finally {
+					miss.unlock();
+				}
+			}
+		} finally {
+			if (waited)
+				count(PIN_WAITS, file);
+		}
+	}
+
+	/*
+	 * The counters of the named file, which now owns page key.
+	 */
+	private Counters own(Integer key, String fileName) {
+		Counters file = files.get(fileName);
+		if (file == null) {
+			file = new Counters();
+			Counters old = files.putIfAbsent(fileName, file);
+			if (old != null)
+				file = old;
+		}
+		if (pageOwner.get(key) != file)
+			pageOwner.put(key, file);
+		return file;
+	}
+
+	/**
+	 * Count the page for the named file from now on, as if pinned for it:
+	 * for pages created through newPage by code that does not know the
+	 * buffer manager.
+	 *
+	 * @param pageno
+	 *            the page number. Input parameter.
+	 * @param fileName
+	 *            the file the page belongs to. Input parameter.
+	 */
+	public void setOwner(PageId pageno, String fileName) {
+		own(Integer.valueOf(pageno.pid), fileName);
+	}
+
+	private void count(int counter, Counters file) {
+		total.count[counter].increment();
+		if (file != null)
+			file.count[counter].increment();
+	}
+
+	/*
+	 * Pin frame f if it still holds page pid and is not being evicted.
+	 */
+	private boolean pinHit(int f, int pid) {
+		while (true) {
+			int count = pinCount.get(f);
+			if (count == EVICTING)
+				return false;
+			if (pinCount.compareAndSet(f, count, count + 1))
+				break;
+		}
+		if (framePid.get(f) != pid) {
+			// Reused for another page between the lookup and the pin
+			pinCount.decrementAndGet(f);
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Have the replacer claim a frame, write it out if dirty and take it
+	 * out of the page table.
+	 */
+	private int claimVictim() throws BufferPoolExceededException,
+			BufMgrException {
+		int f = replacer.pick_victim();
+		int old = framePid.get(f);
+		if (old != INVALID_PAGE) {
+			if (dirty.get(f) == 1) {
+				try {
+					write(old, f);
+				} catch (BufMgrException e) {
+					replacer.freed(f);
+					pinCount.set(f, 0);
+					throw e;
+				}
+			}
+			pageTable.remove(Integer.valueOf(old), Integer.valueOf(f));
+			count(EVICTIONS, pageOwner.get(Integer.valueOf(old)));
+		}
+		return f;
+	}
+
+	/*
+	 * For replacers: claim unpinned frame f for eviction by setting its pin
+	 * count from 0 to EVICTING.
+	 */
+	boolean claim(int f) {
+		return pinCount.compareAndSet(f, 0, EVICTING);
+	}
+
+	boolean isUnpinned(int f) {
+		return pinCount.get(f) == 0;
+	}
+
+	/*
+	 * The page in frame f, or INVALID_PAGE.
+	 */
+	int pageIn(int f) {
+		return framePid.get(f);
+	}
+
+	private void write(int pid, int f) throws BufMgrException {
+		lockIO();
+		try {
+			dirty.set(f, 0);
+			SystemDefs.JavabaseDB.write_page(new PageId(pid), new Page(pool[f]));
+			count(DIRTY_FLUSHES, pageOwner.get(Integer.valueOf(pid)));
+		} catch (Exception e) {
+			dirty.set(f, 1);
+			throw new BufMgrException(e, "BUFMGR: DB_WRITE_PAGE_ERROR.");
+		} finally {
+			unlockIO();
+		}
+	}
+
+	/*
+	 * A ChannelDB reads and writes with positional calls, so only a plain
+	 * DB, which seeks one shared file, needs its I/O serialized.
+	 */
+	private void lockIO() {
+		if (!(SystemDefs.JavabaseDB instanceof ChannelDB))
+			ioLock.lock();
+	}
+
+	private void unlockIO() {
+		if (ioLock.isHeldByCurrentThread())
+			ioLock.unlock();
+	}
+
+	/**
+	 * Unpin a page specified by a pageId, marking it dirty if dirty is
+	 * true.
+	 *
+	 * @param PageId_in_a_DB
+	 *            page number in the minibase. Input parameter.
+	 * @param dirty
+	 *            the dirty bit of the frame. Input parameter.
+	 * @exception HashEntryNotFoundException
+	 *                the page is not in the buffer pool
+	 * @exception PageUnpinnedException
+	 *                the page is not pinned
+	 */
+	public void unpinPage(PageId PageId_in_a_DB, boolean dirty)
+			throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		Integer frame = pageTable.get(Integer.valueOf(PageId_in_a_DB.pid));
+		if (frame == null)
+			throw new HashEntryNotFoundException(null,
+					"BUFMGR: HASH_NOT_FOUND.");
+		int f = frame.intValue();
+		if (dirty)
+			this.dirty.set(f, 1);
+		while (true) {
+			int count = pinCount.get(f);
+			if (count <= 0)
+				throw new PageUnpinnedException(null,
+						"BUFMGR: PAGE_NOT_PINNED.");
+			if (pinCount.compareAndSet(f, count, count - 1))
+				return;
+		}
+	}
+
+	/**
+	 * Allocate new pages and pin the first one.
+	 *
+	 * @param firstpage
+	 *            the address of the first page. Output parameter.
+	 * @param howmany
+	 *            total number of allocated new pages. Input parameter.
+	 * @return the first page id of the new pages, or null on failure.
+	 */
+	public PageId newPage(Page firstpage, int howmany)
+			throws BufferPoolExceededException, HashOperationException,
+			ReplacerException, HashEntryNotFoundException,
+			InvalidFrameNumberException, PagePinnedException,
+			PageUnpinnedException, PageNotReadException, BufMgrException,
+			DiskMgrException, IOException {
+		PageId pageId = new PageId();
+		allocLock.lock();
+		try {
+			SystemDefs.JavabaseDB.allocate_page(pageId, howmany);
+		} catch (Exception e) {
+			throw new BufMgrException(e, "BUFMGR: ALLOCATE_PAGE_ERROR.");
+		} finally {
+			allocLock.unlock();
+		}
+
+		try {
+			pinPage(pageId, firstpage, true);
+		} catch (BufferPoolExceededException e) {
+			deallocate(pageId);
+			return null;
+		}
+		return pageId;
+	}
+
+	/**
+	 * Free a page: drop it from the buffer pool (it may be pinned once, by
+	 * the caller) and deallocate it in the database.
+	 *
+	 * @param globalPageId
+	 *            the page number in the data base. Input parameter.
+	 * @exception PagePinnedException
+	 *                the page is pinned more than once
+	 */
+	public void freePage(PageId globalPageId) throws InvalidBufferException,
+			ReplacerException, HashOperationException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			BufMgrException, DiskMgrException, IOException {
+		Integer key = Integer.valueOf(globalPageId.pid);
+		Integer frame = pageTable.get(key);
+		if (frame != null) {
+			int f = frame.intValue();
+			while (true) {
+				int count = pinCount.get(f);
+				if (count > 1)
+					throw new PagePinnedException(null,
+							"BUFMGR: PAGE_PINNED.");
+				if (count == EVICTING)
+					break; // already on its way out
+				if (pinCount.compareAndSet(f, count, EVICTING)) {
+					pageTable.remove(key, frame);
+					framePid.set(f, INVALID_PAGE);
+					dirty.set(f, 0);
+					replacer.freed(f);
+					pinCount.set(f, 0);
+					break;
+				}
+			}
+		}
+		pageOwner.remove(key);
+		deallocate(globalPageId);
+	}
+
+	private void deallocate(PageId pageId) throws BufMgrException {
+		allocLock.lock();
+		try {
+			SystemDefs.JavabaseDB.deallocate_page(pageId);
+		} catch (Exception e) {
+			throw new BufMgrException(e, "BUFMGR: DEALLOCATE_PAGE_ERROR.");
+		} finally {
+			allocLock.unlock();
+		}
+	}
+
+	/**
+	 * Write a page in the buffer pool to disk, if it is dirty.
+	 *
+	 * @param pageid
+	 *            the page number. Input parameter.
+	 * @exception BufMgrException
+	 *                error writing the page
+	 */
+	public void flushPage(PageId pageid) throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		Integer frame = pageTable.get(Integer.valueOf(pageid.pid));
+		if (frame != null)
+			flush(frame.intValue(), pageid.pid);
+	}
+
+	/**
+	 * Write all dirty pages in the buffer pool to disk.
+	 *
+	 * @exception BufMgrException
+	 *                error writing a page
+	 */
+	public void flushAllPages() throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		for (int f = 0; f < numFrames; f++) {
+			int pid = framePid.get(f);
+			if (pid != INVALID_PAGE)
+				flush(f, pid);
+		}
+	}
+
+	/*
+	 * Write frame f out if it is dirty and still holds page pid. The frame
+	 * is pinned meanwhile so it cannot be handed to another page.
+	 */
+	private void flush(int f, int pid) throws BufMgrException {
+		if (!pinHit(f, pid))
+			return;
+		try {
+			if (dirty.get(f) == 1)
+				write(pid, f);
+		} finally {
+			pinCount.decrementAndGet(f);
+		}
+	}
+
+	/**
+	 * Gets the total number of buffer frames.
+	 */
+	public int getNumBuffers() {
+		return numFrames;
+	}
+
+	/**
+	 * Gets the total number of unpinned buffer frames.
+	 */
+	public int getNumUnpinnedBuffers() {
+		int count = 0;
+		for (int f = 0; f < numFrames; f++)
+			if (pinCount.get(f) == 0)
+				count++;
+		return count;
+	}
+
+	/**
+	 * Number of pins that found the page in the buffer pool.
+	 */
+	public long getHits() {
+		return total.count[HITS].sum();
+	}
+
+	/**
+	 * Number of pins that had to read the page from disk. Pins of new,
+	 * empty pages are neither hits nor misses.
+	 */
+	public long getMisses() {
+		return total.count[MISSES].sum();
+	}
+
+	public long getEvictions() {
+		return total.count[EVICTIONS].sum();
+	}
+
+	public long getDirtyFlushes() {
+		return total.count[DIRTY_FLUSHES].sum();
+	}
+
+	public long getPinWaits() {
+		return total.count[PIN_WAITS].sum();
+	}
+
+	public long getPoolExceeded() {
+		return total.count[POOL_EXCEEDED].sum();
+	}
+
+	public double getHitRatio() {
+		return getStats().getHitRatio();
+	}
+
+	/**
+	 * A snapshot of the counters for the whole pool.
+	 */
+	public BufMgrStats getStats() {
+		return total.snapshot();
+	}
+
+	/**
+	 * A snapshot of the counters for the pages of each file, by file name,
+	 * sorted. A page belongs to the file it was last pinned for with
+	 * pinPage(pin_pgid, page, emptyPage, fileName), or given by setOwner,
+	 * until it is freed: BTreeFile and IntBTreeFile pin their pages that
+	 * way. Evictions and dirty flushes are counted for the file of the page
+	 * written or evicted, the rest for the file of the page pinned. Pages
+	 * of no file, such as the space map of the database, are counted only
+	 * in the totals.
+	 */
+	public Map<String, BufMgrStats> getFileStats() {
+		Map<String, BufMgrStats> out = new TreeMap<String, BufMgrStats>();
+		for (Map.Entry<String, Counters> entry : files.entrySet())
+			out.put(entry.getKey(), entry.getValue().snapshot());
+		return out;
+	}
+
+	/**
+	 * Set the counters, in total and for each file, back to zero.
+	 */
+	public void resetStats() {
+		total.reset();
+		for (Counters file : files.values())
+			file.reset();
+	}
+
+	/**
+	 * Name of the replacement policy.
+	 */
+	public String getReplacerName() {
+		return replacer.name();
+	}
+
+	private static int stripe(int pid) {
+		return (pid ^ (pid >>> 16)) & (STRIPES - 1);
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * @(#) ConcurrentBufMgrMXBean.java
+ *
+ */
+
+package bufmgr;
+
+import java.util.*;
+
+/**
+ * The management interface of {@link ConcurrentBufMgr}: the size and use
+ * of the buffer pool, its counters in total and for the pages of each
+ * file.
+ */
+public interface ConcurrentBufMgrMXBean {
+
+	int getNumBuffers();
+
+	int getNumUnpinnedBuffers();
+
+	String getReplacerName();
+
+	long getHits();
+
+	long getMisses();
+
+	long getEvictions();
+
+	long getDirtyFlushes();
+
+	long getPinWaits();
+
+	long getPoolExceeded();
+
+	/**
+	 * @return hits over hits and misses
+	 */
+	double getHitRatio();
+
+	/**
+	 * @return the counters for the whole pool
+	 */
+	BufMgrStats getStats();
+
+	/**
+	 * @return the counters for the pages of each file, by file name
+	 */
+	Map<String, BufMgrStats> getFileStats();
+
+	/**
+	 * Set the counters back to zero.
+	 */
+	void resetStats();
+}
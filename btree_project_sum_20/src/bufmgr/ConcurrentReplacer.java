@@ -0,0 +1,73 @@
+/*
+ * @(#) ConcurrentReplacer.java
+ *
+ */
+
+package bufmgr;
+
+/**
+ * ConcurrentReplacer is the replacement policy of a ConcurrentBufMgr, the
+ * counterpart of Replacer for BufMgr. The buffer manager tells it about
+ * hits, loads and frees, and asks it for a victim. Hits come from many
+ * threads at once without any lock held; a policy that keeps ordered lists
+ * synchronizes them itself.
+ * <p>
+ * A victim is claimed through ConcurrentBufMgr.claim, which only succeeds
+ * on an unpinned frame; the policy keeps trying other frames if it fails.
+ */
+abstract class ConcurrentReplacer {
+
+	protected final ConcurrentBufMgr mgr;
+	protected final int numFrames;
+
+	protected ConcurrentReplacer(ConcurrentBufMgr mgr, int numFrames) {
+		this.mgr = mgr;
+		this.numFrames = numFrames;
+	}
+
+	/**
+	 * Create the policy named by replacerArg, as given to the
+	 * ConcurrentBufMgr constructor: "Clock", "2Q" or "LRU-2". Anything else
+	 * gets Clock.
+	 */
+	static ConcurrentReplacer create(String replacerArg,
+			ConcurrentBufMgr mgr, int numFrames) {
+		if ("2Q".equals(replacerArg))
+			return new TwoQReplacer(mgr, numFrames);
+		if ("LRU-2".equals(replacerArg))
+			return new LRU2Replacer(mgr, numFrames);
+		if (!"Clock".equals(replacerArg))
+			System.out.println("Replacer:Unknown, Use Clock\n");
+		return new ClockReplacer(mgr, numFrames);
+	}
+
+	/**
+	 * Frame f was pinned by a buffer hit.
+	 */
+	abstract void hit(int f);
+
+	/**
+	 * Frame f, claimed by pick_victim, now holds page pid.
+	 */
+	abstract void loaded(int f, int pid);
+
+	/**
+	 * Frame f holds no page any more (its page was freed, or loading it
+	 * failed), so it should be the next victim.
+	 */
+	abstract void freed(int f);
+
+	/**
+	 * Choose an unpinned frame and claim it.
+	 *
+	 * @return the claimed frame
+	 * @exception BufferPoolExceededException
+	 *                no frame could be claimed
+	 */
+	abstract int pick_victim() throws BufferPoolExceededException;
+
+	/**
+	 * Name of the replacement policy.
+	 */
+	abstract String name();
+}
@@ -0,0 +1,95 @@
+/*
+ * @(#) LRU2Replacer.java
+ *
+ */
+
+package bufmgr;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * LRU-2 replacement (O'Neil, O'Neil and Weikum) for ConcurrentBufMgr. The
+ * victim is the unpinned frame whose second most recent reference is
+ * oldest; frames referenced only once since they were loaded go first,
+ * oldest first. A page seen once by a long scan therefore loses to any
+ * page referenced twice, such as the upper levels of an index.
+ * <p>
+ * The reference times of evicted pages are kept for as many pages as
+ * there are frames, so a page read again soon after eviction comes back
+ * with its history. Hits update two atomic times and take no lock; picking
+ * a victim scans all frames under this object's monitor.
+ */
+class LRU2Replacer extends ConcurrentReplacer {
+
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicLongArray last;
+	private final AtomicLongArray previous;
+
+	private final LinkedHashMap<Integer, Long> history;
+
+	LRU2Replacer(ConcurrentBufMgr mgr, final int numFrames) {
+		super(mgr, numFrames);
+		last = new AtomicLongArray(numFrames);
+		previous = new AtomicLongArray(numFrames);
+		history = new LinkedHashMap<Integer, Long>() {
+			protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+				return size() > numFrames;
+			}
+		};
+	}
+
+	void hit(int f) {
+		long now = clock.incrementAndGet();
+		previous.set(f, last.get(f));
+		last.set(f, now);
+	}
+
+	void loaded(int f, int pid) {
+		long now = clock.incrementAndGet();
+		Long seen;
+		synchronized (this) {
+			seen = history.remove(Integer.valueOf(pid));
+		}
+		previous.set(f, (seen != null) ? seen.longValue() : 0);
+		last.set(f, now);
+	}
+
+	void freed(int f) {
+		previous.set(f, 0);
+		last.set(f, 0);
+	}
+
+	synchronized int pick_victim() throws BufferPoolExceededException {
+		for (int tries = 0; tries < numFrames; tries++) {
+			int victim = -1;
+			long victimPrevious = 0;
+			long victimLast = 0;
+			for (int f = 0; f < numFrames; f++) {
+				if (!mgr.isUnpinned(f))
+					continue;
+				long p = previous.get(f);
+				long l = last.get(f);
+				if (victim == -1 || p < victimPrevious
+						|| (p == victimPrevious && l < victimLast)) {
+					victim = f;
+					victimPrevious = p;
+					victimLast = l;
+				}
+			}
+			if (victim == -1)
+				break;
+			if (mgr.claim(victim)) {
+				int pid = mgr.pageIn(victim);
+				if (pid >= 0)
+					history.put(Integer.valueOf(pid), Long.valueOf(last.get(victim)));
+				return victim;
+			}
+		}
+		throw new BufferPoolExceededException(null, "BUFMGR: BUFFER_EXCEEDED.");
+	}
+
+	String name() {
+		return "LRU-2";
+	}
+}
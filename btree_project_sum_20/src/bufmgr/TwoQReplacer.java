@@ -0,0 +1,141 @@
+/*
+ * @(#) TwoQReplacer.java
+ *
+ */
+
+package bufmgr;
+
+import java.util.*;
+
+/**
+ * 2Q replacement (Johnson and Shasha) for ConcurrentBufMgr. A page read
+ * for the first time goes on A1in, a FIFO holding about a quarter of the
+ * frames; when it is evicted from there its page number is remembered on
+ * A1out. A page read again while on A1out goes on Am, an LRU list, and
+ * hits only reorder Am. Pages touched once, like the leaves of a long scan,
+ * pass through A1in without disturbing the pages on Am, such as the upper
+ * levels of an index.
+ * <p>
+ * The lists are linked through per-frame arrays and guarded by this
+ * object's monitor. A hit on a page that is not on Am takes no lock.
+ */
+class TwoQReplacer extends ConcurrentReplacer {
+
+	private static final int NONE = -1;
+	private static final int FREE = 0;
+	private static final int A1IN = 1;
+	private static final int AM = 2;
+
+	private final int kin;
+	private final int kout;
+
+	private final int[] queue;
+	private final int[] prev;
+	private final int[] next;
+	private final int[] head = new int[3];
+	private final int[] tail = new int[3];
+	private final int[] size = new int[3];
+
+	private final LinkedHashSet<Integer> a1out = new LinkedHashSet<Integer>();
+
+	TwoQReplacer(ConcurrentBufMgr mgr, int numFrames) {
+		super(mgr, numFrames);
+		kin = Math.max(1, numFrames / 4);
+		kout = Math.max(1, numFrames / 2);
+		queue = new int[numFrames];
+		prev = new int[numFrames];
+		next = new int[numFrames];
+		Arrays.fill(head, NONE);
+		Arrays.fill(tail, NONE);
+		Arrays.fill(queue, NONE);
+		for (int f = 0; f < numFrames; f++)
+			append(FREE, f);
+	}
+
+	void hit(int f) {
+		if (queue[f] != AM)
+			return;
+		synchronized (this) {
+			if (queue[f] == AM) {
+				unlink(f);
+				append(AM, f);
+			}
+		}
+	}
+
+	synchronized void loaded(int f, int pid) {
+		unlink(f);
+		append(a1out.remove(Integer.valueOf(pid)) ? AM : A1IN, f);
+	}
+
+	synchronized void freed(int f) {
+		unlink(f);
+		append(FREE, f);
+	}
+
+	synchronized int pick_victim() throws BufferPoolExceededException {
+		int f = claimFrom(FREE);
+		if (f == NONE && size[A1IN] > kin)
+			f = claimFrom(A1IN);
+		if (f == NONE)
+			f = claimFrom(AM);
+		if (f == NONE)
+			f = claimFrom(A1IN);
+		if (f == NONE)
+			throw new BufferPoolExceededException(null,
+					"BUFMGR: BUFFER_EXCEEDED.");
+
+		if (queue[f] == A1IN) {
+			a1out.add(Integer.valueOf(mgr.pageIn(f)));
+			if (a1out.size() > kout) {
+				Iterator<Integer> oldest = a1out.iterator();
+				oldest.next();
+				oldest.remove();
+			}
+		}
+		unlink(f);
+		return f;
+	}
+
+	/*
+	 * Claim the first frame on a list, oldest first, that is not pinned.
+	 */
+	private int claimFrom(int list) {
+		for (int f = head[list]; f != NONE; f = next[f])
+			if (mgr.isUnpinned(f) && mgr.claim(f))
+				return f;
+		return NONE;
+	}
+
+	private void append(int list, int f) {
+		queue[f] = list;
+		prev[f] = tail[list];
+		next[f] = NONE;
+		if (tail[list] == NONE)
+			head[list] = f;
+		else
+			next[tail[list]] = f;
+		tail[list] = f;
+		size[list]++;
+	}
+
+	private void unlink(int f) {
+		int list = queue[f];
+		if (list == NONE)
+			return;
+		if (prev[f] == NONE)
+			head[list] = next[f];
+		else
+			next[prev[f]] = next[f];
+		if (next[f] == NONE)
+			tail[list] = prev[f];
+		else
+			prev[next[f]] = prev[f];
+		size[list]--;
+		queue[f] = NONE;
+	}
+
+	String name() {
+		return "2Q";
+	}
+}
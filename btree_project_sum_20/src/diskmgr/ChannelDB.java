@@ -0,0 +1,275 @@
+/*
+ * @(#) ChannelDB.java
+ *
+ */
+
+package diskmgr;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+
+import global.*;
+
+/**
+ * ChannelDB is a DB whose page reads and writes go through a FileChannel
+ * instead of a RandomAccessFile seek followed by a read or write.
+ * <ul>
+ * <li>In channel mode a page is read or written with one positional call,
+ * so there is no seek and no shared file position: any number of threads
+ * can read and write pages at once.</li>
+ * <li>In mapped mode the whole database file is mapped into memory once it
+ * is open, and a page read is a copy out of the mapping, with no system
+ * call at all. Writes go to the mapping and reach the file when the
+ * database is closed or the operating system writes the pages back.</li>
+ * </ul>
+ * Everything else (space map, file directory) is inherited from DB, which
+ * keeps those pages in the buffer pool and so also reads and writes them
+ * through read_page and write_page.
+ * <p>
+ * SystemDefs always opens a plain DB; ChannelDB.install() reopens the same
+ * database file as a ChannelDB and puts it in SystemDefs.JavabaseDB.
+ */
+public class ChannelDB extends DB implements GlobalConst {
+
+	private final boolean mapped;
+	private int pageSize;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+
+	private final AtomicLong reads = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+
+	/**
+	 * Create a ChannelDB; the database is opened with openDB.
+	 *
+	 * @param mapped
+	 *            true to map the database file into memory, false for
+	 *            positional FileChannel reads and writes. Input parameter.
+	 */
+	public ChannelDB(boolean mapped) {
+		this.mapped = mapped;
+	}
+
+	/**
+	 * Replace SystemDefs.JavabaseDB with a ChannelDB over the same database
+	 * file. Call it right after constructing SystemDefs: the buffer pool is
+	 * flushed first, so nothing written through the old DB is lost.
+	 *
+	 * @param mapped
+	 *            true for mapped mode, false for channel mode. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                I/O errors
+	 * @exception DiskMgrException
+	 *                error flushing the buffer pool or opening the database
+	 */
+	public static void install(boolean mapped) throws IOException,
+			DiskMgrException {
+		DB old = SystemDefs.JavabaseDB;
+		ChannelDB db = new ChannelDB(mapped);
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+			db.openDB(old.db_name());
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DiskMgrException(e, "DB.java: install() failed");
+		}
+		SystemDefs.JavabaseDB = db;
+		old.closeDB();
+	}
+
+	/**
+	 * Open the database with the given name.
+	 *
+	 * @param fname
+	 *            DB_name. Input parameter.
+	 * @exception IOException
+	 *                I/O errors
+	 * @exception FileIOException
+	 *                file I/O error
+	 * @exception InvalidPageNumberException
+	 *                invalid page number
+	 * @exception DiskMgrException
+	 *                error caused by other layers
+	 */
+	public void openDB(String fname) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		super.openDB(fname);
+		openChannel(fname);
+	}
+
+	/**
+	 * Create a database with the specified number of pages.
+	 *
+	 * @param fname
+	 *            file name of database. Input parameter.
+	 * @param num_pgs
+	 *            number of pages in database. Input parameter.
+	 * @exception IOException
+	 *                I/O errors
+	 * @exception InvalidPageNumberException
+	 *                invalid page number
+	 * @exception FileIOException
+	 *                file I/O error
+	 * @exception DiskMgrException
+	 *                error caused by other layers
+	 */
+	public void openDB(String fname, int num_pgs) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		super.openDB(fname, num_pgs);
+		openChannel(fname);
+	}
+
+	/*
+	 * Until the channel is open (while DB.openDB sets up the first pages)
+	 * read_page and write_page fall back to DB's own file.
+	 */
+	private void openChannel(String fname) throws IOException {
+		pageSize = db_page_size();
+		file = new RandomAccessFile(fname, "rw");
+		channel = file.getChannel();
+		if (mapped)
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					(long) db_num_pages() * pageSize);
+	}
+
+	/**
+	 * Close DB file.
+	 *
+	 * @exception IOException
+	 *                I/O errors.
+	 */
+	public void closeDB() throws IOException {
+		closeChannel();
+		super.closeDB();
+	}
+
+	/**
+	 * Destroy the database, removing the file that stores it.
+	 *
+	 * @exception IOException
+	 *                I/O errors.
+	 */
+	public void DBDestroy() throws IOException {
+		closeChannel();
+		super.DBDestroy();
+	}
+
+	private void closeChannel() throws IOException {
+		if (map != null) {
+			map.force();
+			map = null;
+		}
+		if (file != null) {
+			file.close();
+			file = null;
+			channel = null;
+		}
+	}
+
+	/**
+	 * Read the contents of the specified page into a Page object
+	 *
+	 * @param pageno
+	 *            pageId which will be read. Input parameter.
+	 * @param apage
+	 *            page object which holds the contents of page. Output
+	 *            parameter.
+	 * @exception InvalidPageNumberException
+	 *                invalid page number
+	 * @exception FileIOException
+	 *                file I/O error
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		if (channel == null) {
+			super.read_page(pageno, apage);
+			return;
+		}
+		checkPage(pageno);
+		byte[] data = apage.getpage();
+		long pos = (long) pageno.pid * pageSize;
+		if (map != null) {
+			ByteBuffer buf = map.duplicate();
+			buf.position((int) pos);
+			buf.get(data, 0, pageSize);
+		} else {
+			ByteBuffer buf = ByteBuffer.wrap(data, 0, pageSize);
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, pos + buf.position()) < 0)
+					throw new FileIOException(null, "DB file I/O error");
+			}
+		}
+		reads.incrementAndGet();
+	}
+
+	/**
+	 * Write the contents in a page object to the specified page.
+	 *
+	 * @param pageno
+	 *            pageId will be wrote to disk. Input parameter.
+	 * @param apage
+	 *            the page object will be wrote to disk. Input parameter.
+	 * @exception InvalidPageNumberException
+	 *                invalid page number
+	 * @exception FileIOException
+	 *                file I/O error
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public void write_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		if (channel == null) {
+			super.write_page(pageno, apage);
+			return;
+		}
+		checkPage(pageno);
+		byte[] data = apage.getpage();
+		long pos = (long) pageno.pid * pageSize;
+		if (map != null) {
+			ByteBuffer buf = map.duplicate();
+			buf.position((int) pos);
+			buf.put(data, 0, pageSize);
+		} else {
+			ByteBuffer buf = ByteBuffer.wrap(data, 0, pageSize);
+			while (buf.hasRemaining())
+				channel.write(buf, pos + buf.position());
+		}
+		writes.incrementAndGet();
+	}
+
+	private void checkPage(PageId pageno) throws InvalidPageNumberException {
+		if (pageno.pid < 0 || pageno.pid >= db_num_pages())
+			throw new InvalidPageNumberException(null, "BAD_PAGE_NUMBER");
+	}
+
+	/**
+	 * True if reads and writes go through a memory mapping.
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * Number of pages read through the channel or mapping since the
+	 * database was opened.
+	 */
+	public long getReads() {
+		return reads.get();
+	}
+
+	/**
+	 * Number of pages written through the channel or mapping since the
+	 * database was opened.
+	 */
+	public long getWrites() {
+		return writes.get();
+	}
+}
@@ -0,0 +1,334 @@
+package tests;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import diskmgr.*;
+import btree.*;
+
+/**
+ * Non-interactive benchmarks for BTreeFile and the buffer manager. Each
+ * benchmark runs for every combination of buffer pool size, replacer and
+ * key count given on the command line, on a fresh database, with warm-up
+ * iterations followed by measured ones. For each it reports throughput,
+ * latency percentiles of single operations, bytes allocated per operation
+ * and the collections the garbage collectors ran while measuring.
+ * <p>
+ * The benchmarks are:
+ * <ul>
+ * <li>insertSeq: insert the keys in ascending order into an empty tree
+ * <li>insertRandom: insert the keys in random order into an empty tree
+ * <li>lookup: point lookup through new_scan(key, key) and get_next on a
+ * tree of the keys
+ * <li>scan: a range scan of SCANLEN keys from a random key, through
+ * get_next; latency is per scan, throughput per entry read
+ * <li>delete: Delete every key in random order from a tree of the keys
+ * <li>pin: pinPage and unpinPage of random pages among twice as many as
+ * the pool holds, so the replacer decides the hit ratio; the key count
+ * does not matter
+ * </ul>
+ * Usage, with comma-separated lists of values and the defaults shown:
+ *
+ * <pre>
+ * java tests.BTBench -bench=insertSeq,insertRandom,lookup,scan,delete,pin
+ *     -pool=100,1000 -replacer=Clock,LRU,MRU -keys=10000,100000
+ *     -ops=100000 -warmup=2 -iterations=5 -seed=1 [-csv]
+ * </pre>
+ *
+ * With -csv the results are printed as comma-separated lines, so runs can
+ * be compared with a script.
+ */
+public class BTBench implements GlobalConst {
+
+	private static final int SCANLEN = 100;
+
+	private static final String[] BENCHES = { "insertSeq", "insertRandom",
+			"lookup", "scan", "delete", "pin" };
+
+	private final String dbpath = "/tmp/btbench"
+			+ System.getProperty("user.name") + ".minibase-db";
+
+	private int ops = 100000;
+	private int warmup = 2;
+	private int iterations = 5;
+	private long seed = 1;
+
+	private Random random;
+	private int files;
+
+	/*
+	 * Latencies of the measured operations, in nanoseconds, and the bytes
+	 * they allocated.
+	 */
+	private long[] samples = new long[1024];
+	private int count;
+	private long entries;
+	private long allocated;
+	private long allocStart;
+
+	/*
+	 * Bytes allocated by this thread so far, or -1 if the JVM cannot tell.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	private static long[] gcTotals() {
+		long[] totals = new long[2];
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			totals[0] += Math.max(gc.getCollectionCount(), 0);
+			totals[1] += Math.max(gc.getCollectionTime(), 0);
+		}
+		return totals;
+	}
+
+	private void startTimed() {
+		allocStart = allocatedBytes();
+	}
+
+	private void stopTimed() {
+		allocated += allocatedBytes() - allocStart;
+	}
+
+	private void record(long nanos) {
+		if (count == samples.length)
+			samples = Arrays.copyOf(samples, 2 * count);
+		samples[count++] = nanos;
+	}
+
+	private List<Integer> keys(int keys, boolean shuffled) {
+		List<Integer> list = new ArrayList<Integer>(keys);
+		for (int key = 0; key < keys; key++)
+			list.add(key);
+		if (shuffled)
+			Collections.shuffle(list, random);
+		return list;
+	}
+
+	private BTreeFile build(int keys, boolean shuffled) throws Exception {
+		BTreeFile file = new BTreeFile("BENCH" + files++, AttrType.attrInteger,
+				4, DeleteFashion.NAIVE_DELETE);
+		for (int key : keys(keys, shuffled))
+			file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+		return file;
+	}
+
+	/*
+	 * One iteration of a benchmark. tree is the tree of the keys built for
+	 * lookup and scan, pages the pages allocated for pin.
+	 */
+	private void iteration(String bench, int keys, BTreeFile tree,
+			PageId[] pages) throws Exception {
+		if (bench.equals("insertSeq") || bench.equals("insertRandom")) {
+			List<Integer> order = keys(keys, bench.equals("insertRandom"));
+			BTreeFile file = new BTreeFile("BENCH" + files++,
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			startTimed();
+			for (int key : order) {
+				long start = System.nanoTime();
+				file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+				record(System.nanoTime() - start);
+			}
+			stopTimed();
+			entries += keys;
+			file.destroyFile();
+		} else if (bench.equals("delete")) {
+			BTreeFile file = build(keys, true);
+			List<Integer> order = keys(keys, true);
+			startTimed();
+			for (int key : order) {
+				long start = System.nanoTime();
+				file.Delete(new IntegerKey(key), new RID(new PageId(key), 0));
+				record(System.nanoTime() - start);
+			}
+			stopTimed();
+			entries += keys;
+			file.destroyFile();
+		} else if (bench.equals("lookup")) {
+			startTimed();
+			for (int i = 0; i < ops; i++) {
+				IntegerKey key = new IntegerKey(random.nextInt(keys));
+				long start = System.nanoTime();
+				BTFileScan scan = tree.new_scan(key, key);
+				scan.get_next();
+				scan.DestroyBTreeFileScan();
+				record(System.nanoTime() - start);
+			}
+			stopTimed();
+			entries += ops;
+		} else if (bench.equals("scan")) {
+			startTimed();
+			for (int i = 0; i < ops / SCANLEN; i++) {
+				int lo = random.nextInt(Math.max(keys - SCANLEN, 1));
+				long start = System.nanoTime();
+				BTFileScan scan = tree.new_scan(new IntegerKey(lo),
+						new IntegerKey(lo + SCANLEN - 1));
+				while (scan.get_next() != null)
+					entries++;
+				scan.DestroyBTreeFileScan();
+				record(System.nanoTime() - start);
+			}
+			stopTimed();
+		} else if (bench.equals("pin")) {
+			Page page = new Page();
+			startTimed();
+			for (int i = 0; i < ops; i++) {
+				PageId pageno = pages[random.nextInt(pages.length)];
+				long start = System.nanoTime();
+				SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+				record(System.nanoTime() - start);
+			}
+			stopTimed();
+			entries += ops;
+		} else {
+			throw new IllegalArgumentException("no benchmark " + bench);
+		}
+	}
+
+	private long percentile(double p) {
+		int i = (int) Math.ceil(p * count) - 1;
+		return samples[Math.min(Math.max(i, 0), count - 1)];
+	}
+
+	/*
+	 * Run one benchmark in one configuration on a fresh database and print
+	 * its line of results.
+	 */
+	private void run(String bench, int pool, String replacer, int keys,
+			boolean csv) throws Exception {
+		random = new Random(seed);
+		// BufMgr prints the replacer's name, which would break up the table
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		try {
+			new SystemDefs(dbpath, Math.max(20000, keys / 10), pool, replacer);
+		} finally {
+			System.setOut(out);
+		}
+		try {
+			BTreeFile tree = null;
+			PageId[] pages = null;
+			if (bench.equals("lookup") || bench.equals("scan")) {
+				tree = build(keys, true);
+			} else if (bench.equals("pin")) {
+				pages = new PageId[2 * pool];
+				Page page = new Page();
+				for (int i = 0; i < pages.length; i++) {
+					pages[i] = SystemDefs.JavabaseBM.newPage(page, 1);
+					SystemDefs.JavabaseBM.unpinPage(pages[i], true);
+				}
+			}
+
+			for (int i = 0; i < warmup; i++)
+				iteration(bench, keys, tree, pages);
+			count = 0;
+			entries = 0;
+			allocated = 0;
+			long[] gc = gcTotals();
+			long nanos = 0;
+			for (int i = 0; i < iterations; i++) {
+				int from = count;
+				iteration(bench, keys, tree, pages);
+				for (int j = from; j < count; j++)
+					nanos += samples[j];
+			}
+			long[] gcEnd = gcTotals();
+			Arrays.sort(samples, 0, count);
+
+			if (tree != null)
+				tree.destroyFile();
+			if (pages != null)
+				for (PageId pageno : pages)
+					SystemDefs.JavabaseBM.freePage(pageno);
+
+			long perSec = (long) (entries * 1e9 / Math.max(nanos, 1));
+			long perOp = (allocated < 0) ? -1 : allocated / Math.max(entries, 1);
+			if (csv) {
+				System.out.println(bench + "," + pool + "," + replacer + ","
+						+ keys + "," + perSec + "," + percentile(0.5) + ","
+						+ percentile(0.9) + "," + percentile(0.99) + ","
+						+ percentile(0.999) + "," + samples[count - 1] + ","
+						+ perOp + "," + (gcEnd[0] - gc[0]) + ","
+						+ (gcEnd[1] - gc[1]));
+			} else {
+				System.out.printf("%-12s %6d %-7s %8d %11d %9.2f %9.2f %9.2f %9.2f %10.2f %8d %5d %6d%n",
+						bench, pool, replacer, keys, perSec,
+						percentile(0.5) / 1e3, percentile(0.9) / 1e3,
+						percentile(0.99) / 1e3, percentile(0.999) / 1e3,
+						samples[count - 1] / 1e3, perOp, gcEnd[0] - gc[0],
+						gcEnd[1] - gc[1]);
+			}
+		} finally {
+			SystemDefs.JavabaseDB.DBDestroy();
+		}
+	}
+
+	private static String[] list(Map<String, String> options, String name,
+			String defaults) {
+		String value = options.remove(name);
+		return ((value == null) ? defaults : value).split(",");
+	}
+
+	private static int[] ints(Map<String, String> options, String name,
+			String defaults) {
+		String[] values = list(options, name, defaults);
+		int[] out = new int[values.length];
+		for (int i = 0; i < values.length; i++)
+			out[i] = Integer.parseInt(values[i].trim());
+		return out;
+	}
+
+	public static void main(String argv[]) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : argv) {
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("-")) {
+				System.err.println("unknown argument " + arg);
+				Runtime.getRuntime().exit(2);
+			}
+			options.put(arg.substring(1, (eq < 0) ? arg.length() : eq),
+					(eq < 0) ? "true" : arg.substring(eq + 1));
+		}
+
+		BTBench bench = new BTBench();
+		boolean csv = options.remove("csv") != null;
+		String[] benches = list(options, "bench", String.join(",", BENCHES));
+		int[] pools = ints(options, "pool", "100,1000");
+		String[] replacers = list(options, "replacer", "Clock,LRU,MRU");
+		int[] keys = ints(options, "keys", "10000,100000");
+		bench.ops = ints(options, "ops", "100000")[0];
+		bench.warmup = ints(options, "warmup", "2")[0];
+		bench.iterations = ints(options, "iterations", "5")[0];
+		bench.seed = ints(options, "seed", "1")[0];
+		if (!options.isEmpty()) {
+			System.err.println("unknown options " + options.keySet());
+			Runtime.getRuntime().exit(2);
+		}
+
+		if (csv)
+			System.out.println("bench,pool,replacer,keys,ops_per_sec,p50_ns,p90_ns,"
+					+ "p99_ns,p999_ns,max_ns,alloc_bytes_per_op,gc_count,gc_ms");
+		else
+			System.out.println("bench          pool replacer    keys       ops/s   p50 us    p90 us    p99 us  p99.9 us     max us  B/op   gcs  gc ms");
+		try {
+			for (String name : benches)
+				for (int pool : pools)
+					for (String replacer : replacers)
+						for (int n : keys)
+							bench.run(name.trim(), pool, replacer.trim(), n, csv);
+		} catch (Exception e) {
+			e.printStackTrace();
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
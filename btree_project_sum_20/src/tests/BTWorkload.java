@@ -0,0 +1,483 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import global.*;
+import bufmgr.*;
+import diskmgr.*;
+import btree.*;
+
+/**
+ * A scripted, YCSB-style workload driver for BTreeFile. A load phase
+ * inserts the keys 0 to keys-1 in random order; client threads then run a
+ * mix of operations, first for a warm-up that is not measured and then for
+ * the measured run:
+ * <ul>
+ * <li>lookup: BTreeFile.lookup of a key
+ * <li>insert: insert the next key not used yet
+ * <li>scan: a scan of up to scanlen entries from a key
+ * <li>delete: Delete the entry of a key, if it is still there
+ * </ul>
+ * Keys for lookup, scan and delete are drawn from a uniform distribution
+ * over the keys inserted so far, a scrambled Zipfian one (popular keys
+ * spread over the key space), or a "latest" one (Zipfian over the most
+ * recently inserted keys). Each client has its own Random seeded from
+ * -seed, so a single-threaded run is reproducible exactly; with more
+ * threads only the interleaving varies.
+ * <p>
+ * The buffer manager is a ConcurrentBufMgr and the database a ChannelDB,
+ * for their hit, miss, read and write counters; with more than one thread
+ * the file runs in concurrent mode. The results (ops/sec and latency
+ * percentiles per operation, the latency histograms, and buffer manager
+ * and disk I/O counts over the run) are written as CSV or JSON. Usage,
+ * with the defaults shown:
+ *
+ * <pre>
+ * java tests.BTWorkload -keys=100000 -ops=1000000 -warmup=100000
+ *     -threads=1 -lookup=0.7 -insert=0.1 -scan=0.1 -delete=0.1
+ *     -dist=zipfian -scanlen=100 -pool=1000 -replacer=Clock -seed=1
+ *     -format=csv -out=-
+ * </pre>
+ *
+ * -ops and -warmup are totals over all threads; -out=- writes to standard
+ * output.
+ */
+public class BTWorkload implements GlobalConst {
+
+	private static final String[] OPS = { "lookup", "insert", "scan", "delete" };
+	private static final int LOOKUP = 0, INSERT = 1, SCAN = 2, DELETE = 3;
+
+	/*
+	 * Latency histograms have four buckets per power of two nanoseconds,
+	 * so a percentile read from one is at most 25% high.
+	 */
+	private static final int BUCKETS = 256;
+
+	private final String dbpath = "/tmp/btworkload"
+			+ System.getProperty("user.name") + ".minibase-db";
+
+	private int keys = 100000;
+	private int ops = 1000000;
+	private int warmup = 100000;
+	private int threads = 1;
+	private double[] mix = { 0.7, 0.1, 0.1, 0.1 };
+	private String dist = "zipfian";
+	private int scanlen = 100;
+	private int pool = 1000;
+	private String replacer = "Clock";
+	private long seed = 1;
+	private String format = "csv";
+	private String out = "-";
+
+	private BTreeFile file;
+	private final AtomicInteger nextKey = new AtomicInteger();
+	private ZipfianGenerator zipfian;
+
+	/*
+	 * Results merged from the clients of the measured run.
+	 */
+	private long[][] histogram = new long[OPS.length][BUCKETS];
+	private long[] count = new long[OPS.length];
+	private long[] total = new long[OPS.length];
+	private long[] max = new long[OPS.length];
+	private long[] misses = new long[OPS.length];
+
+	/**
+	 * Zipfian ranks in [0, n) with the constant 0.99, drawn as in YCSB's
+	 * ZipfianGenerator (Gray et al., "Quickly generating billion-record
+	 * synthetic databases").
+	 */
+	static class ZipfianGenerator {
+
+		private static final double THETA = 0.99;
+
+		private final long n;
+		private final double zetan;
+		private final double alpha;
+		private final double eta;
+
+		ZipfianGenerator(long n) {
+			this.n = n;
+			zetan = zeta(n);
+			alpha = 1.0 / (1.0 - THETA);
+			eta = (1 - Math.pow(2.0 / n, 1 - THETA)) / (1 - zeta(2) / zetan);
+		}
+
+		private static double zeta(long n) {
+			double sum = 0;
+			for (long i = 1; i <= n; i++)
+				sum += 1 / Math.pow(i, THETA);
+			return sum;
+		}
+
+		long next(Random random) {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1.0)
+				return 0;
+			if (uz < 1.0 + Math.pow(0.5, THETA))
+				return 1;
+			return Math.min((long) (n * Math.pow(eta * u - eta + 1, alpha)), n - 1);
+		}
+	}
+
+	/*
+	 * FNV-1a, to scatter Zipfian ranks over the key space.
+	 */
+	private static long fnv(long value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < 8; i++) {
+			hash ^= value & 0xff;
+			hash *= 0x100000001b3L;
+			value >>>= 8;
+		}
+		return hash & Long.MAX_VALUE;
+	}
+
+	static int bucket(long nanos) {
+		if (nanos < 4)
+			return (int) Math.max(nanos, 0);
+		int exp = 63 - Long.numberOfLeadingZeros(nanos);
+		return 4 * (exp - 1) + (int) ((nanos >> (exp - 2)) & 3);
+	}
+
+	static long bucketLow(int bucket) {
+		if (bucket < 4)
+			return bucket;
+		return (long) (4 + bucket % 4) << (bucket / 4 - 1);
+	}
+
+	static long bucketHigh(int bucket) {
+		if (bucket < 4)
+			return bucket + 1;
+		return bucketLow(bucket) + (1L << (bucket / 4 - 1));
+	}
+
+	/*
+	 * A key for a lookup, scan or delete, among the keys inserted so far.
+	 */
+	private int chooseKey(Random random) {
+		int limit = nextKey.get();
+		if (dist.equals("uniform"))
+			return random.nextInt(limit);
+		if (dist.equals("latest"))
+			return Math.max(limit - 1 - (int) zipfian.next(random), 0);
+		return (int) (fnv(zipfian.next(random)) % limit);
+	}
+
+	private int chooseOp(Random random) {
+		double u = random.nextDouble();
+		for (int op = 0; op < OPS.length - 1; op++) {
+			if (u < mix[op])
+				return op;
+			u -= mix[op];
+		}
+		return OPS.length - 1;
+	}
+
+	/*
+	 * Run one operation. Returns false if its key was not found.
+	 */
+	private boolean operate(int op, Random random) throws Exception {
+		switch (op) {
+		case LOOKUP:
+			return file.lookup(new IntegerKey(chooseKey(random))) != null;
+		case INSERT:
+			int key = nextKey.getAndIncrement();
+			file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+			return true;
+		case SCAN:
+			BTFileScan scan = file.new_scan(new IntegerKey(chooseKey(random)), null);
+			int read = 0;
+			while (read < scanlen && scan.get_next() != null)
+				read++;
+			scan.DestroyBTreeFileScan();
+			return read > 0;
+		default:
+			key = chooseKey(random);
+			return file.Delete(new IntegerKey(key), new RID(new PageId(key), 0));
+		}
+	}
+
+	/*
+	 * A client thread: runs its share of a phase and keeps its own
+	 * histograms, merged when it is done.
+	 */
+	private class Client extends Thread {
+
+		private final Random random;
+		private final int n;
+		private final boolean measured;
+		private final long[][] histogram = new long[OPS.length][BUCKETS];
+		private final long[] count = new long[OPS.length];
+		private final long[] total = new long[OPS.length];
+		private final long[] max = new long[OPS.length];
+		private final long[] misses = new long[OPS.length];
+		private Exception error;
+
+		Client(long seed, int n, boolean measured) {
+			this.random = new Random(seed);
+			this.n = n;
+			this.measured = measured;
+		}
+
+		public void run() {
+			try {
+				for (int i = 0; i < n; i++) {
+					int op = chooseOp(random);
+					long start = System.nanoTime();
+					boolean found = operate(op, random);
+					long nanos = System.nanoTime() - start;
+					if (!measured)
+						continue;
+					histogram[op][Math.min(bucket(nanos), BUCKETS - 1)]++;
+					count[op]++;
+					total[op] += nanos;
+					max[op] = Math.max(max[op], nanos);
+					if (!found)
+						misses[op]++;
+				}
+			} catch (Exception e) {
+				error = e;
+			}
+		}
+	}
+
+	/*
+	 * Run n operations on the client threads. Returns the elapsed time.
+	 */
+	private long phase(int n, boolean measured, long phaseSeed) throws Exception {
+		Client[] clients = new Client[threads];
+		for (int t = 0; t < threads; t++)
+			clients[t] = new Client(phaseSeed + t, n / threads
+					+ ((t < n % threads) ? 1 : 0), measured);
+		long start = System.nanoTime();
+		for (Client client : clients)
+			client.start();
+		for (Client client : clients)
+			client.join();
+		long elapsed = System.nanoTime() - start;
+		for (Client client : clients) {
+			if (client.error != null)
+				throw client.error;
+			for (int op = 0; op < OPS.length; op++) {
+				for (int b = 0; b < BUCKETS; b++)
+					histogram[op][b] += client.histogram[op][b];
+				count[op] += client.count[op];
+				total[op] += client.total[op];
+				max[op] = Math.max(max[op], client.max[op]);
+				misses[op] += client.misses[op];
+			}
+		}
+		return elapsed;
+	}
+
+	private double percentile(int op, double p) {
+		long rank = (long) Math.ceil(p * count[op]);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += histogram[op][b];
+			if (seen >= rank && seen > 0)
+				return Math.min(bucketHigh(b), max[op]) / 1e3;
+		}
+		return 0;
+	}
+
+	private void run() throws Exception {
+		PrintStream stdout = System.out;
+		// BufMgr prints the replacer's name, which would break up the output
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		try {
+			new SystemDefs(dbpath, Math.max(20000, (keys + ops) / 20), pool, "Clock");
+			ChannelDB.install(false);
+			ConcurrentBufMgr.install(replacer);
+		} finally {
+			System.setOut(stdout);
+		}
+		try {
+			ConcurrentBufMgr bm = (ConcurrentBufMgr) SystemDefs.JavabaseBM;
+			ChannelDB db = (ChannelDB) SystemDefs.JavabaseDB;
+
+			file = new BTreeFile("WORKLOAD", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			file.setConcurrent(threads > 1);
+			List<Integer> order = new ArrayList<Integer>(keys);
+			for (int key = 0; key < keys; key++)
+				order.add(key);
+			Collections.shuffle(order, new Random(seed));
+			long loadStart = System.nanoTime();
+			for (int key : order)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+			long loadNanos = System.nanoTime() - loadStart;
+			nextKey.set(keys);
+			zipfian = new ZipfianGenerator(Math.max(keys, 2));
+
+			phase(warmup, false, seed * 1000);
+			long hits = bm.getHits(), missed = bm.getMisses();
+			long reads = db.getReads(), writes = db.getWrites();
+			long nanos = phase(ops, true, seed * 1000 + threads);
+			long[] io = { bm.getHits() - hits, bm.getMisses() - missed,
+					db.getReads() - reads, db.getWrites() - writes };
+
+			PrintStream stream = out.equals("-") ? System.out : new PrintStream(
+					new FileOutputStream(out));
+			if (format.equals("json"))
+				writeJson(stream, loadNanos, nanos, io);
+			else
+				writeCsv(stream, loadNanos, nanos, io);
+			stream.flush();
+			if (stream != System.out)
+				stream.close();
+
+			file.setConcurrent(false);
+			file.destroyFile();
+		} finally {
+			SystemDefs.JavabaseDB.DBDestroy();
+		}
+	}
+
+	private long totalOps() {
+		long sum = 0;
+		for (long n : count)
+			sum += n;
+		return sum;
+	}
+
+	private void writeCsv(PrintStream stream, long loadNanos, long nanos,
+			long[] io) {
+		stream.println("# run");
+		stream.println("keys,ops,threads,dist,load_ms,run_ms,ops_per_sec,"
+				+ "bm_hits,bm_misses,disk_reads,disk_writes");
+		stream.println(keys + "," + totalOps() + "," + threads + "," + dist + ","
+				+ loadNanos / 1000000 + "," + nanos / 1000000 + ","
+				+ (long) (totalOps() * 1e9 / nanos) + "," + io[0] + "," + io[1]
+				+ "," + io[2] + "," + io[3]);
+		stream.println("# operations");
+		stream.println("op,count,not_found,ops_per_sec,mean_us,p50_us,p95_us,"
+				+ "p99_us,p999_us,max_us");
+		for (int op = 0; op < OPS.length; op++) {
+			if (count[op] == 0)
+				continue;
+			stream.printf("%s,%d,%d,%d,%.2f,%.2f,%.2f,%.2f,%.2f,%.2f%n",
+					OPS[op], count[op], misses[op],
+					(long) (count[op] * 1e9 / nanos), total[op] / 1e3 / count[op],
+					percentile(op, 0.5), percentile(op, 0.95),
+					percentile(op, 0.99), percentile(op, 0.999), max[op] / 1e3);
+		}
+		stream.println("# histogram");
+		stream.println("op,from_us,to_us,count");
+		for (int op = 0; op < OPS.length; op++)
+			for (int b = 0; b < BUCKETS; b++)
+				if (histogram[op][b] > 0)
+					stream.printf("%s,%.3f,%.3f,%d%n", OPS[op], bucketLow(b) / 1e3,
+							bucketHigh(b) / 1e3, histogram[op][b]);
+	}
+
+	private void writeJson(PrintStream stream, long loadNanos, long nanos,
+			long[] io) {
+		stream.println("{");
+		stream.println("  \"keys\": " + keys + ", \"ops\": " + totalOps()
+				+ ", \"threads\": " + threads + ", \"dist\": \"" + dist + "\",");
+		stream.println("  \"load_ms\": " + loadNanos / 1000000 + ", \"run_ms\": "
+				+ nanos / 1000000 + ", \"ops_per_sec\": "
+				+ (long) (totalOps() * 1e9 / nanos) + ",");
+		stream.println("  \"io\": {\"bm_hits\": " + io[0] + ", \"bm_misses\": "
+				+ io[1] + ", \"disk_reads\": " + io[2] + ", \"disk_writes\": "
+				+ io[3] + "},");
+		stream.println("  \"operations\": {");
+		boolean first = true;
+		for (int op = 0; op < OPS.length; op++) {
+			if (count[op] == 0)
+				continue;
+			if (!first)
+				stream.println(",");
+			first = false;
+			stream.printf("    \"%s\": {\"count\": %d, \"not_found\": %d, "
+					+ "\"ops_per_sec\": %d, \"mean_us\": %.2f, \"p50_us\": %.2f, "
+					+ "\"p95_us\": %.2f, \"p99_us\": %.2f, \"p999_us\": %.2f, "
+					+ "\"max_us\": %.2f,%n      \"histogram\": [", OPS[op],
+					count[op], misses[op], (long) (count[op] * 1e9 / nanos),
+					total[op] / 1e3 / count[op], percentile(op, 0.5),
+					percentile(op, 0.95), percentile(op, 0.99),
+					percentile(op, 0.999), max[op] / 1e3);
+			String sep = "";
+			for (int b = 0; b < BUCKETS; b++) {
+				if (histogram[op][b] == 0)
+					continue;
+				stream.printf("%s[%.3f, %.3f, %d]", sep, bucketLow(b) / 1e3,
+						bucketHigh(b) / 1e3, histogram[op][b]);
+				sep = ", ";
+			}
+			stream.print("]}");
+		}
+		stream.println();
+		stream.println("  }");
+		stream.println("}");
+	}
+
+	public static void main(String argv[]) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : argv) {
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("-") || eq < 0) {
+				System.err.println("unknown argument " + arg);
+				Runtime.getRuntime().exit(2);
+			}
+			options.put(arg.substring(1, eq), arg.substring(eq + 1));
+		}
+
+		BTWorkload workload = new BTWorkload();
+		try {
+			if (options.containsKey("keys"))
+				workload.keys = Integer.parseInt(options.remove("keys"));
+			if (options.containsKey("ops"))
+				workload.ops = Integer.parseInt(options.remove("ops"));
+			if (options.containsKey("warmup"))
+				workload.warmup = Integer.parseInt(options.remove("warmup"));
+			if (options.containsKey("threads"))
+				workload.threads = Integer.parseInt(options.remove("threads"));
+			double sum = 0;
+			for (int op = 0; op < OPS.length; op++) {
+				if (options.containsKey(OPS[op]))
+					workload.mix[op] = Double.parseDouble(options.remove(OPS[op]));
+				sum += workload.mix[op];
+			}
+			for (int op = 0; op < OPS.length; op++)
+				workload.mix[op] /= sum;
+			if (options.containsKey("dist"))
+				workload.dist = options.remove("dist");
+			if (options.containsKey("scanlen"))
+				workload.scanlen = Integer.parseInt(options.remove("scanlen"));
+			if (options.containsKey("pool"))
+				workload.pool = Integer.parseInt(options.remove("pool"));
+			if (options.containsKey("replacer"))
+				workload.replacer = options.remove("replacer");
+			if (options.containsKey("seed"))
+				workload.seed = Long.parseLong(options.remove("seed"));
+			if (options.containsKey("format"))
+				workload.format = options.remove("format");
+			if (options.containsKey("out"))
+				workload.out = options.remove("out");
+		} catch (NumberFormatException e) {
+			System.err.println("bad number: " + e.getMessage());
+			Runtime.getRuntime().exit(2);
+		}
+		if (!options.isEmpty() || workload.threads < 1 || workload.keys < 1
+				|| !Arrays.asList("uniform", "zipfian", "latest").contains(workload.dist)
+				|| !Arrays.asList("csv", "json").contains(workload.format)) {
+			System.err.println("bad options " + options.keySet() + "; see the "
+					+ "class comment of tests.BTWorkload");
+			Runtime.getRuntime().exit(2);
+		}
+
+		try {
+			workload.run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
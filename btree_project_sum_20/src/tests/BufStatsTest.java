@@ -0,0 +1,269 @@
+package tests;
+
+import java.lang.management.*;
+import java.util.*;
+
+import javax.management.*;
+import javax.management.openmbean.*;
+
+import diskmgr.*;
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Tests for the counters of ConcurrentBufMgr: a small index looked up
+ * while a large one is scanned keeps its pages, and the counters for each
+ * file show which one is thrashing the pool; pins that find every frame
+ * pinned are counted; pins from many threads are all counted; and the
+ * counters are an MXBean of the latest buffer manager.
+ */
+class BufStatsDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 100;
+	private static final int THREADS = 4;
+
+	public BufStatsDriver() {
+		super("bufstatstest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, NUMBUF, "Clock");
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Buffer pool statistics";
+	}
+
+	private static ConcurrentBufMgr bm() {
+		return (ConcurrentBufMgr) SystemDefs.JavabaseBM;
+	}
+
+	private static BTreeFile build(String name, int keys) throws Exception {
+		BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		for (int key = 0; key < keys; key++)
+			file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+		return file;
+	}
+
+	/**
+	 * Lookups in a small file between full scans of a large one: the small
+	 * file's pages must hit more often and be evicted less, writing the
+	 * large file must flush its dirty pages, and the counters of the files
+	 * must add up to nearly all of the pool's.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: counters by file\n");
+		failed = false;
+		try {
+			ConcurrentBufMgr bm = bm();
+			bm.resetStats();
+			BTreeFile hot = build("HOT", 2000);
+			BTreeFile cold = build("COLD", 50000);
+			IntBTreeFile ints = new IntBTreeFile("INTS");
+			for (int key = 0; key < 5000; key++)
+				ints.insert(key, new RID(new PageId(key), 0));
+			bm.flushAllPages();
+			Map<String, BufMgrStats> files = bm.getFileStats();
+			System.out.println("  building: " + bm.getStats());
+			if (!files.containsKey("INTS") || files.get("INTS").getMisses()
+					+ files.get("INTS").getHits() == 0)
+				fail("IntBTreeFile pins not counted: " + files.get("INTS"), null);
+			if (files.get("COLD").getDirtyFlushes() < 50000 / 100)
+				fail("building COLD flushed " + files.get("COLD").getDirtyFlushes()
+						+ " dirty pages", null);
+
+			bm.resetStats();
+			if (bm.getStats().getHits() != 0 || bm.getFileStats().get("COLD").getHits() != 0)
+				fail("reset left counts", null);
+			Random random = new Random(25);
+			for (int round = 0; round < 10; round++) {
+				for (int i = 0; i < 500; i++)
+					hot.lookup(new IntegerKey(random.nextInt(2000)));
+				BTFileScan scan = cold.new_scan(null, null);
+				while (scan.get_next() != null)
+					;
+				scan.DestroyBTreeFileScan();
+			}
+
+			BufMgrStats total = bm.getStats();
+			files = bm.getFileStats();
+			BufMgrStats hotStats = files.get("HOT");
+			BufMgrStats coldStats = files.get("COLD");
+			System.out.println("  total: " + total);
+			System.out.println("  HOT:   " + hotStats);
+			System.out.println("  COLD:  " + coldStats);
+			if (hotStats.getHitRatio() <= coldStats.getHitRatio())
+				fail("HOT hit ratio not above COLD's", null);
+			if (coldStats.getEvictions() <= hotStats.getEvictions())
+				fail("COLD pages not evicted more than HOT's", null);
+			long pins = 0, evictions = 0;
+			for (BufMgrStats file : files.values()) {
+				pins += file.getHits() + file.getMisses();
+				evictions += file.getEvictions();
+			}
+			if (pins > total.getHits() + total.getMisses()
+					|| evictions > total.getEvictions())
+				fail("files counted more than the pool", null);
+			if (pins < 0.99 * (total.getHits() + total.getMisses()))
+				fail("only " + pins + " of " + (total.getHits() + total.getMisses())
+						+ " pins counted for a file", null);
+			if (total.getMisses() < total.getEvictions()
+					|| total.getPoolExceeded() != 0)
+				fail("pool counters do not add up: " + total, null);
+
+			hot.destroyFile();
+			cold.destroyFile();
+			ints.destroyFile();
+			if (bm.getNumUnpinnedBuffers() != NUMBUF)
+				fail("pages left pinned", null);
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Pin pages until the pool is full, then one more for a file and one
+	 * for none: both failures must be counted, the first for the file. Then
+	 * threads pinning the pages of a file over and over must have every pin
+	 * counted as a hit or a miss.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: full pool and concurrent pins\n");
+		failed = false;
+		try {
+			ConcurrentBufMgr bm = bm();
+			bm.resetStats();
+			// allocate first: allocation pins the space map of the database
+			List<PageId> pages = new ArrayList<PageId>();
+			for (int i = 0; i < NUMBUF + 2; i++) {
+				PageId pageno = new PageId();
+				SystemDefs.JavabaseDB.allocate_page(pageno);
+				pages.add(pageno);
+			}
+			int pinned = 0;
+			for (int i = 0; i < pages.size(); i++) {
+				try {
+					bm.pinPage(pages.get(i), new Page(), true,
+							(i < NUMBUF + 1) ? "FULL" : null);
+					pinned++;
+				} catch (BufferPoolExceededException e) {
+					// expected for the last two
+				}
+			}
+			for (int i = 0; i < pinned; i++)
+				bm.unpinPage(pages.get(i), false);
+			for (PageId pageno : pages)
+				bm.freePage(pageno);
+			System.out.println("  " + pinned + " pages pinned, then "
+					+ bm.getStats());
+			if (pinned != NUMBUF || bm.getPoolExceeded() != 2
+					|| bm.getFileStats().get("FULL").getPoolExceeded() != 1)
+				fail("full pool counted " + bm.getPoolExceeded() + " times, "
+						+ bm.getFileStats().get("FULL").getPoolExceeded()
+						+ " for the file", null);
+
+			final BTreeFile file = build("SHARED", 20000);
+			file.setConcurrent(true);
+			bm.flushAllPages();
+			bm.resetStats();
+			final int lookups = 2000;
+			Thread[] threads = new Thread[THREADS];
+			for (int t = 0; t < THREADS; t++) {
+				final int seed = t;
+				threads[t] = new Thread() {
+					public void run() {
+						Random random = new Random(seed);
+						try {
+							for (int i = 0; i < lookups; i++)
+								file.lookup(new IntegerKey(random.nextInt(20000)));
+						} catch (Exception e) {
+							fail("lookup failed", e);
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+			file.setConcurrent(false);
+			BufMgrStats total = bm.getStats();
+			BufMgrStats shared = bm.getFileStats().get("SHARED");
+			long pins = Math.round(file.getStats().getPinsPerLookup()
+					* file.getStats().getLookups());
+			System.out.println("  " + THREADS + " threads: " + shared);
+			if (shared.getHits() + shared.getMisses() != pins
+					|| total.getHits() + total.getMisses() != pins)
+				fail((shared.getHits() + shared.getMisses()) + " pins counted, "
+						+ pins + " made", null);
+			if (shared.getPinWaits() > pins)
+				fail("more pin waits than pins", null);
+			file.destroyFile();
+			if (bm.getNumUnpinnedBuffers() != NUMBUF)
+				fail("pages left pinned", null);
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * The latest ConcurrentBufMgr is registered with the platform MBean
+	 * server: its counters, per-file table and reset work through it, and
+	 * a new buffer manager takes the name over.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: JMX\n");
+		failed = false;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("bufmgr:type=ConcurrentBufMgr");
+			ConcurrentBufMgr bm = bm();
+			BTreeFile file = build("JMXFILE", 10000);
+			for (int key = 0; key < 1000; key++)
+				file.lookup(new IntegerKey(key * 10));
+			if (!Long.valueOf(bm.getHits()).equals(server.getAttribute(name, "Hits")))
+				fail("Hits attribute is " + server.getAttribute(name, "Hits"), null);
+			TabularData table = (TabularData) server.getAttribute(name, "FileStats");
+			CompositeData row = table.get(new Object[] { "JMXFILE" });
+			if (row == null || !Long.valueOf(bm.getFileStats().get("JMXFILE").getMisses())
+					.equals(((CompositeData) row.get("value")).get("misses")))
+				fail("FileStats attribute is " + table, null);
+			System.out.println("  through JMX: " + server.getAttribute(name, "HitRatio")
+					+ " hit ratio, " + table.size() + " files");
+			server.invoke(name, "resetStats", new Object[0], new String[0]);
+			if (bm.getHits() != 0)
+				fail("resetStats through JMX left " + bm.getHits() + " hits", null);
+			file.destroyFile();
+
+			bm.flushAllPages();
+			ConcurrentBufMgr next = new ConcurrentBufMgr(2 * NUMBUF);
+			if (!Integer.valueOf(2 * NUMBUF).equals(server.getAttribute(name, "NumBuffers")))
+				fail("the new buffer manager is not registered", null);
+			SystemDefs.JavabaseBM = next;
+		} catch (Exception e) {
+			fail("test 3 failed", e);
+		}
+		System.out.println("  Test 3 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class BufStatsTest {
+
+	public static void main(String argv[]) {
+		BufStatsDriver driver = new BufStatsDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during buffer statistics tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,173 @@
+package tests;
+
+import global.*;
+import bufmgr.*;
+import diskmgr.*;
+import btree.*;
+
+/**
+ * Tests for ChannelDB: a tree written through one DB backend reads back
+ * the same through the others, and full scans with a buffer pool much
+ * smaller than the tree are timed over DB, ChannelDB and mapped ChannelDB.
+ */
+class ChannelDBDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 50;
+	private static final int NUMKEYS = 50000;
+	private static final int SCANS = 5;
+
+	private static final String FILE = "CHANNEL";
+
+	public ChannelDBDriver() {
+		super("channeldbtest");
+	}
+
+	/*
+	 * The tests reopen the database file by name, so it gets a name of its
+	 * own: runTests removes dbpath without waiting, which an open DB
+	 * survives but a reopen would not.
+	 */
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath + "-channel", 20000, NUMBUF, "Clock");
+		boolean pass = super.runAllTests();
+		try {
+			SystemDefs.JavabaseDB.DBDestroy();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return pass;
+	}
+
+	protected String testName() {
+		return "ChannelDB";
+	}
+
+	/*
+	 * Reopen the database file through db, with an empty buffer pool. No
+	 * page may be pinned.
+	 */
+	private void useDB(DB db) throws Exception {
+		SystemDefs.JavabaseBM.flushAllPages();
+		db.openDB(SystemDefs.JavabaseDB.db_name());
+		SystemDefs.JavabaseDB.closeDB();
+		SystemDefs.JavabaseDB = db;
+		SystemDefs.JavabaseBM = new BufMgr(NUMBUF, "Clock");
+	}
+
+	/*
+	 * Scan the whole tree, checking that the keys are 0, 1, 2, ... Returns
+	 * the number of entries.
+	 */
+	private int checkedScan() throws Exception {
+		BTreeFile file = new BTreeFile(FILE);
+		BTFileScan scan = file.new_scan(null, null);
+		int count = 0;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			int key = ((IntegerKey) entry.key).getKey().intValue();
+			if (key != count) {
+				fail("key " + key + " found, expected " + count, null);
+				break;
+			}
+			count++;
+		}
+		scan.DestroyBTreeFileScan();
+		file.close();
+		return count;
+	}
+
+	/**
+	 * Build the tree through DB, read it through ChannelDB in channel and
+	 * mapped mode, extend it through each, and read it back through DB.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: pages round trip through every backend\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile(FILE, AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			for (int key = 0; key < NUMKEYS / 2; key++)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+			file.close();
+
+			int expected = NUMKEYS / 2;
+			boolean[] modes = { false, true };
+			for (int i = 0; i < modes.length && !failed; i++) {
+				useDB(new ChannelDB(modes[i]));
+				int count = checkedScan();
+				if (count != expected)
+					fail("found " + count + " entries, expected " + expected,
+							null);
+				file = new BTreeFile(FILE);
+				int more = expected + NUMKEYS / 4;
+				for (int key = expected; key < more; key++)
+					file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+				file.close();
+				expected = more;
+				if (((ChannelDB) SystemDefs.JavabaseDB).getWrites() == 0)
+					fail("no page written through ChannelDB", null);
+			}
+
+			useDB(new DB());
+			int count = checkedScan();
+			if (count != expected)
+				fail("found " + count + " entries, expected " + expected, null);
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Time full scans of the tree from test 1 with a buffer pool of NUMBUF
+	 * frames, so nearly every leaf is a miss. The file stays in the
+	 * operating system's cache, so this measures the cost of the calls and
+	 * copies per page rather than of the disk. Only checks the scans; the
+	 * times are printed.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: cold scans, " + NUMBUF + " buffers\n");
+		failed = false;
+		try {
+			String[] names = { "DB (seek + read)", "ChannelDB", "ChannelDB mapped" };
+			System.out.println("  backend              ms/scan    pages read/scan");
+			for (int i = 0; i < names.length && !failed; i++) {
+				DB db = (i == 0) ? new DB() : new ChannelDB(i == 2);
+				useDB(db);
+				// One scan to warm up the JIT
+				checkedScan();
+				long reads = (i == 0) ? 0 : ((ChannelDB) db).getReads();
+				long start = System.nanoTime();
+				for (int s = 0; s < SCANS; s++)
+					if (checkedScan() != NUMKEYS)
+						fail("scan found the wrong number of entries", null);
+				long micros = (System.nanoTime() - start) / 1000 / SCANS;
+				String pages = (i == 0) ? "-" : String.valueOf(
+						(((ChannelDB) db).getReads() - reads) / SCANS);
+				System.out.println("  " + names[i] + "\t" + (micros / 1000.0)
+						+ "\t\t" + pages);
+			}
+			useDB(new DB());
+			BTreeFile file = new BTreeFile(FILE);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class ChannelDBTest {
+
+	public static void main(String argv[]) {
+		ChannelDBDriver driver = new ChannelDBDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during ChannelDB tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
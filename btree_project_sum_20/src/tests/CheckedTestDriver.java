@@ -0,0 +1,44 @@
+package tests;
+
+import global.*;
+import bufmgr.*;
+
+/**
+ * A TestDriver whose tests make many checks each: a check that fails is
+ * reported with fail and marks the test failed, and the test goes on with
+ * the next one. Timed loops in these tests run twice and report the second
+ * pass; the first warms up the JIT and the buffer pool.
+ */
+abstract class CheckedTestDriver extends TestDriver {
+
+	/** Cleared at the start of each test, set by fail from any thread. */
+	protected volatile boolean failed;
+
+	protected CheckedTestDriver(String nameRoot) {
+		super(nameRoot);
+	}
+
+	/**
+	 * Report a failed check and mark the test failed.
+	 *
+	 * @param msg
+	 *            what went wrong. Input parameter.
+	 * @param e
+	 *            the exception thrown, or null. Input parameter.
+	 */
+	protected void fail(String msg, Exception e) {
+		System.err.println("*** " + msg);
+		if (e != null)
+			e.printStackTrace();
+		failed = true;
+	}
+
+	/**
+	 * @return the pins made so far on SystemDefs.JavabaseBM, which must be
+	 *         a ConcurrentBufMgr: its hits and misses
+	 */
+	protected static long pins() {
+		ConcurrentBufMgr bm = (ConcurrentBufMgr) SystemDefs.JavabaseBM;
+		return bm.getHits() + bm.getMisses();
+	}
+}
@@ -0,0 +1,178 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Tests for BTreeCompactor: a tree thinned out by naive deletes is
+ * compacted one step at a time with lookups, inserts and deletes in
+ * between, and afterwards holds the right entries in far fewer pages; a
+ * compacted tree of duplicate string keys keeps working as usual. The size
+ * of a tree is measured as the pages a full scan pins.
+ */
+class CompactionDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 500;
+	private static final int NUMKEYS = 50000;
+
+	public CompactionDriver() {
+		super("compactiontest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, NUMBUF, "Clock");
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Compaction";
+	}
+
+	/*
+	 * Scan the whole tree, checking it holds exactly the keys in live, in
+	 * order. Returns the number of pages the scan pinned.
+	 */
+	private long checkScan(BTreeFile file, SortedSet<Integer> live)
+			throws Exception {
+		long start = pins();
+		BTFileScan scan = file.new_scan(null, null);
+		Iterator<Integer> expected = live.iterator();
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			int key = ((IntegerKey) entry.key).getKey().intValue();
+			if (!expected.hasNext()) {
+				fail("key " + key + " found past the end", null);
+				break;
+			}
+			int want = expected.next();
+			if (key != want) {
+				fail("key " + key + " found, expected " + want, null);
+				break;
+			}
+		}
+		scan.DestroyBTreeFileScan();
+		if (!failed && expected.hasNext())
+			fail("scan stops before " + expected.next(), null);
+		return pins() - start;
+	}
+
+	private boolean found(BTreeFile file, KeyClass key) throws Exception {
+		BTFileScan scan = file.new_scan(key, key);
+		boolean found = scan.get_next() != null;
+		scan.DestroyBTreeFileScan();
+		return found;
+	}
+
+	/**
+	 * Insert NUMKEYS keys in random order and delete nine in ten with
+	 * naive deletes. Compact one step at a time, looking up, inserting and
+	 * deleting keys between steps. The tree must hold the right keys, and a
+	 * full scan must pin a fraction of the pages it did before.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: online compaction after naive deletes\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile("COMPACT", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int key = 0; key < NUMKEYS; key++)
+				keys.add(key);
+			Collections.shuffle(keys, new Random(15));
+			for (int key : keys)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+			SortedSet<Integer> live = new TreeSet<Integer>();
+			for (int key : keys) {
+				if (key % 10 == 0)
+					live.add(key);
+				else
+					file.Delete(new IntegerKey(key), new RID(new PageId(key), 0));
+			}
+			long before = checkScan(file, live);
+
+			BTreeCompactor compactor = new BTreeCompactor(file, 0.9);
+			Random random = new Random(16);
+			int steps = 0;
+			while (!compactor.step(1) && !failed) {
+				steps++;
+				int key = 10 * random.nextInt(NUMKEYS / 10);
+				if (found(file, new IntegerKey(key)) != live.contains(key))
+					fail("lookup of " + key + " is wrong between steps", null);
+				int added = NUMKEYS + steps;
+				file.insert(new IntegerKey(added), new RID(new PageId(added), 0));
+				live.add(added);
+				int gone = live.first();
+				file.Delete(new IntegerKey(gone), new RID(new PageId(gone), 0));
+				live.remove(gone);
+			}
+			long after = checkScan(file, live);
+			System.out.println("  " + steps + " steps, " + compactor.getPagesReclaimed()
+					+ " pages reclaimed, height " + compactor.getHeight()
+					+ "; pages pinned by a full scan: " + before + " before, "
+					+ after + " after");
+			if (after * 4 > before)
+				fail("compaction left too many pages", null);
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * String keys with many duplicates, thinned out and compacted in one
+	 * run; every remaining <key, rid> must then still be deletable.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: compacting duplicate string keys\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile("COMPACTDUPS", AttrType.attrString,
+					20, DeleteFashion.NAIVE_DELETE);
+			int count = NUMKEYS / 5;
+			for (int id = 0; id < count; id++)
+				file.insert(new StringKey("dup" + (id % 11)), new RID(new PageId(id), 0));
+			for (int id = 0; id < count; id++)
+				if (id % 4 != 0)
+					file.Delete(new StringKey("dup" + (id % 11)), new RID(new PageId(id), 0));
+
+			BTreeCompactor compactor = new BTreeCompactor(file, 0.7);
+			compactor.run();
+			if (compactor.getPagesReclaimed() == 0)
+				fail("no pages reclaimed", null);
+
+			for (int id = 0; id < count; id += 4)
+				if (!file.Delete(new StringKey("dup" + (id % 11)), new RID(new PageId(id), 0)))
+					fail("dup" + (id % 11) + " with rid " + id + " not found", null);
+			BTFileScan scan = file.new_scan(null, null);
+			if (scan.get_next() != null)
+				fail("entries left after deleting all", null);
+			scan.DestroyBTreeFileScan();
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class CompactionTest {
+
+	public static void main(String argv[]) {
+		CompactionDriver driver = new CompactionDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during compaction tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,289 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import diskmgr.*;
+import btree.*;
+
+/**
+ * Tests for ConcurrentBufMgr: page contents survive eviction under many
+ * threads with every replacement policy, pin/unpin throughput is compared
+ * with the serialized BufMgr as the number of threads grows, and the
+ * policies' hit ratios are compared for point lookups mixed with scans.
+ */
+class ConcurrentBMDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 200;
+	private static final int THREADS = 8;
+	private static final String[] POLICIES = { "Clock", "2Q", "LRU-2" };
+
+	public ConcurrentBMDriver() {
+		super("concbmtest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 10000, NUMBUF, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Concurrent buffer manager";
+	}
+
+	/*
+	 * Flush the current buffer manager and put bm in its place.
+	 */
+	private void useBM(BufMgr bm) throws Exception {
+		SystemDefs.JavabaseBM.flushAllPages();
+		SystemDefs.JavabaseBM = bm;
+	}
+
+	private void runAll(Runnable[] bodies) throws InterruptedException {
+		Thread[] threads = new Thread[bodies.length];
+		for (int i = 0; i < bodies.length; i++) {
+			threads[i] = new Thread(bodies[i]);
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+	}
+
+	/*
+	 * Allocate n pages, each stamped with its own page number.
+	 */
+	private int[] stampedPages(int n) throws Exception {
+		int[] pids = new int[n];
+		for (int i = 0; i < n; i++) {
+			Page page = new Page();
+			PageId pid = SystemDefs.JavabaseBM.newPage(page, 1);
+			Convert.setIntValue(pid.pid, 0, page.getpage());
+			Convert.setIntValue(pid.pid, MINIBASE_PAGESIZE - 4, page.getpage());
+			SystemDefs.JavabaseBM.unpinPage(pid, true);
+			pids[i] = pid.pid;
+		}
+		return pids;
+	}
+
+	/**
+	 * Many threads pin random pages out of three times as many pages as
+	 * frames, so most pins evict; every pinned page must carry its stamp.
+	 * Run once per replacement policy.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: page contents under concurrent eviction\n");
+		failed = false;
+		for (int i = 0; i < POLICIES.length && !failed; i++) {
+			System.out.println("  " + POLICIES[i]);
+			evictionTest(POLICIES[i]);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	private void evictionTest(String policy) {
+		try {
+			useBM(new ConcurrentBufMgr(NUMBUF, policy));
+			final int[] pids = stampedPages(3 * NUMBUF);
+
+			Runnable[] bodies = new Runnable[THREADS];
+			for (int t = 0; t < THREADS; t++) {
+				final int id = t;
+				bodies[t] = new Runnable() {
+					public void run() {
+						try {
+							Random random = new Random(id);
+							Page page = new Page();
+							for (int i = 0; i < 20000 && !failed; i++) {
+								PageId pid = new PageId(pids[random.nextInt(pids.length)]);
+								SystemDefs.JavabaseBM.pinPage(pid, page, false);
+								byte[] data = page.getpage();
+								if (Convert.getIntValue(0, data) != pid.pid
+										|| Convert.getIntValue(MINIBASE_PAGESIZE - 4, data) != pid.pid)
+									fail("page " + pid.pid + " has the wrong contents", null);
+								// Rewrite the stamp now and then so dirty
+								// pages get written back on eviction
+								boolean dirty = random.nextInt(4) == 0;
+								if (dirty)
+									Convert.setIntValue(pid.pid, 0, data);
+								SystemDefs.JavabaseBM.unpinPage(pid, dirty);
+							}
+						} catch (Exception e) {
+							fail("pin failed", e);
+						}
+					}
+				};
+			}
+			runAll(bodies);
+
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF)
+				fail("pages left pinned", null);
+			for (int i = 0; i < pids.length; i++)
+				SystemDefs.JavabaseBM.freePage(new PageId(pids[i]));
+		} catch (Exception e) {
+			fail("test 1 failed with " + policy, e);
+		}
+	}
+
+	/*
+	 * Pins per second with `threads' threads pinning pages that all fit in
+	 * the buffer pool. With serialize set, every call holds the buffer
+	 * manager's monitor, as BTreeFile does for the plain BufMgr.
+	 */
+	private long pinRate(final int[] pids, int threads, final boolean serialize)
+			throws InterruptedException {
+		final int pins = 200000;
+		Runnable[] bodies = new Runnable[threads];
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			bodies[t] = new Runnable() {
+				public void run() {
+					try {
+						Random random = new Random(id);
+						Page page = new Page();
+						BufMgr bm = SystemDefs.JavabaseBM;
+						for (int i = 0; i < pins; i++) {
+							PageId pid = new PageId(pids[random.nextInt(pids.length)]);
+							if (serialize) {
+								synchronized (bm) {
+									bm.pinPage(pid, page, false);
+									bm.unpinPage(pid, false);
+								}
+							} else {
+								bm.pinPage(pid, page, false);
+								bm.unpinPage(pid, false);
+							}
+						}
+					} catch (Exception e) {
+						fail("pin failed", e);
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		runAll(bodies);
+		long nanos = System.nanoTime() - start;
+		return (long) threads * pins * 1000000000L / Math.max(nanos, 1);
+	}
+
+	/**
+	 * Pin/unpin throughput for 1 to THREADS threads, BufMgr against
+	 * ConcurrentBufMgr. Only checks that every pin succeeds; the rates are
+	 * printed.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: pin/unpin throughput\n");
+		failed = false;
+		try {
+			BufMgr serial = new BufMgr(NUMBUF, "Clock");
+			useBM(serial);
+			int[] pids = stampedPages(NUMBUF / 2);
+			serial.flushAllPages();
+			BufMgr concurrent = new ConcurrentBufMgr(NUMBUF);
+
+			System.out.println("  threads    BufMgr pins/s    ConcurrentBufMgr pins/s");
+			for (int threads = 1; threads <= THREADS && !failed; threads *= 2) {
+				SystemDefs.JavabaseBM = serial;
+				long serialRate = pinRate(pids, threads, true);
+				SystemDefs.JavabaseBM = concurrent;
+				long concurrentRate = pinRate(pids, threads, false);
+				System.out.println("  " + threads + "\t\t" + serialRate + "\t\t"
+						+ concurrentRate);
+			}
+
+			SystemDefs.JavabaseBM = serial;
+			serial.flushAllPages();
+			for (int i = 0; i < pids.length; i++)
+				serial.freePage(new PageId(pids[i]));
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Point lookups, nine in ten on a hot tenth of the keys, interleaved
+	 * with full scans of a tree larger than the buffer pool, under each
+	 * replacement policy. Checks the lookups and scans; prints the hit ratio
+	 * of the lookups and of everything.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: hit ratios, lookups mixed with scans\n");
+		failed = false;
+		final int keys = 40000;
+		final int rounds = 10;
+		final int lookups = 2000;
+		try {
+			useBM(new ConcurrentBufMgr(NUMBUF));
+			BTreeFile file = new BTreeFile("POLICY", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			for (int key = 0; key < keys; key++)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+			file.close();
+
+			System.out.println("  policy     lookup hit ratio    overall hit ratio");
+			for (int i = 0; i < POLICIES.length && !failed; i++) {
+				ConcurrentBufMgr bm = new ConcurrentBufMgr(NUMBUF, POLICIES[i]);
+				useBM(bm);
+				file = new BTreeFile("POLICY");
+				Random random = new Random(1);
+				long lookupHits = 0;
+				long lookupMisses = 0;
+				for (int r = 0; r < rounds && !failed; r++) {
+					long hits = bm.getHits();
+					long misses = bm.getMisses();
+					for (int l = 0; l < lookups; l++) {
+						int key = (random.nextInt(10) != 0)
+								? random.nextInt(keys / 10) : random.nextInt(keys);
+						IntegerKey k = new IntegerKey(key);
+						BTFileScan scan = file.new_scan(k, k);
+						if (scan.get_next() == null)
+							fail("key " + key + " not found", null);
+						scan.DestroyBTreeFileScan();
+					}
+					lookupHits += bm.getHits() - hits;
+					lookupMisses += bm.getMisses() - misses;
+
+					BTFileScan scan = file.new_scan(null, null);
+					int count = 0;
+					while (scan.get_next() != null)
+						count++;
+					scan.DestroyBTreeFileScan();
+					if (count != keys)
+						fail("scan found " + count + " entries", null);
+				}
+				file.close();
+				System.out.println("  " + POLICIES[i] + "\t\t"
+						+ ratio(lookupHits, lookupMisses) + "\t\t"
+						+ ratio(bm.getHits(), bm.getMisses()));
+			}
+
+			file = new BTreeFile("POLICY");
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 3 failed", e);
+		}
+		System.out.println("  Test 3 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	private static String ratio(long hits, long misses) {
+		long total = Math.max(hits + misses, 1);
+		return String.valueOf(Math.round(1000.0 * hits / total) / 1000.0);
+	}
+}
+
+public class ConcurrentBMTest {
+
+	public static void main(String argv[]) {
+		ConcurrentBMDriver driver = new ConcurrentBMDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during concurrent buffer manager tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
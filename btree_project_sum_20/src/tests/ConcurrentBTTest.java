@@ -0,0 +1,294 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Stress tests for BTreeFile in concurrent mode: many threads insert, delete
+ * and scan one tree at the same time, then the tree is checked against what
+ * the threads did. The tests run over the serialized BufMgr or over a
+ * ConcurrentBufMgr.
+ */
+class ConcurrentBTDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int THREADS = 8;
+	private static final int KEYS_PER_THREAD = 4000;
+
+	private volatile boolean writing;
+	private int postfix = 0;
+	private boolean concurrentBM;
+
+	public ConcurrentBTDriver(boolean concurrentBM) {
+		super("concbttest");
+		this.concurrentBM = concurrentBM;
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 50000, 1000, "Clock");
+		if (concurrentBM) {
+			try {
+				ConcurrentBufMgr.install();
+			} catch (Exception e) {
+				e.printStackTrace();
+				return FAIL;
+			}
+		}
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Concurrent B+ tree"
+				+ (concurrentBM ? " (ConcurrentBufMgr)" : " (BufMgr)");
+	}
+
+	/*
+	 * Run the bodies in one thread each and wait for all of them.
+	 */
+	private void runAll(Runnable[] bodies) throws InterruptedException {
+		Thread[] threads = new Thread[bodies.length];
+		for (int i = 0; i < bodies.length; i++) {
+			threads[i] = new Thread(bodies[i]);
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+	}
+
+	/*
+	 * A scan over the whole tree that checks the keys come out in order.
+	 * Returns the number of entries seen.
+	 */
+	private int checkedScan(BTreeFile file) throws Exception {
+		BTFileScan scan = file.new_scan(null, null);
+		int count = 0;
+		int prev = Integer.MIN_VALUE;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			int key = ((IntegerKey) entry.key).getKey().intValue();
+			if (key < prev)
+				fail("scan out of order: " + key + " after " + prev, null);
+			prev = key;
+			count++;
+		}
+		scan.DestroyBTreeFileScan();
+		return count;
+	}
+
+	private boolean lookup(BTreeFile file, int key) throws Exception {
+		IntegerKey k = new IntegerKey(key);
+		BTFileScan scan = file.new_scan(k, k);
+		boolean found = scan.get_next() != null;
+		scan.DestroyBTreeFileScan();
+		return found;
+	}
+
+	/**
+	 * Concurrent inserts of disjoint keys while other threads scan.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: concurrent inserts with concurrent scans\n");
+		failed = false;
+		try {
+			final BTreeFile file = new BTreeFile("CONC" + postfix++,
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			file.setConcurrent(true);
+			writing = true;
+
+			Runnable[] bodies = new Runnable[THREADS + 2];
+			for (int t = 0; t < THREADS; t++) {
+				final int id = t;
+				bodies[t] = new Runnable() {
+					public void run() {
+						try {
+							// Interleaved keys, so threads meet on the same leaves
+							Random random = new Random(id);
+							int[] keys = new int[KEYS_PER_THREAD];
+							for (int i = 0; i < keys.length; i++)
+								keys[i] = i * THREADS + id;
+							for (int i = keys.length - 1; i > 0; i--) {
+								int j = random.nextInt(i + 1);
+								int tmp = keys[i];
+								keys[i] = keys[j];
+								keys[j] = tmp;
+							}
+							for (int i = 0; i < keys.length; i++)
+								file.insert(new IntegerKey(keys[i]), new RID(
+										new PageId(keys[i]), id));
+						} catch (Exception e) {
+							fail("insert failed", e);
+						}
+					}
+				};
+			}
+			for (int t = THREADS; t < bodies.length; t++) {
+				bodies[t] = new Runnable() {
+					public void run() {
+						try {
+							while (writing && !failed)
+								checkedScan(file);
+						} catch (Exception e) {
+							fail("scan failed", e);
+						}
+					}
+				};
+			}
+
+			Thread[] threads = new Thread[bodies.length];
+			for (int i = 0; i < bodies.length; i++) {
+				threads[i] = new Thread(bodies[i]);
+				threads[i].start();
+			}
+			for (int i = 0; i < THREADS; i++)
+				threads[i].join();
+			writing = false;
+			for (int i = THREADS; i < threads.length; i++)
+				threads[i].join();
+
+			int total = THREADS * KEYS_PER_THREAD;
+			int count = checkedScan(file);
+			if (count != total)
+				fail("scan found " + count + " entries, expected " + total, null);
+			for (int key = 0; key < total; key += 37)
+				if (!lookup(file, key))
+					fail("key " + key + " not found", null);
+
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Concurrent deletes, inserts and point lookups on one tree.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: concurrent inserts, deletes and lookups\n");
+		failed = false;
+		try {
+			final BTreeFile file = new BTreeFile("CONC" + postfix++,
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			file.setConcurrent(true);
+			final int total = THREADS * KEYS_PER_THREAD;
+			for (int key = 0; key < total; key++)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+
+			Runnable[] bodies = new Runnable[THREADS];
+			for (int t = 0; t < THREADS; t++) {
+				final int id = t;
+				bodies[t] = new Runnable() {
+					public void run() {
+						try {
+							for (int i = 0; i < KEYS_PER_THREAD; i++) {
+								int key = i * THREADS + id;
+								// Delete the even keys, add new keys above
+								// the old range, and look up the odd keys
+								if (key % 2 == 0) {
+									if (!file.Delete(new IntegerKey(key),
+											new RID(new PageId(key), 0)))
+										fail("key " + key + " not deleted", null);
+								} else if (!lookup(file, key)) {
+									fail("key " + key + " not found", null);
+								}
+								int newKey = total + key;
+								file.insert(new IntegerKey(newKey), new RID(
+										new PageId(newKey), 0));
+							}
+						} catch (Exception e) {
+							fail("worker failed", e);
+						}
+					}
+				};
+			}
+			runAll(bodies);
+
+			int count = 0;
+			BTFileScan scan = file.new_scan(null, null);
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null) {
+				int key = ((IntegerKey) entry.key).getKey().intValue();
+				if (key < total && key % 2 == 0)
+					fail("deleted key " + key + " still there", null);
+				count++;
+			}
+			scan.DestroyBTreeFileScan();
+			int expected = total / 2 + total;
+			if (count != expected)
+				fail("scan found " + count + " entries, expected " + expected,
+						null);
+
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Concurrent inserts of duplicate string keys.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: concurrent inserts of duplicate string keys\n");
+		failed = false;
+		try {
+			final BTreeFile file = new BTreeFile("CONC" + postfix++,
+					AttrType.attrString, 20, DeleteFashion.NAIVE_DELETE);
+			file.setConcurrent(true);
+			final int distinct = 100;
+
+			Runnable[] bodies = new Runnable[THREADS];
+			for (int t = 0; t < THREADS; t++) {
+				final int id = t;
+				bodies[t] = new Runnable() {
+					public void run() {
+						try {
+							for (int i = 0; i < KEYS_PER_THREAD / 4; i++)
+								file.insert(new StringKey("key" + (i % distinct)),
+										new RID(new PageId(id), i));
+						} catch (Exception e) {
+							fail("insert failed", e);
+						}
+					}
+				};
+			}
+			runAll(bodies);
+
+			for (int i = 0; i < distinct; i++) {
+				StringKey key = new StringKey("key" + i);
+				BTFileScan scan = file.new_scan(key, key);
+				int count = 0;
+				while (scan.get_next() != null)
+					count++;
+				scan.DestroyBTreeFileScan();
+				int expected = THREADS * (KEYS_PER_THREAD / 4) / distinct;
+				if (count != expected)
+					fail("key" + i + ": " + count + " entries, expected "
+							+ expected, null);
+			}
+
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 3 failed", e);
+		}
+		System.out.println("  Test 3 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class ConcurrentBTTest {
+
+	public static void main(String argv[]) {
+		boolean dbstatus = new ConcurrentBTDriver(false).runTests();
+		dbstatus = new ConcurrentBTDriver(true).runTests() && dbstatus;
+		if (dbstatus != true) {
+			System.err.println("Error encountered during concurrent B+ tree tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,218 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Tests for BTreeFile.deleteRange: a range deleted in one pass leaves the
+ * same entries as deleting its keys one at a time, with far fewer pins and
+ * in less time; emptied leaves are freed on request; and ranges of
+ * duplicate keys, open ends and empty ranges are handled.
+ */
+class DeleteRangeDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 500;
+	private static final int NUMKEYS = 50000;
+
+	public DeleteRangeDriver() {
+		super("deleterangetest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, NUMBUF, "Clock");
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Delete range";
+	}
+
+	private BTreeFile build(String name) throws Exception {
+		BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int key = 0; key < NUMKEYS; key++)
+			keys.add(key);
+		Collections.shuffle(keys, new Random(16));
+		for (int key : keys)
+			file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+		return file;
+	}
+
+	/*
+	 * Scan the whole tree, checking it holds exactly the integer keys
+	 * outside [lo, hi], in order. Returns the number of pages the scan
+	 * pinned.
+	 */
+	private long checkScan(BTreeFile file, int lo, int hi) throws Exception {
+		long start = pins();
+		BTFileScan scan = file.new_scan(null, null);
+		int expected = 0;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			if (expected == lo)
+				expected = hi + 1;
+			int key = ((IntegerKey) entry.key).getKey().intValue();
+			if (key != expected) {
+				fail("key " + key + " found, expected " + expected, null);
+				break;
+			}
+			expected++;
+		}
+		scan.DestroyBTreeFileScan();
+		if (expected == lo)
+			expected = hi + 1;
+		if (!failed && expected < NUMKEYS)
+			fail("scan stops before " + expected, null);
+		return pins() - start;
+	}
+
+	/**
+	 * Delete the middle half of the keys from one tree one key at a time
+	 * and from another with deleteRange. Both must be left with the same
+	 * keys; pins and time for the delete are printed, and deleteRange must
+	 * pin far fewer pages.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: deleteRange against one Delete per key\n");
+		failed = false;
+		int lo = NUMKEYS / 4;
+		int hi = lo + NUMKEYS / 2 - 1;
+		try {
+			BTreeFile loop = build("LOOP");
+			long pins = pins();
+			long start = System.nanoTime();
+			for (int key = lo; key <= hi; key++)
+				if (!loop.Delete(new IntegerKey(key), new RID(new PageId(key), 0)))
+					fail("key " + key + " not deleted", null);
+			long loopMillis = (System.nanoTime() - start) / 1000000;
+			long loopPins = pins() - pins;
+			checkScan(loop, lo, hi);
+			loop.destroyFile();
+
+			BTreeFile range = build("RANGE");
+			pins = pins();
+			start = System.nanoTime();
+			int deleted = range.deleteRange(new IntegerKey(lo), new IntegerKey(hi));
+			long rangeMillis = (System.nanoTime() - start) / 1000000;
+			long rangePins = pins() - pins;
+			if (deleted != hi - lo + 1)
+				fail(deleted + " entries deleted, expected " + (hi - lo + 1), null);
+			checkScan(range, lo, hi);
+			System.out.println("  deleting " + (hi - lo + 1) + " keys:");
+			System.out.println("  one Delete per key  " + loopPins + " pins, "
+					+ loopMillis + " ms");
+			System.out.println("  deleteRange         " + rangePins + " pins, "
+					+ rangeMillis + " ms");
+			if (rangePins * 10 > loopPins)
+				fail("deleteRange pinned too many pages", null);
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			range.destroyFile();
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Delete the same range with and without freeing emptied leaves: with
+	 * it, a full scan afterwards must pin only the leaves left, and the
+	 * tree must take the deleted keys back.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: freeing emptied leaves\n");
+		failed = false;
+		int lo = 1000;
+		int hi = NUMKEYS - 1000;
+		try {
+			BTreeFile kept = build("KEPT");
+			kept.deleteRange(new IntegerKey(lo), new IntegerKey(hi), false);
+			long keptPages = checkScan(kept, lo, hi);
+			kept.destroyFile();
+
+			BTreeFile freed = build("FREED");
+			freed.deleteRange(new IntegerKey(lo), new IntegerKey(hi), true);
+			long freedPages = checkScan(freed, lo, hi);
+			System.out.println("  pages pinned by a full scan: leaves kept "
+					+ keptPages + ", leaves freed " + freedPages);
+			if (freedPages * 10 > keptPages)
+				fail("emptied leaves not freed", null);
+
+			for (int key = lo; key <= hi; key++)
+				freed.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+			checkScan(freed, 0, -1);
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			freed.destroyFile();
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * String keys with runs of duplicates spanning several leaves: a range
+	 * that ends inside the runs, an empty range, an inverted range and
+	 * open-ended ranges, down to an empty tree.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: duplicates and open ranges\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile("DUPS", AttrType.attrString, 20,
+					DeleteFashion.NAIVE_DELETE);
+			int run = NUMKEYS / 45;
+			for (int id = 0; id < 9 * run; id++)
+				file.insert(new StringKey("dup" + (id % 9)), new RID(new PageId(id), 0));
+
+			int[] expected = { 3 * run, 0, 0, run, 2 * run, 3 * run };
+			int[] deleted = new int[expected.length];
+			deleted[0] = file.deleteRange(new StringKey("dup2"),
+					new StringKey("dup4"), true);
+			deleted[1] = file.deleteRange(new StringKey("dup3"),
+					new StringKey("dup3z"), true);
+			deleted[2] = file.deleteRange(new StringKey("dup8"),
+					new StringKey("dup1"), true);
+			deleted[3] = file.deleteRange(null, new StringKey("dup0"), true);
+			deleted[4] = file.deleteRange(new StringKey("dup7"), null, true);
+			deleted[5] = file.deleteRange(null, null, true);
+			for (int i = 0; i < expected.length; i++)
+				if (deleted[i] != expected[i])
+					fail("range " + (i + 1) + " deleted " + deleted[i]
+							+ " entries, expected " + expected[i], null);
+
+			BTFileScan scan = file.new_scan(null, null);
+			if (scan.get_next() != null)
+				fail("entries left after deleting all", null);
+			scan.DestroyBTreeFileScan();
+			file.insert(new StringKey("dup0"), new RID(new PageId(0), 0));
+			if (file.deleteRange(null, null) != 1)
+				fail("empty tree does not take inserts", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 3 failed", e);
+		}
+		System.out.println("  Test 3 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class DeleteRangeTest {
+
+	public static void main(String argv[]) {
+		DeleteRangeDriver driver = new DeleteRangeDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during delete range tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,190 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Tests for full delete: after heavy deletes a tree built with
+ * DeleteFashion.FULL_DELETE still holds the right entries and shrinks with
+ * them, deleting everything leaves an empty tree that takes inserts again,
+ * and duplicates spread over many leaves are deleted one rid at a time.
+ * The size of a tree is measured as the pages a full scan pins.
+ */
+class FullDeleteDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 500;
+	private static final int NUMKEYS = 50000;
+
+	public FullDeleteDriver() {
+		super("fulldeletetest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, NUMBUF, "Clock");
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Full delete";
+	}
+
+	/*
+	 * Scan the whole tree, checking it holds exactly the integer keys with
+	 * live[key] set, in order. Returns the number of pages the scan pinned.
+	 */
+	private long checkScan(BTreeFile file, boolean[] live) throws Exception {
+		long start = pins();
+		BTFileScan scan = file.new_scan(null, null);
+		int expected = 0;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			while (expected < live.length && !live[expected])
+				expected++;
+			int key = ((IntegerKey) entry.key).getKey().intValue();
+			if (key != expected) {
+				fail("key " + key + " found, expected " + expected, null);
+				break;
+			}
+			expected++;
+		}
+		scan.DestroyBTreeFileScan();
+		while (expected < live.length && !live[expected])
+			expected++;
+		if (expected != live.length)
+			fail("scan stops before " + expected, null);
+		return pins() - start;
+	}
+
+	private BTreeFile churn(String name, int deleteFashion, boolean[] live,
+			int keep) throws Exception {
+		BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4,
+				deleteFashion);
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int key = 0; key < NUMKEYS; key++)
+			keys.add(key);
+		Collections.shuffle(keys, new Random(14));
+		for (int key : keys)
+			file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+		Arrays.fill(live, true);
+		for (int key : keys) {
+			if (key % keep == 0)
+				continue;
+			if (!file.Delete(new IntegerKey(key), new RID(new PageId(key), 0)))
+				fail(name + ": key " + key + " not deleted", null);
+			live[key] = false;
+		}
+		return file;
+	}
+
+	/**
+	 * Insert NUMKEYS keys in random order and delete all but every
+	 * twentieth, once with naive and once with full delete. Both trees must
+	 * hold the same keys; a scan of the fully deleted one must pin far
+	 * fewer pages.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: the tree shrinks with its entries\n");
+		failed = false;
+		try {
+			boolean[] live = new boolean[NUMKEYS];
+			BTreeFile naive = churn("NAIVE", DeleteFashion.NAIVE_DELETE, live, 20);
+			long naivePages = checkScan(naive, live);
+			naive.destroyFile();
+
+			BTreeFile full = churn("FULL", DeleteFashion.FULL_DELETE, live, 20);
+			long fullPages = checkScan(full, live);
+			System.out.println("  pages pinned by a full scan: naive delete "
+					+ naivePages + ", full delete " + fullPages);
+			if (fullPages * 4 > naivePages)
+				fail("full delete left too many pages", null);
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			full.close();
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Delete every key left from test 1: the tree must end up empty, with
+	 * nothing to scan, and take inserts again.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: deleting everything empties the tree\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile("FULL");
+			boolean[] live = new boolean[NUMKEYS];
+			for (int key = 0; key < NUMKEYS; key += 20)
+				if (!file.Delete(new IntegerKey(key), new RID(new PageId(key), 0)))
+					fail("key " + key + " not deleted", null);
+			if (checkScan(file, live) != 0)
+				fail("a scan of the empty tree pinned pages", null);
+
+			for (int key = 0; key < NUMKEYS; key += 3) {
+				file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+				live[key] = true;
+			}
+			checkScan(file, live);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * A few string keys with thousands of duplicates each, so every run
+	 * spans many leaves and index entries. Each <key, rid> is deleted in
+	 * random order; every delete must find its own rid, and afterwards
+	 * the tree must be empty.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: duplicates across many leaves\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile("DUPS", AttrType.attrString, 20,
+					DeleteFashion.FULL_DELETE);
+			List<Integer> ids = new ArrayList<Integer>();
+			for (int id = 0; id < NUMKEYS / 5; id++)
+				ids.add(id);
+			Collections.shuffle(ids, new Random(3));
+			for (int id : ids)
+				file.insert(new StringKey("dup" + (id % 7)), new RID(new PageId(id), 0));
+			Collections.shuffle(ids, new Random(4));
+			for (int id : ids)
+				if (!file.Delete(new StringKey("dup" + (id % 7)), new RID(new PageId(id), 0)))
+					fail("dup" + (id % 7) + " with rid " + id + " not deleted", null);
+
+			BTFileScan scan = file.new_scan(null, null);
+			if (scan.get_next() != null)
+				fail("entries left after deleting all", null);
+			scan.DestroyBTreeFileScan();
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 3 failed", e);
+		}
+		System.out.println("  Test 3 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class FullDeleteTest {
+
+	public static void main(String argv[]) {
+		FullDeleteDriver driver = new FullDeleteDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during full delete tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,217 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Tests for IntBTreeFile: keys repeated across many leaf and index splits
+ * must come back sorted from a full scan, each equality scan must return
+ * every entry of its key, and deleted entries must be gone from both while
+ * the others stay.
+ */
+class IntBTreeDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 200;
+	private static final int NUMKEYS = 60000;
+
+	public IntBTreeDriver() {
+		super("intbtreetest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, NUMBUF, "Clock");
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "IntBTreeFile";
+	}
+
+	/*
+	 * Insert NUMKEYS entries with keys drawn from [0, distinct), entry i
+	 * with rid (i, key); counts[key] gets the number of entries of each key.
+	 */
+	private static IntBTreeFile build(String name, int distinct, int[] counts,
+			long seed) throws Exception {
+		IntBTreeFile file = new IntBTreeFile(name);
+		Random random = new Random(seed);
+		for (int i = 0; i < NUMKEYS; i++) {
+			int key = random.nextInt(distinct);
+			file.insert(key, new RID(new PageId(i), key));
+			counts[key]++;
+		}
+		return file;
+	}
+
+	/*
+	 * Scan the whole file: it must be sorted, hold counts[key] entries of
+	 * each key, and every entry's rid must carry its key.
+	 */
+	private void checkFullScan(IntBTreeFile file, int[] counts) throws Exception {
+		int[] seen = new int[counts.length];
+		int last = Integer.MIN_VALUE;
+		int total = 0;
+		IntBTFileScan scan = file.new_scan(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		while (scan.next()) {
+			if (scan.key() < last) {
+				fail("full scan went from " + last + " to " + scan.key(), null);
+				break;
+			}
+			if (scan.ridSlot() != scan.key()) {
+				fail("entry of key " + scan.key() + " has rid slot " + scan.ridSlot(), null);
+				break;
+			}
+			last = scan.key();
+			seen[last]++;
+			total++;
+		}
+		scan.DestroyIntBTreeFileScan();
+		int expected = 0;
+		for (int count : counts)
+			expected += count;
+		if (total != expected)
+			fail("full scan returned " + total + " of " + expected + " entries", null);
+		else if (!Arrays.equals(seen, counts))
+			fail("full scan returned the wrong number of some key", null);
+	}
+
+	/*
+	 * Scan each key on its own: the scan must return counts[key] entries,
+	 * all of that key.
+	 */
+	private void checkEqualityScans(IntBTreeFile file, int[] counts) throws Exception {
+		for (int key = 0; key < counts.length; key++) {
+			int n = 0;
+			IntBTFileScan scan = file.new_scan(key, key);
+			while (scan.next()) {
+				if (scan.key() != key) {
+					fail("scan of " + key + " returned " + scan.key(), null);
+					break;
+				}
+				n++;
+			}
+			scan.DestroyIntBTreeFileScan();
+			if (n != counts[key]) {
+				fail("scan of " + key + " returned " + n + " of " + counts[key]
+						+ " entries", null);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Many keys, each repeated tens of times: runs of duplicates span leaves
+	 * and separators repeat in the index.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: duplicates across leaf splits\n");
+		failed = false;
+		try {
+			int[] counts = new int[2000];
+			IntBTreeFile file = build("INTDUP", counts.length, counts, 5);
+			checkFullScan(file, counts);
+			checkEqualityScans(file, counts);
+			for (int key = 0; key < counts.length && !failed; key += 7) {
+				RID rid = file.lookup(key);
+				if ((rid == null) != (counts[key] == 0)
+						|| (rid != null && rid.slotNo != key))
+					fail("lookup of " + key + " returned " + rid, null);
+			}
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * A few keys, each repeated thousands of times: whole index pages hold
+	 * one separator, so each split child must get its separator next to
+	 * it and not after the run of equal ones.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: duplicates across index splits\n");
+		failed = false;
+		try {
+			int[] counts = new int[5];
+			IntBTreeFile file = build("INTRUNS", counts.length, counts, 6);
+			checkFullScan(file, counts);
+			checkEqualityScans(file, counts);
+			System.out.println("  " + NUMKEYS + " entries of " + counts.length
+					+ " keys: " + Arrays.toString(counts));
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Delete every third entry: each delete must find its entry once, the
+	 * scans must no longer return it, and a key with all its entries gone
+	 * must not be found.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: delete\n");
+		failed = false;
+		try {
+			int distinct = 500;
+			int[] counts = new int[distinct];
+			IntBTreeFile file = build("INTDEL", distinct, counts, 7);
+			Random random = new Random(7);
+			int deleted = 0;
+			for (int i = 0; i < NUMKEYS; i++) {
+				int key = random.nextInt(distinct);
+				if (i % 3 != 0 && key != 0)
+					continue;
+				if (!file.delete(key, new RID(new PageId(i), key))) {
+					fail("entry " + i + " of key " + key + " not deleted", null);
+					break;
+				}
+				if (file.delete(key, new RID(new PageId(i), key))) {
+					fail("entry " + i + " of key " + key + " deleted twice", null);
+					break;
+				}
+				counts[key]--;
+				deleted++;
+			}
+			System.out.println("  " + deleted + " of " + NUMKEYS + " entries deleted");
+			checkFullScan(file, counts);
+			checkEqualityScans(file, counts);
+			if (file.lookup(0) != null)
+				fail("deleted key 0 still found", null);
+			if (file.delete(distinct, new RID(new PageId(0), distinct)))
+				fail("deleted a key never inserted", null);
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 3 failed", e);
+		}
+		System.out.println("  Test 3 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class IntBTreeTest {
+
+	public static void main(String argv[]) {
+		IntBTreeDriver driver = new IntBTreeDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during IntBTreeFile tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,203 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Tests for BTreeFile.lookup and lookupAll: they find the same entries as
+ * an equality scan, for missing keys, single keys and runs of duplicates
+ * spanning leaves, with and without concurrent mode; and a benchmark of
+ * point lookups through lookup against the scan-based path.
+ */
+class LookupDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 500;
+	private static final int NUMKEYS = 100000;
+	private static final int LOOKUPS = 200000;
+	private static final int DUPS = 300;
+
+	private static final String FILE = "LOOKUP";
+
+	public LookupDriver() {
+		super("lookuptest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, NUMBUF, "Clock");
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Point lookup";
+	}
+
+	private static boolean deleted(int key) {
+		return key % 3 == 0;
+	}
+
+	private static int copies(int key) {
+		return (key % 1000 == 1) ? DUPS : 1;
+	}
+
+	/*
+	 * The rids of key, found with an equality scan.
+	 */
+	private static List<RID> scanFor(BTreeFile file, int key) throws Exception {
+		List<RID> rids = new ArrayList<RID>();
+		BTFileScan scan = file.new_scan(new IntegerKey(key), new IntegerKey(key));
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			rids.add(((LeafData) entry.data).getData());
+		scan.DestroyBTreeFileScan();
+		return rids;
+	}
+
+	/*
+	 * Check lookup and lookupAll of key against an equality scan, with an
+	 * array big enough and one too small for the run.
+	 */
+	private void check(BTreeFile file, int key) throws Exception {
+		List<RID> expected = scanFor(file, key);
+		RID rid = file.lookup(new IntegerKey(key));
+		if (expected.isEmpty() ? rid != null : !expected.get(0).equals(rid)) {
+			fail("lookup of " + key + " is wrong", null);
+			return;
+		}
+
+		RID[] out = new RID[expected.size() + 1];
+		int found = file.lookupAll(new IntegerKey(key), out);
+		if (found != expected.size()) {
+			fail("lookupAll of " + key + " found " + found + " entries, expected "
+					+ expected.size(), null);
+			return;
+		}
+		for (int i = 0; i < found; i++)
+			if (!expected.get(i).equals(out[i])) {
+				fail("lookupAll of " + key + " is wrong at " + i, null);
+				return;
+			}
+
+		RID[] small = new RID[expected.size() / 2];
+		if (file.lookupAll(new IntegerKey(key), small) != expected.size())
+			fail("lookupAll of " + key + " miscounts into a small array", null);
+		for (int i = 0; i < small.length; i++)
+			if (!expected.get(i).equals(small[i]))
+				fail("lookupAll of " + key + " is wrong at " + i
+						+ " in a small array", null);
+	}
+
+	/**
+	 * Insert the keys in random order, every thousandth DUPS times, and
+	 * delete one entry of every third key. Lookups of single keys, of the
+	 * duplicated ones and of keys past both ends must match equality scans,
+	 * before and after switching the file to concurrent mode.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: lookup and lookupAll against scans\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile(FILE, AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int key = 0; key < NUMKEYS; key++)
+				keys.add(key);
+			Collections.shuffle(keys, new Random(19));
+			for (int key : keys)
+				for (int i = 0; i < copies(key); i++)
+					file.insert(new IntegerKey(key), new RID(new PageId(key), i));
+			for (int key : keys)
+				if (deleted(key))
+					file.Delete(new IntegerKey(key), new RID(new PageId(key), 0));
+
+			for (int mode = 0; mode < 2 && !failed; mode++) {
+				file.setConcurrent(mode == 1);
+				Random random = new Random(mode);
+				for (int i = 0; i < 2000 && !failed; i++)
+					check(file, random.nextInt(NUMKEYS));
+				for (int key = 1; key < NUMKEYS && !failed; key += 1000)
+					check(file, key);
+				check(file, -1);
+				check(file, NUMKEYS);
+			}
+			file.setConcurrent(false);
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.close();
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Benchmark: random point lookups on the tree from test 1 through an
+	 * equality scan (new_scan, get_next, DestroyBTreeFileScan) and through
+	 * lookup. The pool holds the whole tree. Only checks the lookups and
+	 * that lookup pins no more pages; pins per lookup and throughput are
+	 * printed.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: point lookups, " + LOOKUPS + " per run\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile(FILE);
+			System.out.println("  path      pins/lookup    ns/lookup    lookups/s");
+			double[] depth = new double[2];
+			for (int path = 0; path < 2 && !failed; path++) {
+				Random random = new Random(path);
+				long pins = 0;
+				long start = 0;
+				for (int pass = 0; pass < 2; pass++) {
+					pins = pins();
+					start = System.nanoTime();
+					for (int i = 0; i < LOOKUPS; i++) {
+						int key = random.nextInt(NUMKEYS);
+						boolean found;
+						if (path == 0) {
+							BTFileScan scan = file.new_scan(new IntegerKey(key),
+									new IntegerKey(key));
+							found = scan.get_next() != null;
+							scan.DestroyBTreeFileScan();
+						} else {
+							found = file.lookup(new IntegerKey(key)) != null;
+						}
+						if (found != (copies(key) > 1 || !deleted(key))) {
+							fail("lookup of " + key + " is wrong", null);
+							break;
+						}
+					}
+				}
+				long nanos = System.nanoTime() - start;
+				depth[path] = (double) (pins() - pins) / LOOKUPS;
+				System.out.println("  " + (path == 0 ? "scan  " : "lookup") + "    "
+						+ depth[path] + "\t   " + nanos / LOOKUPS + "\t\t"
+						+ (long) (LOOKUPS * 1e9 / nanos));
+			}
+			if (depth[1] > depth[0])
+				fail("lookup pinned more pages than a scan", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class LookupTest {
+
+	public static void main(String argv[]) {
+		LookupDriver driver = new LookupDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during point lookup tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
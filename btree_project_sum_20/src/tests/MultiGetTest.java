@@ -0,0 +1,186 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Tests for BTreeFile.multiGet: batches of keys in random order, with
+ * repeats, missing keys and duplicates in the tree, find what lookup finds
+ * key by key, for integer and string keys and in concurrent mode; and
+ * batches of growing size are timed and their pins counted against one
+ * lookup per key.
+ */
+class MultiGetDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 500;
+	private static final int NUMKEYS = 100000;
+
+	private static final String FILE = "MULTIGET";
+
+	public MultiGetDriver() {
+		super("multigettest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, NUMBUF, "Clock");
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Multi-get";
+	}
+
+	private static KeyClass key(boolean string, int key) {
+		return string ? new StringKey("key" + key) : new IntegerKey(key);
+	}
+
+	/*
+	 * Insert every other key in [0, NUMKEYS) in random order, some of them
+	 * several times, and delete a few.
+	 */
+	private BTreeFile build(String name, boolean string) throws Exception {
+		BTreeFile file = new BTreeFile(name, string ? AttrType.attrString
+				: AttrType.attrInteger, string ? 16 : 4,
+				DeleteFashion.NAIVE_DELETE);
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int key = 0; key < NUMKEYS; key += 2)
+			keys.add(key);
+		Collections.shuffle(keys, new Random(20));
+		for (int key : keys) {
+			int copies = (key % 500 == 0) ? 50 : 1;
+			for (int i = 0; i < copies; i++)
+				file.insert(key(string, key), new RID(new PageId(key), i));
+			if (key % 7 == 0)
+				file.Delete(key(string, key), new RID(new PageId(key), 0));
+		}
+		return file;
+	}
+
+	/*
+	 * Check multiGet of a batch against lookup of each key.
+	 */
+	private void check(BTreeFile file, KeyClass[] keys) throws Exception {
+		RID[] out = new RID[keys.length];
+		int found = file.multiGet(keys, out);
+		int expected = 0;
+		for (int i = 0; i < keys.length; i++) {
+			RID rid = file.lookup(keys[i]);
+			if (rid == null ? out[i] != null : !rid.equals(out[i])) {
+				fail("multiGet of " + keys[i] + " is wrong", null);
+				return;
+			}
+			if (rid != null)
+				expected++;
+		}
+		if (found != expected)
+			fail("multiGet found " + found + " keys, expected " + expected, null);
+	}
+
+	/**
+	 * Random batches, some spread over all keys and some clustered, on an
+	 * integer and a string key tree, and on the integer one in concurrent
+	 * mode, including keys past both ends and an empty batch.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: multiGet against lookup\n");
+		failed = false;
+		try {
+			String[] names = { FILE, "STRINGS", "CONCURRENT" };
+			for (int t = 0; t < 3 && !failed; t++) {
+				boolean string = (t == 1);
+				BTreeFile file = build(names[t], string);
+				file.setConcurrent(t == 2);
+				Random random = new Random(t);
+				for (int n = 0; n < 100 && !failed; n++) {
+					KeyClass[] keys = new KeyClass[1 + random.nextInt(500)];
+					int base = random.nextInt(NUMKEYS);
+					for (int i = 0; i < keys.length; i++)
+						keys[i] = key(string, (n % 2 == 0)
+								? random.nextInt(NUMKEYS + 20) - 10
+								: base + random.nextInt(200));
+					check(file, keys);
+				}
+				check(file, new KeyClass[0]);
+				file.setConcurrent(false);
+				if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+					fail("pages left pinned", null);
+				if (t == 0)
+					file.close();
+				else
+					file.destroyFile();
+			}
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Batches of 10 to 100000 random keys on the integer tree from test 1,
+	 * through multiGet and through one lookup per key. The pool holds the
+	 * whole tree. Checks that multiGet pins fewer pages for batches of
+	 * 1000 and more; pins per key and times are printed.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: batches against one lookup per key\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile(FILE);
+			System.out.println("  batch     lookup pins/key    ns/key    multiGet pins/key    ns/key");
+			for (int size = 10; size <= 100000 && !failed; size *= 10) {
+				Random random = new Random(size);
+				KeyClass[] keys = new KeyClass[size];
+				for (int i = 0; i < size; i++)
+					keys[i] = new IntegerKey(random.nextInt(NUMKEYS));
+				RID[] out = new RID[size];
+				int runs = 1000000 / size;
+				long[] pins = new long[2];
+				long[] nanos = new long[2];
+				for (int pass = 0; pass < 2; pass++) {
+					for (int path = 0; path < 2; path++) {
+						pins[path] = pins();
+						nanos[path] = System.nanoTime();
+						for (int run = 0; run < runs; run++) {
+							if (path == 0)
+								for (int i = 0; i < size; i++)
+									out[i] = file.lookup(keys[i]);
+							else
+								file.multiGet(keys, out);
+						}
+						nanos[path] = System.nanoTime() - nanos[path];
+						pins[path] = pins() - pins[path];
+					}
+				}
+				double keysRead = (double) runs * size;
+				System.out.println("  " + size + "\t\t" + pins[0] / keysRead + "\t   "
+						+ (long) (nanos[0] / keysRead) + "\t\t" + pins[1] / keysRead
+						+ "\t   " + (long) (nanos[1] / keysRead));
+				if (size >= 1000 && pins[1] >= pins[0])
+					fail("multiGet pinned as many pages as lookups", null);
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class MultiGetTest {
+
+	public static void main(String argv[]) {
+		MultiGetDriver driver = new MultiGetDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during multi-get tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,224 @@
+package tests;
+
+import java.io.*;
+import java.util.concurrent.locks.*;
+
+import global.*;
+import bufmgr.*;
+import diskmgr.*;
+import btree.*;
+
+/**
+ * A ChannelDB that waits a fixed time in every page read, standing in for
+ * a disk that is not in the operating system's cache.
+ */
+class SlowDB extends ChannelDB {
+
+	private final long latencyNanos;
+
+	SlowDB(long latencyNanos) {
+		super(false);
+		this.latencyNanos = latencyNanos;
+	}
+
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		LockSupport.parkNanos(latencyNanos);
+		super.read_page(pageno, apage);
+	}
+}
+
+/**
+ * Tests for range scans with leaf read-ahead: with a plain BufMgr they are
+ * plain scans; with a ConcurrentBufMgr they return the same entries as
+ * plain scans and leave nothing pinned; and cold scans over a slow disk
+ * are timed with different read-ahead distances.
+ */
+class ReadAheadDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 100;
+	private static final int NUMKEYS = 60000;
+	private static final int RANGE = 15000;
+	private static final long LATENCY_NANOS = 200000;
+
+	private BTreeFile file;
+	// Keeps the busy work from being optimized away
+	private long sink;
+
+	public ReadAheadDriver() {
+		super("readaheadtest");
+	}
+
+	/*
+	 * The database is reopened by name in test 3, so it gets a name of its
+	 * own: runTests removes dbpath without waiting.
+	 */
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath + "-readahead", 20000, NUMBUF, "Clock");
+		boolean pass = super.runAllTests();
+		try {
+			SystemDefs.JavabaseDB.DBDestroy();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return pass;
+	}
+
+	protected String testName() {
+		return "Read-ahead scan";
+	}
+
+	/*
+	 * Scan [lo, hi] with the given read-ahead, checking every key is there
+	 * in order. `work' iterations of busy work per entry stand in for the
+	 * caller's processing.
+	 */
+	private int checkedScan(int lo, int hi, int readAhead, int work)
+			throws Exception {
+		BTFileScan scan = file.new_scan(new IntegerKey(lo), new IntegerKey(hi),
+				readAhead);
+		if (readAhead > 0 && (scan.getClass() == BTFileScan.class)
+				!= !(SystemDefs.JavabaseBM instanceof ConcurrentBufMgr))
+			fail("read-ahead " + readAhead + " with "
+					+ SystemDefs.JavabaseBM.getClass().getSimpleName()
+					+ " gave a " + scan.getClass().getSimpleName(), null);
+		int expected = lo;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			int key = ((IntegerKey) entry.key).getKey().intValue();
+			if (key != expected) {
+				fail("key " + key + " found, expected " + expected, null);
+				break;
+			}
+			for (int i = 0; i < work; i++)
+				sink += i ^ key;
+			expected++;
+		}
+		scan.DestroyBTreeFileScan();
+		return expected - lo;
+	}
+
+	/*
+	 * Scan a few ranges with a few read-ahead distances: each must return
+	 * its keys, in order.
+	 */
+	private void checkRanges() throws Exception {
+		int[][] ranges = { { 0, NUMKEYS - 1 }, { 100, 200 },
+				{ 12345, 40000 }, { NUMKEYS - 10, NUMKEYS - 1 } };
+		int[] distances = { 0, 1, 8, 64 };
+		for (int r = 0; r < ranges.length; r++) {
+			int lo = ranges[r][0];
+			int hi = ranges[r][1];
+			for (int d = 0; d < distances.length; d++) {
+				int count = checkedScan(lo, hi, distances[d], 0);
+				if (count != hi - lo + 1)
+					fail("range [" + lo + ", " + hi + "] with read-ahead "
+							+ distances[d] + ": " + count + " entries", null);
+			}
+		}
+	}
+
+	/**
+	 * With the plain BufMgr from SystemDefs, which is not thread-safe, a
+	 * scan asked to read ahead is a plain scan and returns the same keys.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: no read-ahead with a plain BufMgr\n");
+		failed = false;
+		try {
+			file = new BTreeFile("READAHEAD", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			for (int key = 0; key < NUMKEYS; key++)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+			checkRanges();
+			// The header page stays pinned while the file is open
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.close();
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * With a ConcurrentBufMgr, ranges scanned with and without read-ahead
+	 * return the same keys, and leave every frame unpinned, also after the
+	 * read-ahead threads are stopped.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: read-ahead scans return the same entries\n");
+		failed = false;
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+			file = new BTreeFile("READAHEAD");
+			checkRanges();
+			BTreeFile.stopReadAhead();
+			checkRanges();
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.close();
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Cold range scans over a disk with LATENCY_NANOS per read and a
+	 * ConcurrentBufMgr, with no read-ahead and with a few distances. Each
+	 * scan covers a different range, so its leaves are not in the pool.
+	 * Only checks the scans; the times are printed.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: cold range scans, "
+				+ (LATENCY_NANOS / 1000) + " us per read\n");
+		failed = false;
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+			DB db = new SlowDB(LATENCY_NANOS);
+			db.openDB(SystemDefs.JavabaseDB.db_name());
+			SystemDefs.JavabaseDB.closeDB();
+			SystemDefs.JavabaseDB = db;
+			SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+			file = new BTreeFile("READAHEAD");
+
+			int[] distances = { 0, 2, 8, 32 };
+			System.out.println("  read-ahead    ms/scan (no work)    ms/scan (work per entry)");
+			for (int d = 0; d < distances.length && !failed; d++) {
+				StringBuffer line = new StringBuffer("  " + distances[d] + "\t\t");
+				for (int work = 0; work <= 2000; work += 2000) {
+					long start = System.nanoTime();
+					for (int lo = 0; lo + RANGE <= NUMKEYS; lo += RANGE)
+						if (checkedScan(lo, lo + RANGE - 1, distances[d], work) != RANGE)
+							fail("scan found the wrong number of entries", null);
+					long micros = (System.nanoTime() - start) / 1000
+							/ (NUMKEYS / RANGE);
+					line.append((micros / 1000.0) + "\t\t\t");
+				}
+				System.out.println(line);
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 3 failed", e);
+		}
+		System.out.println("  Test 3 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class ReadAheadTest {
+
+	public static void main(String argv[]) {
+		ReadAheadDriver driver = new ReadAheadDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during read-ahead scan tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
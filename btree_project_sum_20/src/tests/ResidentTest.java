@@ -0,0 +1,170 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Tests for resident mode: a tree built and shrunk with its upper index
+ * levels kept pinned holds the same entries as one built without, the
+ * resident pages are all unpinned on close, and point lookups are timed
+ * and their buffer manager pins counted with 0 to 3 resident levels.
+ */
+class ResidentDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 500;
+	private static final int NUMKEYS = 100000;
+	private static final int LOOKUPS = 200000;
+
+	private static final String FILE = "RESIDENT";
+
+	public ResidentDriver() {
+		super("residenttest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, NUMBUF, "Clock");
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Resident index levels";
+	}
+
+	private static boolean deleted(int key) {
+		return key % 3 == 0;
+	}
+
+	/*
+	 * Scan [lo, hi], checking it holds exactly the keys not deleted.
+	 */
+	private void checkRange(BTreeFile file, int lo, int hi) throws Exception {
+		BTFileScan scan = file.new_scan(new IntegerKey(lo), new IntegerKey(hi));
+		int expected = lo;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			while (deleted(expected))
+				expected++;
+			int key = ((IntegerKey) entry.key).getKey().intValue();
+			if (key != expected) {
+				fail("key " + key + " found, expected " + expected, null);
+				break;
+			}
+			expected++;
+		}
+		while (expected <= hi && deleted(expected))
+			expected++;
+		if (expected <= hi)
+			fail("range [" + lo + ", " + hi + "] stops before " + expected, null);
+		scan.DestroyBTreeFileScan();
+	}
+
+	/**
+	 * Insert the keys in random order and delete a third of them with two
+	 * levels resident, so the root and the level below it split and change
+	 * while pinned. Scans must find the right keys before and after the
+	 * file is closed and reopened without resident mode.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: inserts and deletes with resident levels\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile(FILE, AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			file.setResidentLevels(2);
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int key = 0; key < NUMKEYS; key++)
+				keys.add(key);
+			Collections.shuffle(keys, new Random(12));
+			for (int key : keys)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+			for (int key : keys)
+				if (deleted(key)
+						&& !file.Delete(new IntegerKey(key), new RID(new PageId(key), 0)))
+					fail("key " + key + " not deleted", null);
+
+			checkRange(file, 0, NUMKEYS - 1);
+			checkRange(file, 5000, 5100);
+			int resident = file.getResidentPages();
+			if (resident < 2)
+				fail("only " + resident + " pages resident", null);
+			// The header page and the resident pages stay pinned
+			int pinned = NUMBUF - SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			if (pinned != 1 + resident)
+				fail(pinned + " pages pinned, expected " + (1 + resident), null);
+			file.close();
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF)
+				fail("pages left pinned after close", null);
+
+			file = new BTreeFile(FILE);
+			checkRange(file, 0, NUMKEYS - 1);
+			file.close();
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Random point lookups on the tree from test 1, with 0 to 3 index
+	 * levels resident. The pool holds the whole tree, so every pin is a
+	 * hit and the difference is the cost of the pins themselves. Only
+	 * checks the lookups; pins per lookup and times are printed.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: point lookups, " + LOOKUPS + " per run\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile(FILE);
+			System.out.println("  levels    resident pages    pins/lookup    ns/lookup");
+			for (int levels = 0; levels <= 3 && !failed; levels++) {
+				file.setResidentLevels(levels);
+				Random random = new Random(levels);
+				long pins = 0;
+				long start = 0;
+				for (int pass = 0; pass < 2; pass++) {
+					pins = pins();
+					start = System.nanoTime();
+					for (int i = 0; i < LOOKUPS; i++) {
+						int key = random.nextInt(NUMKEYS);
+						BTFileScan scan = file.new_scan(new IntegerKey(key),
+								new IntegerKey(key));
+						KeyDataEntry entry = scan.get_next();
+						scan.DestroyBTreeFileScan();
+						if ((entry != null) == deleted(key)) {
+							fail("lookup of " + key + " is wrong", null);
+							break;
+						}
+					}
+				}
+				long nanos = (System.nanoTime() - start) / LOOKUPS;
+				double perLookup = (double) (pins() - pins) / LOOKUPS;
+				System.out.println("  " + levels + "\t    " + file.getResidentPages()
+						+ "\t\t      " + perLookup + "\t     " + nanos);
+			}
+			file.setResidentLevels(0);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class ResidentTest {
+
+	public static void main(String argv[]) {
+		ResidentDriver driver = new ResidentDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during resident level tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,251 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Tests for descending scans: they return the same entries as ascending
+ * scans, in reverse, over trees with duplicates and empty leaves; a query
+ * for the last N entries of a range reads only the leaves those entries are
+ * on; and in concurrent mode they stay in order while other threads split
+ * leaves.
+ */
+class ReverseScanDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 500;
+	private static final int NUMKEYS = 50000;
+	private static final TupleOrder DESC = new TupleOrder(TupleOrder.Descending);
+
+	private volatile boolean writing;
+
+	public ReverseScanDriver() {
+		super("reversescantest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, NUMBUF, "Clock");
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Reverse scan";
+	}
+
+	private static IntegerKey key(Integer key) {
+		return (key == null) ? null : new IntegerKey(key);
+	}
+
+	/*
+	 * Up to limit entries of a scan, as "key:rid page" strings.
+	 */
+	private static List<String> read(BTFileScan scan, int limit)
+			throws Exception {
+		List<String> out = new ArrayList<String>();
+		KeyDataEntry entry;
+		while (out.size() < limit && (entry = scan.get_next()) != null)
+			out.add(((IntegerKey) entry.key).getKey() + ":"
+					+ ((LeafData) entry.data).getData().pageNo.pid);
+		scan.DestroyBTreeFileScan();
+		return out;
+	}
+
+	/*
+	 * Key order of the entries read, ignoring the order of rids within a
+	 * run of duplicates, which differs between the two directions.
+	 */
+	private static List<String> keys(List<String> entries) {
+		List<String> keys = new ArrayList<String>();
+		for (String entry : entries)
+			keys.add(entry.substring(0, entry.indexOf(':')));
+		return keys;
+	}
+
+	/**
+	 * A tree of keys with duplicates, thinned out by naive deletes and by a
+	 * deleteRange that leaves empty leaves. For random ranges, open ends and
+	 * an inverted range, a descending scan must return what an ascending
+	 * scan returns, reversed.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: descending scans against ascending ones\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile("REVERSE", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			Random random = new Random(17);
+			int range = NUMKEYS / 4;
+			for (int id = 0; id < NUMKEYS; id++) {
+				int key = random.nextInt(range);
+				file.insert(new IntegerKey(key), new RID(new PageId(id), 0));
+				if (id % 3 == 0)
+					file.Delete(new IntegerKey(key), new RID(new PageId(id), 0));
+			}
+			file.deleteRange(new IntegerKey(range / 2), new IntegerKey(range / 2
+					+ range / 10));
+
+			for (int n = 0; n < 60 && !failed; n++) {
+				Integer lo = (n % 10 == 1) ? null : random.nextInt(range);
+				Integer hi = (n % 10 == 2) ? null : random.nextInt(range);
+				List<String> forward = read(file.new_scan(key(lo), key(hi)),
+						Integer.MAX_VALUE);
+				List<String> backward = read(file.new_scan(key(lo), key(hi),
+						DESC), Integer.MAX_VALUE);
+				Collections.reverse(forward);
+				if (!keys(backward).equals(keys(forward))
+						|| !new HashSet<String>(backward).equals(
+								new HashSet<String>(forward)))
+					fail("range [" + lo + ", " + hi + "]: " + backward.size()
+							+ " entries descending, " + forward.size()
+							+ " ascending", null);
+			}
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * The last 10 entries of a range of half the keys, read with an
+	 * ascending scan of the whole range and with a descending scan; the
+	 * pins of both are printed, and the descending one must pin no more
+	 * than a lookup does plus one leaf.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: last N entries of a range\n");
+		failed = false;
+		int lo = NUMKEYS / 4;
+		int hi = lo + NUMKEYS / 2;
+		int n = 10;
+		try {
+			BTreeFile file = new BTreeFile("LATEST", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int key = 0; key < NUMKEYS; key++)
+				keys.add(key);
+			Collections.shuffle(keys, new Random(18));
+			for (int key : keys)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+
+			long pins = pins();
+			List<String> forward = read(file.new_scan(new IntegerKey(lo),
+					new IntegerKey(hi)), Integer.MAX_VALUE);
+			forward = forward.subList(forward.size() - n, forward.size());
+			Collections.reverse(forward);
+			long forwardPins = pins() - pins;
+
+			pins = pins();
+			read(file.new_scan(new IntegerKey(hi), new IntegerKey(hi)), 1);
+			long lookupPins = pins() - pins;
+
+			pins = pins();
+			List<String> backward = read(file.new_scan(new IntegerKey(lo),
+					new IntegerKey(hi), DESC), n);
+			long backwardPins = pins() - pins;
+			if (!backward.equals(forward))
+				fail("descending scan returned " + backward + ", expected "
+						+ forward, null);
+			System.out.println("  last " + n + " of " + (hi - lo + 1)
+					+ " entries: ascending scan " + forwardPins
+					+ " pins, descending scan " + backwardPins + " pins");
+			if (backwardPins > lookupPins + 1)
+				fail("descending scan read too many pages", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Concurrent mode: four threads insert odd keys, splitting leaves, while
+	 * descending scans of the whole tree run. Every scan must be in order
+	 * and return each even key inserted before the threads started.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: descending scans with concurrent inserts\n");
+		failed = false;
+		try {
+			final BTreeFile file = new BTreeFile("CONCURRENT",
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			file.setConcurrent(true);
+			for (int key = 0; key < NUMKEYS / 2; key += 2)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+
+			writing = true;
+			Thread[] writers = new Thread[4];
+			for (int t = 0; t < writers.length; t++) {
+				final int seed = t;
+				writers[t] = new Thread() {
+					public void run() {
+						Random random = new Random(seed);
+						try {
+							while (writing) {
+								int key = 2 * random.nextInt(NUMKEYS / 4) + 1;
+								file.insert(new IntegerKey(key), new RID(
+										new PageId(key), seed));
+							}
+						} catch (Exception e) {
+							fail("insert failed", e);
+						}
+					}
+				};
+				writers[t].start();
+			}
+
+			for (int n = 0; n < 20 && !failed; n++) {
+				BTFileScan scan = file.new_scan(null, null, DESC);
+				int prev = Integer.MAX_VALUE;
+				int even = NUMKEYS / 2 - 2;
+				KeyDataEntry entry;
+				while ((entry = scan.get_next()) != null) {
+					int key = ((IntegerKey) entry.key).getKey().intValue();
+					if (key > prev) {
+						fail(key + " returned after " + prev, null);
+						break;
+					}
+					prev = key;
+					if (key % 2 == 0) {
+						if (key != even) {
+							fail(key + " returned, expected " + even, null);
+							break;
+						}
+						even -= 2;
+					}
+				}
+				scan.DestroyBTreeFileScan();
+				if (!failed && even != -2)
+					fail("scan stops before " + even, null);
+			}
+			writing = false;
+			for (Thread writer : writers)
+				writer.join();
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 3 failed", e);
+		}
+		System.out.println("  Test 3 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class ReverseScanTest {
+
+	public static void main(String argv[]) {
+		ReverseScanDriver driver = new ReverseScanDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during reverse scan tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,297 @@
+package tests;
+
+import java.lang.management.*;
+import java.util.*;
+
+import javax.management.*;
+import javax.management.openmbean.*;
+
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Tests for BTreeFileStats: the counters follow the operations run on a
+ * file, splits agree with the height of the tree, the structural pass
+ * agrees with the entries in the tree and finds the leaves naive deletes
+ * emptied, and the statistics are registered with the platform MBean
+ * server while the file is open.
+ */
+class StatsDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 500;
+	private static final int NUMKEYS = 50000;
+
+	private volatile boolean writing;
+
+	public StatsDriver() {
+		super("statstest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, NUMBUF, "Clock");
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Statistics";
+	}
+
+	private BTreeFile build(String name) throws Exception {
+		BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int key = 0; key < NUMKEYS; key++)
+			keys.add(key);
+		Collections.shuffle(keys, new Random(23));
+		for (int key : keys)
+			file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+		return file;
+	}
+
+	/*
+	 * Check the levels from analyze against each other: every index entry
+	 * and left link is a page on the next level, and the leaves hold
+	 * `entries' entries.
+	 */
+	private void checkLevels(BTreeLevelStats[] levels, long entries) {
+		for (int i = 0; i < levels.length; i++) {
+			BTreeLevelStats level = levels[i];
+			if (level.isLeaf() != (i == levels.length - 1))
+				fail("level " + i + " is " + (level.isLeaf() ? "" : "not ")
+						+ "a leaf level", null);
+			if (i + 1 < levels.length
+					&& levels[i + 1].getPages() != level.getEntries() + level.getPages())
+				fail("level " + (i + 1) + " has " + levels[i + 1].getPages()
+						+ " pages, expected " + (level.getEntries() + level.getPages()), null);
+			if (level.getMinFill() > level.getMeanFill()
+					|| level.getMeanFill() > level.getMaxFill())
+				fail("fill of level " + i + " out of order", null);
+			int pages = 0;
+			for (int n : level.getFillHistogram())
+				pages += n;
+			if (pages != level.getPages())
+				fail("fill histogram of level " + i + " counts " + pages + " pages", null);
+		}
+		if (levels.length > 0 && levels[levels.length - 1].getEntries() != entries)
+			fail("leaves hold " + levels[levels.length - 1].getEntries()
+					+ " entries, expected " + entries, null);
+	}
+
+	/**
+	 * Inserts, lookups, scans and deletes on a new file must be counted, with
+	 * at least one pin per level per lookup, ordered latency percentiles,
+	 * and one root split per level above the first; reset clears it all.
+	 * Then a multiGet counts as one lookup and a deleteRange as one delete,
+	 * each with the pins of its whole batch.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: operation counters\n");
+		failed = false;
+		try {
+			BTreeFile file = build("COUNTERS");
+			BTreeFileStats stats = file.getStats();
+			for (int key = 0; key < 1000; key++)
+				file.lookup(new IntegerKey(key * 7));
+			for (int key = 0; key < 100; key++) {
+				BTFileScan scan = file.new_scan(new IntegerKey(key), null);
+				scan.get_next();
+				scan.DestroyBTreeFileScan();
+			}
+			for (int key = 0; key < 500; key++)
+				file.Delete(new IntegerKey(key), new RID(new PageId(key), 0));
+
+			BTreeLevelStats[] levels = stats.analyze();
+			for (BTreeLevelStats level : levels)
+				System.out.println("  " + level);
+			System.out.println("  " + stats.getLeafSplits() + " leaf splits, "
+					+ stats.getIndexSplits() + " index splits, "
+					+ stats.getRootSplits() + " root splits; pins per insert "
+					+ String.format("%.2f", stats.getPinsPerInsert())
+					+ ", per lookup " + String.format("%.2f", stats.getPinsPerLookup()));
+			System.out.println("  lookup latency (us): " + stats.getLookupLatency());
+
+			if (stats.getInserts() != NUMKEYS || stats.getLookups() != 1000
+					|| stats.getScans() != 100 || stats.getDeletes() != 500)
+				fail("operations miscounted: " + stats.getInserts() + " inserts, "
+						+ stats.getLookups() + " lookups, " + stats.getScans()
+						+ " scans, " + stats.getDeletes() + " deletes", null);
+			if (stats.getRootSplits() != levels.length - 1)
+				fail(stats.getRootSplits() + " root splits for " + levels.length
+						+ " levels", null);
+			if (stats.getLeafSplits() != levels[levels.length - 1].getPages() - 1)
+				fail(stats.getLeafSplits() + " leaf splits for "
+						+ levels[levels.length - 1].getPages() + " leaves", null);
+			if (stats.getIndexSplits() < stats.getRootSplits() - 1)
+				fail("too few index splits", null);
+			if (stats.getPinsPerLookup() < levels.length)
+				fail("lookups pinned " + stats.getPinsPerLookup()
+						+ " pages, fewer than the height", null);
+			Map<String, Double> latency = stats.getInsertLatency();
+			if (!(latency.get("p50") <= latency.get("p99")
+					&& latency.get("p99") <= latency.get("max") && latency.get("max") > 0))
+				fail("insert latency out of order: " + latency, null);
+			long histogram = 0;
+			for (long n : stats.latencyHistogram("insert").values())
+				histogram += n;
+			if (histogram != NUMKEYS)
+				fail("insert histogram counts " + histogram, null);
+			checkLevels(levels, NUMKEYS - 500);
+
+			stats.reset();
+			if (stats.getInserts() != 0 || stats.getLeafSplits() != 0
+					|| stats.getInsertLatency().get("max") != 0)
+				fail("reset left counts", null);
+
+			KeyClass[] keys = new KeyClass[100];
+			for (int i = 0; i < keys.length; i++)
+				keys[i] = new IntegerKey(1000 + i * 10);
+			int found = file.multiGet(keys, new RID[keys.length]);
+			int removed = file.deleteRange(new IntegerKey(1000), new IntegerKey(1999));
+			System.out.println("  multiGet of " + found + " keys: "
+					+ String.format("%.2f", stats.getPinsPerLookup())
+					+ " pins; deleteRange of " + removed + " entries: "
+					+ String.format("%.2f", stats.getPinsPerDelete()) + " pins");
+			if (found != keys.length || removed != 1000)
+				fail("multiGet found " + found + ", deleteRange removed " + removed, null);
+			if (stats.getLookups() != 1 || stats.getDeletes() != 1)
+				fail("batches counted as " + stats.getLookups() + " lookups and "
+						+ stats.getDeletes() + " deletes", null);
+			if (stats.getPinsPerLookup() < levels.length
+					|| stats.getPinsPerDelete() < levels.length)
+				fail("batches pinned fewer pages than the height", null);
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * The statistics of an open file are an MXBean: its attributes and
+	 * the analyze operation work through the platform MBean server, a file
+	 * open twice gets a second name, and closing the file unregisters it.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: JMX registration\n");
+		failed = false;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			BTreeFile file = new BTreeFile("JMX", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			for (int key = 0; key < 5000; key++)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+			ObjectName name = new ObjectName("btree:type=BTreeFileStats,name=\"JMX\"");
+			if (!name.equals(file.getStats().getObjectName()))
+				fail("registered as " + file.getStats().getObjectName(), null);
+			if (!Long.valueOf(5000).equals(server.getAttribute(name, "Inserts")))
+				fail("Inserts attribute is " + server.getAttribute(name, "Inserts"), null);
+			CompositeData[] levels = (CompositeData[]) server.invoke(name,
+					"analyze", new Object[0], new String[0]);
+			if (levels.length < 2
+					|| !Long.valueOf(5000).equals(levels[levels.length - 1].get("entries")))
+				fail("analyze through JMX returned " + levels.length + " levels", null);
+			Object latency = server.getAttribute(name, "LookupLatency");
+			if (!(latency instanceof TabularData))
+				fail("LookupLatency is " + latency, null);
+
+			BTreeFile again = new BTreeFile("JMX");
+			ObjectName second = again.getStats().getObjectName();
+			if (second == null || second.equals(name) || !server.isRegistered(second))
+				fail("second open of the file registered as " + second, null);
+			again.close();
+			if (server.isRegistered(second))
+				fail("close left the second name registered", null);
+			if (!server.isRegistered(name))
+				fail("close unregistered the wrong name", null);
+
+			file.destroyFile();
+			if (server.isRegistered(name))
+				fail("destroyFile left the file registered", null);
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Naive deletes of a range of keys leave empty leaves, which analyze
+	 * must count; in concurrent mode analyze must run while other threads
+	 * insert and still account for every entry there before.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: empty leaves and concurrent analyze\n");
+		failed = false;
+		try {
+			final BTreeFile file = build("STRUCTURE");
+			for (int key = NUMKEYS / 4; key < NUMKEYS / 2; key++)
+				file.Delete(new IntegerKey(key), new RID(new PageId(key), 0));
+			BTreeLevelStats[] levels = file.getStats().analyze();
+			BTreeLevelStats leaves = levels[levels.length - 1];
+			System.out.println("  after deleting a quarter of the keys: " + leaves);
+			if (leaves.getEmptyPages() < leaves.getPages() / 5)
+				fail("only " + leaves.getEmptyPages() + " empty leaves found", null);
+			if (leaves.getFillHistogram()[0] < leaves.getEmptyPages())
+				fail("empty leaves not in the lowest fill bucket", null);
+			checkLevels(levels, NUMKEYS - NUMKEYS / 4);
+
+			file.setConcurrent(true);
+			writing = true;
+			Thread[] writers = new Thread[2];
+			for (int t = 0; t < writers.length; t++) {
+				final int seed = t;
+				writers[t] = new Thread() {
+					public void run() {
+						Random random = new Random(seed);
+						try {
+							while (writing) {
+								int key = NUMKEYS + random.nextInt(NUMKEYS);
+								file.insert(new IntegerKey(key), new RID(
+										new PageId(key), seed));
+							}
+						} catch (Exception e) {
+							fail("insert failed", e);
+						}
+					}
+				};
+				writers[t].start();
+			}
+			for (int n = 0; n < 20 && !failed; n++) {
+				levels = file.getStats().analyze();
+				if (levels[levels.length - 1].getEntries() < NUMKEYS - NUMKEYS / 4)
+					fail("analyze lost entries", null);
+			}
+			writing = false;
+			for (Thread writer : writers)
+				writer.join();
+			file.setConcurrent(false);
+			checkLevels(file.getStats().analyze(), NUMKEYS - NUMKEYS / 4
+					+ file.getStats().getInserts() - NUMKEYS);
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 3 failed", e);
+		}
+		System.out.println("  Test 3 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class StatsTest {
+
+	public static void main(String argv[]) {
+		StatsDriver driver = new StatsDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during statistics tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,292 @@
+package tests;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Tests for BTreeFile.stream and intStream: sequential and parallel streams
+ * return the same entries as scans, for open and closed ranges and runs of
+ * duplicates; parallel streams split into several parts; streams cut short
+ * leave no pages pinned once closed; and a parallel aggregate over the
+ * whole tree is timed against a sequential one.
+ */
+class StreamDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 500;
+	private static final int NUMKEYS = 100000;
+
+	private static final String FILE = "STREAM";
+
+	public StreamDriver() {
+		super("streamtest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, NUMBUF, "Clock");
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Stream";
+	}
+
+	private static IntegerKey key(Integer key) {
+		return (key == null) ? null : new IntegerKey(key);
+	}
+
+	private static String entry(KeyDataEntry entry) {
+		return ((IntegerKey) entry.key).getKey() + ":"
+				+ ((LeafData) entry.data).getData().pageNo.pid;
+	}
+
+	/*
+	 * The entries of a scan of [lo, hi], as "key:rid page" strings.
+	 */
+	private static List<String> scan(BTreeFile file, Integer lo, Integer hi)
+			throws Exception {
+		List<String> out = new ArrayList<String>();
+		BTFileScan scan = file.new_scan(key(lo), key(hi));
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			out.add(entry(entry));
+		scan.DestroyBTreeFileScan();
+		return out;
+	}
+
+	private static List<String> collect(Stream<KeyDataEntry> stream) {
+		try {
+			return stream.map(new Function<KeyDataEntry, String>() {
+				public String apply(KeyDataEntry entry) {
+					return entry(entry);
+				}
+			}).collect(Collectors.<String> toList());
+		} finally {
+			stream.close();
+		}
+	}
+
+	/*
+	 * Insert the keys in random order, every thousandth one 300 times, and
+	 * delete one entry of every fifth key.
+	 */
+	private BTreeFile build(String name) throws Exception {
+		BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int key = 0; key < NUMKEYS; key++)
+			keys.add(key);
+		Collections.shuffle(keys, new Random(20));
+		for (int key : keys) {
+			int copies = (key % 1000 == 0) ? 300 : 1;
+			for (int i = 0; i < copies; i++)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), i));
+			if (key % 5 == 0)
+				file.Delete(new IntegerKey(key), new RID(new PageId(key), 0));
+		}
+		return file;
+	}
+
+	/**
+	 * Random ranges, open ends, an inverted range and an empty tree, read
+	 * through sequential and parallel streams and intStream, before and
+	 * after switching the file to concurrent mode, against scans.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: streams against scans\n");
+		failed = false;
+		try {
+			BTreeFile file = build(FILE);
+			for (int mode = 0; mode < 2 && !failed; mode++) {
+				file.setConcurrent(mode == 1);
+				Random random = new Random(mode);
+				for (int n = 0; n < 40 && !failed; n++) {
+					Integer lo = (n % 10 == 1) ? null : random.nextInt(NUMKEYS);
+					Integer hi = (n % 10 == 2) ? null : random.nextInt(NUMKEYS);
+					if (n % 10 == 3)
+						lo = hi = null;
+					List<String> expected = scan(file, lo, hi);
+					List<String> sequential = collect(file.stream(key(lo), key(hi)));
+					List<String> parallel = collect(file.stream(key(lo), key(hi))
+							.parallel());
+					if (!sequential.equals(expected))
+						fail("range [" + lo + ", " + hi + "]: sequential stream has "
+								+ sequential.size() + " entries, scan "
+								+ expected.size(), null);
+					if (!parallel.equals(expected))
+						fail("range [" + lo + ", " + hi + "]: parallel stream has "
+								+ parallel.size() + " entries, scan "
+								+ expected.size(), null);
+
+					IntStream keys = file.intStream(key(lo), key(hi)).parallel();
+					long sum = keys.asLongStream().sum();
+					keys.close();
+					long want = 0;
+					for (String entry : expected)
+						want += Integer.parseInt(entry.substring(0, entry.indexOf(':')));
+					if (sum != want)
+						fail("range [" + lo + ", " + hi + "]: intStream sums to "
+								+ sum + ", expected " + want, null);
+				}
+			}
+			file.setConcurrent(false);
+
+			BTreeFile empty = new BTreeFile("EMPTY", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			if (empty.stream(null, null).parallel().count() != 0)
+				fail("empty tree streams entries", null);
+			empty.destroyFile();
+
+			BTreeFile strings = new BTreeFile("STRINGS", AttrType.attrString, 8,
+					DeleteFashion.NAIVE_DELETE);
+			try {
+				strings.intStream(null, null);
+				fail("intStream of a string key tree", null);
+			} catch (KeyNotMatchException e) {
+			}
+			strings.destroyFile();
+
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.close();
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * The spliterator of a whole-tree stream splits, recursively, into
+	 * parts with disjoint key ranges that together hold every entry; and
+	 * streams cut short by findAny and limit, sequential and parallel,
+	 * leave no pages pinned once closed.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: splitting and closing\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile(FILE);
+			List<Spliterator<KeyDataEntry>> parts = new ArrayList<Spliterator<KeyDataEntry>>();
+			Stream<KeyDataEntry> stream = file.stream(null, null);
+			parts.add(stream.spliterator());
+			for (int round = 0; round < 4; round++)
+				for (int i = parts.size() - 1; i >= 0; i--) {
+					Spliterator<KeyDataEntry> prefix = parts.get(i).trySplit();
+					if (prefix != null)
+						parts.add(i, prefix);
+				}
+			final List<String> all = new ArrayList<String>();
+			final int[] prev = { Integer.MIN_VALUE };
+			for (Spliterator<KeyDataEntry> part : parts) {
+				part.forEachRemaining(new Consumer<KeyDataEntry>() {
+					public void accept(KeyDataEntry entry) {
+						int key = ((IntegerKey) entry.key).getKey().intValue();
+						if (key < prev[0])
+							fail(key + " returned after " + prev[0], null);
+						prev[0] = key;
+						all.add(entry(entry));
+					}
+				});
+			}
+			stream.close();
+			System.out.println("  whole tree split into " + parts.size() + " parts");
+			if (parts.size() < 8)
+				fail("too few parts", null);
+			if (!all.equals(scan(file, null, null)))
+				fail("parts hold " + all.size() + " entries", null);
+
+			for (int n = 0; n < 20; n++) {
+				Stream<KeyDataEntry> cut = file.stream(key(n * 1000), null);
+				if (n % 2 == 1)
+					cut = cut.parallel();
+				if (n % 4 < 2)
+					cut.findAny();
+				else
+					cut.limit(n * 100).count();
+				cut.close();
+			}
+			IntStream unread = file.intStream(null, null).parallel();
+			unread.iterator().hasNext();
+			unread.close();
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.close();
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Benchmark: the sum of all keys through a sequential and a parallel
+	 * intStream, and the number of distinct fork-join threads that read
+	 * entries. Only checks the sums; times are printed.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: sequential against parallel aggregate\n");
+		failed = false;
+		try {
+			BTreeFile file = new BTreeFile(FILE);
+			long[] sums = new long[2];
+			long[] nanos = new long[2];
+			for (int pass = 0; pass < 2; pass++) {
+				for (int path = 0; path < 2; path++) {
+					nanos[path] = System.nanoTime();
+					for (int run = 0; run < 10; run++) {
+						IntStream keys = file.intStream(null, null);
+						if (path == 1)
+							keys = keys.parallel();
+						sums[path] = keys.asLongStream().sum();
+						keys.close();
+					}
+					nanos[path] = (System.nanoTime() - nanos[path]) / 10;
+				}
+			}
+			if (sums[0] != sums[1])
+				fail("parallel sum " + sums[1] + ", sequential " + sums[0], null);
+
+			final Set<String> threads = Collections
+					.newSetFromMap(new java.util.concurrent.ConcurrentHashMap<String, Boolean>());
+			final AtomicLong count = new AtomicLong();
+			Stream<KeyDataEntry> stream = file.stream(null, null).parallel();
+			stream.forEach(new Consumer<KeyDataEntry>() {
+				public void accept(KeyDataEntry entry) {
+					threads.add(Thread.currentThread().getName());
+					count.incrementAndGet();
+				}
+			});
+			stream.close();
+			System.out.println("  sum of " + count.get() + " keys: sequential "
+					+ nanos[0] / 1000 + " us, parallel " + nanos[1] / 1000
+					+ " us on " + threads.size() + " threads");
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 3 failed", e);
+		}
+		System.out.println("  Test 3 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class StreamTest {
+
+	public static void main(String argv[]) {
+		StreamDriver driver = new StreamDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during stream tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
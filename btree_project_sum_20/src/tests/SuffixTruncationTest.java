@@ -0,0 +1,216 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Tests for suffix truncation: trees of URL-like string keys built with
+ * and without truncated separators hold the same entries and answer the
+ * same lookups, and the depth of lookups (buffer manager pins per lookup)
+ * is compared for trees built by inserts and by bulk loading.
+ */
+class SuffixTruncationDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 1000;
+	private static final int HOSTS = 8000;
+	private static final int PATHS = 4;
+	private static final int NUMKEYS = HOSTS * PATHS;
+	private static final int KEYSIZE = 80;
+	private static final int LOOKUPS = 20000;
+
+	public SuffixTruncationDriver() {
+		super("suffixtest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 40000, NUMBUF, "Clock");
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Suffix truncation";
+	}
+
+	/*
+	 * Key i; keys sort in the order of i.
+	 */
+	private static String key(int i) {
+		int host = i / PATHS;
+		int path = i % PATHS;
+		return "http://www.host" + (100000 + host) + ".example.org/articles/"
+				+ (2000 + path) + "/index.html";
+	}
+
+	private static boolean deleted(int i) {
+		return i % 5 == 0;
+	}
+
+	private static RID rid(int i) {
+		return new RID(new PageId(i), 0);
+	}
+
+	private static List<Integer> shuffled(int seed) {
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < NUMKEYS; i++)
+			order.add(i);
+		Collections.shuffle(order, new Random(seed));
+		return order;
+	}
+
+	/*
+	 * Scan the whole tree, checking it holds exactly the keys not deleted,
+	 * in order.
+	 */
+	private void checkScan(BTreeFile file, boolean withDeletes) throws Exception {
+		BTFileScan scan = file.new_scan(null, null);
+		int expected = 0;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			while (withDeletes && deleted(expected))
+				expected++;
+			String key = ((StringKey) entry.key).getKey();
+			if (!key.equals(key(expected))) {
+				fail("key " + key + " found, expected " + key(expected), null);
+				break;
+			}
+			expected++;
+		}
+		scan.DestroyBTreeFileScan();
+		while (withDeletes && expected < NUMKEYS && deleted(expected))
+			expected++;
+		if (expected != NUMKEYS)
+			fail("scan stops before " + key(expected), null);
+	}
+
+	/*
+	 * Look up key i, or with `between' a string just after it that is not
+	 * a key. Returns the number of entries found.
+	 */
+	private int lookup(BTreeFile file, int i, boolean between) throws Exception {
+		String key = between ? key(i) + "!" : key(i);
+		BTFileScan scan = file.new_scan(new StringKey(key), new StringKey(key));
+		int found = 0;
+		while (scan.get_next() != null)
+			found++;
+		scan.DestroyBTreeFileScan();
+		return found;
+	}
+
+	/**
+	 * Build one tree with and one without truncation from the same random
+	 * inserts, delete a fifth of the keys from both, and check scans and
+	 * lookups, including of strings that fall between keys. The truncated
+	 * tree is closed and reopened first, so its option comes from the
+	 * header page.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: the same entries with and without truncation\n");
+		failed = false;
+		try {
+			for (int t = 0; t < 2 && !failed; t++) {
+				boolean truncate = (t == 1);
+				String name = truncate ? "TRUNCATED" : "PLAIN";
+				BTreeFile file = new BTreeFile(name, AttrType.attrString,
+						KEYSIZE, DeleteFashion.NAIVE_DELETE, truncate);
+				List<Integer> order = shuffled(5);
+				for (int n = 0; n < NUMKEYS / 2; n++)
+					file.insert(new StringKey(key(order.get(n))), rid(order.get(n)));
+				file.close();
+
+				file = new BTreeFile(name);
+				for (int n = NUMKEYS / 2; n < NUMKEYS; n++)
+					file.insert(new StringKey(key(order.get(n))), rid(order.get(n)));
+				checkScan(file, false);
+				for (int i = 0; i < NUMKEYS; i++)
+					if (deleted(i) && !file.Delete(new StringKey(key(i)), rid(i)))
+						fail(name + ": " + key(i) + " not deleted", null);
+				checkScan(file, true);
+
+				for (int i = 0; i < NUMKEYS && !failed; i += 7) {
+					int found = lookup(file, i, false);
+					if (found != (deleted(i) ? 0 : 1))
+						fail(name + ": lookup of " + key(i) + " found " + found, null);
+					if (lookup(file, i, true) != 0)
+						fail(name + ": lookup between keys found an entry", null);
+				}
+				file.close();
+			}
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Pins per lookup, which is the height of the tree, and time per lookup
+	 * for the trees from test 1 and for bulk loaded trees, with and without
+	 * truncation. The pool holds every tree. Checks that truncation never
+	 * makes a tree deeper; the numbers are printed.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: lookup depth, " + LOOKUPS + " lookups\n");
+		failed = false;
+		try {
+			String[] names = { "PLAIN", "TRUNCATED", "BULK-PLAIN", "BULK-TRUNCATED" };
+			for (int t = 2; t < 4; t++) {
+				BTreeFile file = new BTreeFile(names[t], AttrType.attrString,
+						KEYSIZE, DeleteFashion.NAIVE_DELETE, t == 3);
+				List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+				for (int i = 0; i < NUMKEYS; i++)
+					if (!deleted(i))
+						entries.add(new KeyDataEntry(new StringKey(key(i)), rid(i)));
+				file.bulkLoad(entries.iterator(), 1.0);
+				file.close();
+			}
+
+			System.out.println("  tree              pins/lookup    ns/lookup");
+			double[] depth = new double[names.length];
+			for (int t = 0; t < names.length && !failed; t++) {
+				BTreeFile file = new BTreeFile(names[t]);
+				Random random = new Random(t);
+				long pins = 0;
+				long start = 0;
+				for (int pass = 0; pass < 2; pass++) {
+					pins = pins();
+					start = System.nanoTime();
+					for (int n = 0; n < LOOKUPS; n++) {
+						int i = random.nextInt(NUMKEYS);
+						if (lookup(file, i, false) != (deleted(i) ? 0 : 1)) {
+							fail(names[t] + ": lookup of " + key(i) + " is wrong", null);
+							break;
+						}
+					}
+				}
+				long nanos = (System.nanoTime() - start) / LOOKUPS;
+				depth[t] = (double) (pins() - pins) / LOOKUPS;
+				System.out.println("  " + names[t] + "\t\t" + depth[t] + "\t\t"
+						+ nanos);
+				file.destroyFile();
+			}
+			if (depth[1] > depth[0] || depth[3] > depth[2])
+				fail("truncated separators made a tree deeper", null);
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class SuffixTruncationTest {
+
+	public static void main(String argv[]) {
+		SuffixTruncationDriver driver = new SuffixTruncationDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during suffix truncation tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
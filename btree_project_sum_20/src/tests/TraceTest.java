@@ -0,0 +1,315 @@
+package tests;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import global.*;
+import bufmgr.*;
+import btree.*;
+
+/**
+ * Tests for the binary trace: decoded, it is the text trace of the scans
+ * run while tracing, with a line for every insert, delete and split when
+ * asked for; events from many threads in concurrent mode all reach the
+ * file, in order for each thread, through many turns of the ring; and
+ * string keys longer than a record come back whole.
+ */
+class TraceDriver extends CheckedTestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 500;
+	private static final int NUMKEYS = 20000;
+	private static final int THREADS = 4;
+
+	public TraceDriver() {
+		super("tracetest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, NUMBUF, "Clock");
+		SystemDefs.JavabaseBM = new ConcurrentBufMgr(NUMBUF);
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Trace";
+	}
+
+	private static File traceFile() throws IOException {
+		File file = File.createTempFile("tracetest", ".trace");
+		file.deleteOnExit();
+		return file;
+	}
+
+	private static List<String> decode(File trace, boolean all) throws IOException {
+		StringWriter text = new StringWriter();
+		InputStream in = new BufferedInputStream(new FileInputStream(trace));
+		try {
+			BTTraceDecoder.decode(in, text, all);
+		} finally {
+			in.close();
+		}
+		String out = text.toString();
+		return out.isEmpty() ? new ArrayList<String>()
+				: Arrays.asList(out.split(System.getProperty("line.separator")));
+	}
+
+	private static int count(List<String> lines, String prefix) {
+		int n = 0;
+		for (String line : lines)
+			if (line.startsWith(prefix))
+				n++;
+		return n;
+	}
+
+	/**
+	 * Scans run while tracing visit the root, the last new root traced,
+	 * and then one page per level; decoded with -all the trace also holds
+	 * every insert, in order, and as many splits and new roots as the
+	 * statistics counted.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: text trace of inserts and scans\n");
+		failed = false;
+		try {
+			File trace = traceFile();
+			BTreeFile file = new BTreeFile("TRACED", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int key = 0; key < NUMKEYS; key++)
+				keys.add(key);
+			Collections.shuffle(keys, new Random(24));
+
+			BTreeFile.traceFilename(trace.getPath());
+			for (int key : keys)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), 0));
+			for (int key = 0; key < 100; key++) {
+				BTFileScan scan = file.new_scan(new IntegerKey(key * 97),
+						new IntegerKey(key * 97));
+				scan.DestroyBTreeFileScan();
+			}
+			BTreeFile.destroyTrace();
+			int height = file.getStats().analyze().length;
+
+			List<String> lines = decode(trace, false);
+			String root = lines.isEmpty() ? "" : lines.get(0).substring(11);
+			System.out.println("  " + trace.length() + " bytes decode to "
+					+ lines.size() + " lines, from \"" + lines.get(0) + "\"");
+			if (lines.size() != 100 * height)
+				fail(lines.size() + " lines for 100 scans of a tree of height "
+						+ height, null);
+			for (int i = 0; i < lines.size(); i++) {
+				String line = lines.get(i);
+				if (!line.matches("VISIT node [0-9]+"))
+					fail("line " + i + " is \"" + line + "\"", null);
+				else if (i % height == 0 && !line.equals("VISIT node " + root))
+					fail("scan " + i / height + " starts at " + line, null);
+			}
+
+			lines = decode(trace, true);
+			List<String> inserts = new ArrayList<String>();
+			for (String line : lines)
+				if (line.startsWith("INSERT "))
+					inserts.add(line);
+			if (inserts.size() != NUMKEYS)
+				fail(inserts.size() + " inserts traced", null);
+			for (int i = 0; i < inserts.size(); i++)
+				if (!inserts.get(i).equals("INSERT " + keys.get(i) + " [ "
+						+ keys.get(i) + " 0 ]")) {
+					fail("insert " + i + " traced as \"" + inserts.get(i) + "\"", null);
+					break;
+				}
+			BTreeFileStats stats = file.getStats();
+			if (count(lines, "SPLIT LEAF ") != stats.getLeafSplits()
+					|| count(lines, "SPLIT INDEX ") != stats.getIndexSplits()
+					|| count(lines, "NEW ROOT ") != stats.getRootSplits())
+				fail(count(lines, "SPLIT LEAF ") + " leaf splits, "
+						+ count(lines, "SPLIT INDEX ") + " index splits and "
+						+ count(lines, "NEW ROOT ") + " new roots traced", null);
+			String newRoot = null;
+			for (String line : lines)
+				if (line.startsWith("NEW ROOT "))
+					newRoot = line;
+			if (newRoot == null || !newRoot.startsWith("NEW ROOT " + root + " over "))
+				fail("last new root traced is \"" + newRoot + "\", not " + root, null);
+			if (count(lines, "VISIT node ") != 100 * height)
+				fail("-all changed the VISIT lines", null);
+
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 1 failed", e);
+		}
+		System.out.println("  Test 1 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * Threads inserting and deleting in concurrent mode trace many times
+	 * the capacity of the ring: every event must be in the file, and each
+	 * thread's in the order it ran them.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: concurrent tracing\n");
+		failed = false;
+		try {
+			File trace = traceFile();
+			final BTreeFile file = new BTreeFile("CONCTRACED",
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			file.setConcurrent(true);
+			BTreeFile.traceFilename(trace.getPath());
+			Thread[] threads = new Thread[THREADS];
+			for (int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				threads[t] = new Thread() {
+					public void run() {
+						try {
+							for (int i = 0; i < 2 * NUMKEYS; i++) {
+								int key = i * THREADS + thread;
+								file.insert(new IntegerKey(key), new RID(
+										new PageId(key), thread));
+								if (i % 4 == 3)
+									file.Delete(new IntegerKey(key), new RID(
+											new PageId(key), thread));
+							}
+						} catch (Exception e) {
+							fail("thread " + thread + " failed", e);
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+			BTreeFile.destroyTrace();
+			file.setConcurrent(false);
+
+			List<String> lines = decode(trace, true);
+			System.out.println("  " + lines.size() + " events traced by "
+					+ THREADS + " threads");
+			int[] next = new int[THREADS];
+			int inserts = 0, deletes = 0;
+			for (String line : lines) {
+				boolean insert = line.startsWith("INSERT ");
+				if (!insert && !line.startsWith("DELETE "))
+					continue;
+				String[] words = line.split(" ");
+				int key = Integer.parseInt(words[1]);
+				int thread = key % THREADS;
+				int i = key / THREADS;
+				if (insert) {
+					inserts++;
+					if (i != next[thread])
+						fail("thread " + thread + " inserted " + key + " after "
+								+ (next[thread] * THREADS + thread - THREADS), null);
+					next[thread] = i + 1;
+				} else {
+					deletes++;
+					if (i != next[thread] - 1 || i % 4 != 3)
+						fail("thread " + thread + " deleted " + key + " out of order", null);
+				}
+				if (failed)
+					break;
+			}
+			if (inserts != THREADS * 2 * NUMKEYS || deletes != inserts / 4)
+				fail(inserts + " inserts and " + deletes + " deletes traced", null);
+
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 2 failed", e);
+		}
+		System.out.println("  Test 2 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+
+	/**
+	 * String keys take several records each and must decode to the keys
+	 * inserted, non-ASCII characters included; starting a second trace
+	 * finishes the first, and a file that is not a trace is refused.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: string keys\n");
+		failed = false;
+		try {
+			File first = traceFile();
+			File second = traceFile();
+			BTreeFile file = new BTreeFile("STRTRACED", AttrType.attrString, 120,
+					DeleteFashion.NAIVE_DELETE);
+			List<String> keys = new ArrayList<String>();
+			Random random = new Random(3);
+			for (int i = 0; i < 2000; i++) {
+				StringBuilder key = new StringBuilder("key\u00e9" + i);
+				int length = random.nextInt(100);
+				while (key.length() < length)
+					key.append((char) ('a' + random.nextInt(26)));
+				keys.add(key.toString());
+			}
+
+			BTreeFile.traceFilename(first.getPath());
+			for (int i = 0; i < keys.size() / 2; i++)
+				file.insert(new StringKey(keys.get(i)), new RID(new PageId(i), i));
+			BTreeFile.traceFilename(second.getPath());
+			for (int i = keys.size() / 2; i < keys.size(); i++)
+				file.insert(new StringKey(keys.get(i)), new RID(new PageId(i), i));
+			BTreeFile.destroyTrace();
+			BTreeFile.destroyTrace();
+
+			List<String> lines = new ArrayList<String>(decode(first, true));
+			int split = lines.size();
+			lines.addAll(decode(second, true));
+			List<String> inserts = new ArrayList<String>();
+			for (String line : lines)
+				if (line.startsWith("INSERT "))
+					inserts.add(line);
+			System.out.println("  " + inserts.size() + " inserts in two traces, "
+					+ first.length() + " and " + second.length() + " bytes");
+			if (count(lines.subList(0, split), "INSERT ") != keys.size() / 2)
+				fail("first trace has " + count(lines.subList(0, split), "INSERT ")
+						+ " inserts", null);
+			if (inserts.size() != keys.size())
+				fail(inserts.size() + " inserts traced", null);
+			for (int i = 0; i < inserts.size() && i < keys.size(); i++)
+				if (!inserts.get(i).equals("INSERT " + keys.get(i) + " [ " + i
+						+ " " + i + " ]")) {
+					fail("insert " + i + " traced as \"" + inserts.get(i) + "\"", null);
+					break;
+				}
+
+			File text = traceFile();
+			Writer out = new OutputStreamWriter(new FileOutputStream(text),
+					StandardCharsets.UTF_8);
+			out.write("VISIT node 3\n");
+			out.close();
+			try {
+				decode(text, false);
+				fail("a text file decoded", null);
+			} catch (IOException e) {
+				System.out.println("  decoding a text trace: " + e.getMessage());
+			}
+
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != NUMBUF - 1)
+				fail("pages left pinned", null);
+			file.destroyFile();
+		} catch (Exception e) {
+			fail("test 3 failed", e);
+		}
+		System.out.println("  Test 3 " + (failed ? "failed" : "passed"));
+		return !failed;
+	}
+}
+
+public class TraceTest {
+
+	public static void main(String argv[]) {
+		TraceDriver driver = new TraceDriver();
+		boolean dbstatus = driver.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during trace tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}